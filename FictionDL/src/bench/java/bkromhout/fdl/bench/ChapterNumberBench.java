@@ -0,0 +1,46 @@
+package bkromhout.fdl.bench;
+
+import bkromhout.fdl.chapter.ChapterSource;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmark for working out chapter numbers from responses on a very long story. Compares looking each response's
+ * url up in the story's list of chapter urls (like we used to) with reading the number that its request was tagged
+ * with.
+ * <p>
+ * Usage: {@code ChapterNumberBench [chapters] [iterations]}
+ */
+public class ChapterNumberBench {
+
+    public static void main(String[] args) {
+        int chapters = args.length > 0 ? Integer.parseInt(args[0]) : 3_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        List<String> urls = new ArrayList<>(chapters);
+        List<Response> responses = new ArrayList<>(chapters);
+        for (int c = 1; c <= chapters; c++) {
+            String url = "https://www.wattpad.com/" + (100_000_000 + c) + "-a-very-long-story-part-" + c;
+            urls.add(url);
+            Request request = ChapterSource.requestFor(url, c);
+            responses.add(new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200).build());
+        }
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long sink = 0L;
+            for (Response response : responses) sink += urls.indexOf(response.request().url().toString()) + 1;
+            double lookedUp = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (Response response : responses) sink += ChapterSource.chapterNumber(response.request());
+            double tagged = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("Iteration %d: url lookup %.4fs, request tag %.4fs, for %d chapters. [%d]%n", i + 1,
+                    lookedUp, tagged, chapters, sink);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package bkromhout.fdl.bench;
+
+import bkromhout.fdl.site.PageEncoding;
+import bkromhout.fdl.util.Util;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Microbenchmark for decoding, parsing, and cleaning chapter pages. Compares sniffing each page's charset and then
+ * repairing mojibake (like we used to) with decoding it using its site's {@link PageEncoding} and skipping the repairs.
+ * Three kinds of page are used: a UTF-8 page which says it's UTF-8, an eFiction-style page which says it's
+ * ISO-8859-1 but is really a mix of UTF-8 and Windows-1252, and a plain ASCII page whose punctuation is written as
+ * numeric character references to Windows-1252 characters (like {@code &#146;}).
+ * <p>
+ * Before timing anything, the ASCII page is checked to make sure its punctuation survives cleaning.
+ * <p>
+ * Usage: {@code CharsetBench [chapters] [iterations]}
+ */
+public class CharsetBench {
+    /**
+     * Url to parse the pages as if they came from.
+     */
+    private static final String URL = "https://www.example.com/chapter";
+
+    public static void main(String[] args) throws IOException {
+        int chapters = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        byte[] utf8Page = makePage("utf-8", false);
+        byte[] mixedPage = makePage("iso-8859-1", true);
+        byte[] ncrPage = makeNcrPage();
+        checkNcrPage(ncrPage);
+
+        for (int i = 0; i < iterations; i++) {
+            long sink = 0L;
+            long start = System.nanoTime();
+            for (int c = 0; c < chapters; c++) sink += sniffAndRepair(utf8Page);
+            double utf8Sniffed = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int c = 0; c < chapters; c++) sink += decode(PageEncoding.UTF_8, utf8Page);
+            double utf8Hinted = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int c = 0; c < chapters; c++) sink += sniffAndRepair(mixedPage);
+            double mixedSniffed = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int c = 0; c < chapters; c++) sink += decode(PageEncoding.UTF_8_OR_WINDOWS_1252, mixedPage);
+            double mixedHinted = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int c = 0; c < chapters; c++) sink += decode(PageEncoding.UTF_8_OR_WINDOWS_1252, ncrPage);
+            double ncrHinted = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("Iteration %d: UTF-8 pages sniffed %.3fs, hinted %.3fs; mixed pages sniffed %.3fs, " +
+                    "hinted %.3fs; reference pages hinted %.3fs, for %d chapters each. [%d]%n", i + 1, utf8Sniffed,
+                    utf8Hinted, mixedSniffed, mixedHinted, ncrHinted, chapters, sink);
+        }
+    }
+
+    /**
+     * Decode, parse, and clean a page the old way.
+     * @param page Page bytes.
+     * @return Length of the cleaned body, so that the work can't be optimized away.
+     */
+    private static int sniffAndRepair(byte[] page) throws IOException {
+        Document doc = Jsoup.parse(new ByteArrayInputStream(page), null, URL);
+        return Util.cleanHtmlString(doc.body().html(), true).length();
+    }
+
+    /**
+     * Decode, parse, and clean a page using a known encoding.
+     * @param encoding Page encoding.
+     * @param page     Page bytes.
+     * @return Length of the cleaned body, so that the work can't be optimized away.
+     */
+    private static int decode(PageEncoding encoding, byte[] page) throws IOException {
+        Document doc = encoding.parse(new ByteArrayInputStream(page), URL);
+        return Util.cleanHtmlString(doc.body().html(), encoding.needsRepair()).length();
+    }
+
+    /**
+     * Make sure that numeric character references to Windows-1252 characters come out as those characters after
+     * decoding and cleaning, rather than being stripped as control characters.
+     * @param page Page bytes.
+     * @throws IllegalStateException if they don't.
+     */
+    private static void checkNcrPage(byte[] page) throws IOException {
+        Document doc = PageEncoding.UTF_8_OR_WINDOWS_1252.parse(new ByteArrayInputStream(page), URL);
+        String cleaned = Util.cleanHtmlString(doc.body().html(), false);
+        if (!cleaned.contains("don’t") || !cleaned.contains("—") || !cleaned.contains("“Hi,”"))
+            throw new IllegalStateException("Numeric character references were lost: " + cleaned);
+    }
+
+    /**
+     * Make an ASCII chapter page of roughly 16KB, which uses numeric character references for its punctuation.
+     * @return Page bytes.
+     */
+    private static byte[] makeNcrPage() {
+        StringBuilder page = new StringBuilder("<html><head><title>Chapter</title></head><body><div id=\"story\">");
+        for (int p = 0; p < 60; p++)
+            page.append("<p>&#147;Hi,&#148; she said &#151; but I don&#146;t think she meant it&#133; The rain kept ")
+                .append("falling.<br></p>\n");
+        page.append("</div></body></html>");
+        return page.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Make a chapter page of roughly 16KB.
+     * @param declared Charset which the page says it uses.
+     * @param mixed    If true, every other paragraph's punctuation is encoded as Windows-1252 instead of UTF-8.
+     * @return Page bytes.
+     */
+    private static byte[] makePage(String declared, boolean mixed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=" + declared +
+                "\"><title>Chapter</title></head><body><div id=\"story\">").getBytes(StandardCharsets.US_ASCII));
+        for (int p = 0; p < 40; p++) {
+            String para = "<p>“It’s fine,” she said — though it wasn’t, not really… " +
+                    "The café was quiet, and the rain kept falling against the windows for hours.<br></p>\n";
+            out.write(mixed && p % 2 == 1 ? para.getBytes("windows-1252") : para.getBytes(StandardCharsets.UTF_8));
+        }
+        out.write("</div></body></html>".getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+}
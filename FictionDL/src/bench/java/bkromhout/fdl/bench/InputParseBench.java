@@ -0,0 +1,82 @@
+package bkromhout.fdl.bench;
+
+import bkromhout.fdl.parsing.InputFileParser;
+import bkromhout.fdl.site.Site;
+import bkromhout.fdl.site.Sites;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Microbenchmark for {@link InputFileParser}. Generates an input file (1M lines by default) which looks like the ones
+ * we generate from our catalog, then times how long it takes to parse it.
+ * <p>
+ * Usage: {@code InputParseBench [lines] [iterations]}
+ */
+public class InputParseBench {
+    /**
+     * Story url formats, one per supported site. Some sites have a few variants, since those are what we see in the
+     * wild.
+     */
+    private static final String[] URL_FORMATS = {
+            "https://www.fanfiction.net/s/%d/1/", "m.fanfiction.net/s/%d", "https://www.fanfiction.net/s/%d/5/Title",
+            "http://fictionhunt.com/read/%d/1", "https://archiveofourown.org/works/%d/chapters/1",
+            "http://siye.co.uk/siye/viewstory.php?sid=%d", "http://fanfiction.mugglenet.com/viewstory.php?sid=%d",
+            "https://www.wattpad.com/story/%d-title", "http://harrypotterfanfiction.com/viewstory.php?psid=%d"};
+
+    public static void main(String[] args) throws IOException {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Path input = Files.createTempFile("fdl-input-bench", ".txt");
+        input.toFile().deleteOnExit();
+        generate(input, lines);
+        System.out.printf("Generated %d lines (%.1f MiB).%n", lines, Files.size(input) / (1024d * 1024d));
+
+        for (int i = 0; i < iterations; i++) {
+            Sites.init();
+            long start = System.nanoTime();
+            new InputFileParser(input.toFile());
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            int entries = 0, duplicates = 0;
+            for (Site site : Sites.all()) {
+                entries += site.getWorkCount();
+                duplicates += site.getDuplicateCount();
+            }
+            System.out.printf("Iteration %d: %.3fs, %.0f lines/second, %d entries, %d duplicates.%n", i + 1, seconds,
+                    lines / seconds, entries, duplicates);
+        }
+    }
+
+    /**
+     * Generate an input file. Roughly 7% of the story links reuse the ID of an earlier one, and links are sometimes
+     * followed by detail tags, comments, or blank lines.
+     * @param file  File to write.
+     * @param lines Number of lines to write.
+     * @throws IOException if the file can't be written.
+     */
+    private static void generate(Path file, int lines) throws IOException {
+        Random random = new Random(42L);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            int storyId = 1_000_000;
+            for (int i = 0; i < lines; i++) {
+                int roll = random.nextInt(100);
+                if (roll < 60) {
+                    int id = random.nextInt(100) < 7 ? storyId - random.nextInt(Math.max(1, storyId - 999_999)) :
+                            ++storyId;
+                    writer.write(String.format(URL_FORMATS[random.nextInt(URL_FORMATS.length)], id));
+                } else if (roll < 90) {
+                    writer.write(random.nextBoolean() ? "@fdl:title=Some Title " + i : "  @fdl:author =Someone");
+                } else if (roll < 95) {
+                    writer.write("# Comment " + i);
+                }
+                writer.newLine();
+            }
+        }
+    }
+}
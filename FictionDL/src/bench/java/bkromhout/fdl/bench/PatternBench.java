@@ -0,0 +1,71 @@
+package bkromhout.fdl.bench;
+
+import bkromhout.fdl.util.Patterns;
+import bkromhout.fdl.util.Util;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+/**
+ * Microbenchmark for the per-chapter selector and regex work that {@link Patterns} saves. Parses a generated chapter
+ * page once, then repeatedly extracts and cleans its text, first compiling the selectors and regexes every time (like
+ * we used to), then using precompiled ones.
+ * <p>
+ * Usage: {@code PatternBench [chapters] [iterations]}
+ */
+public class PatternBench {
+    /**
+     * Selectors which a parsing downloader runs against each chapter.
+     */
+    private static final String[] SELECTORS = {"div#storytext", "select#chap_select > option[selected]",
+            "div#profile_top > span", "td[colspan=\"2\"] span"};
+    /**
+     * Regexes which {@link Util#cleanHtmlString(String)} used to compile for each chapter, with their replacements.
+     */
+    private static final String[][] REGEXES = {{"(\\<br[^>]*?(?<!/))(\\>)", "$1/>"},
+            {"(\\<hr[^>]*?(?<!/))(\\>)", "$1/>"}, {"(\\<img[^>]*?(?<!/))(\\>)(?!\\Q</img>\\E)", "$0</img>"},
+            {"&(?![A-Za-z]+[0-9]*;|#[0-9]+;|#x[0-9a-fA-F]+;)", "&#x26;"}, {"[^\\P{Cc}\\t\\r\\n]", ""}};
+
+    public static void main(String[] args) {
+        int chapters = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Document page = Jsoup.parse(generatePage());
+        Patterns patterns = new Patterns();
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long sink = 0L;
+            for (int c = 0; c < chapters; c++) {
+                for (String selector : SELECTORS) sink += page.select(selector).size();
+                String text = page.select(SELECTORS[0]).first().html();
+                for (String[] regex : REGEXES) text = text.replaceAll(regex[0], regex[1]);
+                sink += text.length();
+            }
+            double uncached = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int c = 0; c < chapters; c++) {
+                for (String selector : SELECTORS) sink += patterns.select(page, selector).size();
+                sink += Util.cleanHtmlString(patterns.select(page, SELECTORS[0]).first().html()).length();
+            }
+            double cached = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("Iteration %d: compiled each time %.3fs (%.0f chapters/second), precompiled %.3fs " +
+                    "(%.0f chapters/second). [%d]%n", i + 1, uncached, chapters / uncached, cached, chapters / cached,
+                    sink);
+        }
+    }
+
+    /**
+     * Generate a small chapter page which looks like one from FanFiction.net.
+     * @return Page HTML.
+     */
+    private static String generatePage() {
+        StringBuilder html = new StringBuilder("<html><body><div id=\"profile_top\"><b>Title</b><span>Rated: T - " +
+                "English - Drama - Chapters: 3</span></div><select id=\"chap_select\"><option value=\"1\">1. One" +
+                "</option><option value=\"2\" selected>2. Two</option></select><div id=\"storytext\">");
+        for (int i = 0; i < 20; i++)
+            html.append("<p>Paragraph ").append(i).append(" with some text & an image <img src=\"a.png\"><br></p>");
+        return html.append("<hr></div><table><tr><td colspan=\"2\"><span>Notes</span></td></tr></table></body></html>")
+                   .toString();
+    }
+}
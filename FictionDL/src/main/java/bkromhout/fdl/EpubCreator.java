@@ -1,21 +1,31 @@
 package bkromhout.fdl;
 
 import bkromhout.fdl.chapter.Chapter;
+import bkromhout.fdl.epub.EpubOutput;
+import bkromhout.fdl.epub.OutputManifest;
+import bkromhout.fdl.epub.ZipWriter;
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.metrics.Stage;
 import bkromhout.fdl.stories.Story;
 import bkromhout.fdl.util.C;
 import bkromhout.fdl.util.Util;
 import nl.siegmann.epublib.domain.*;
+import nl.siegmann.epublib.epub.EpubProcessorSupport;
 import nl.siegmann.epublib.epub.EpubWriter;
+import nl.siegmann.epublib.epub.NCXDocument;
+import nl.siegmann.epublib.epub.PackageDocumentWriter;
 import nl.siegmann.epublib.service.MediatypeService;
+import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Class which leverages epublib to create ePUB files. This class is meant to be used once and then discarded, so is
@@ -24,6 +34,8 @@ import java.util.ArrayList;
 public final class EpubCreator {
     // The Story that this EpubCreator was created with.
     private final Story story;
+    // Whether the Story's text might need to have mojibake repaired when it's cleaned.
+    private final boolean repairMojibake;
 
     /**
      * Create an ePUB generator for the given {@link Story}.
@@ -31,6 +43,7 @@ public final class EpubCreator {
      */
     public EpubCreator(Story story) {
         this.story = story;
+        this.repairMojibake = story.needsMojibakeRepair();
     }
 
     /**
@@ -42,6 +55,17 @@ public final class EpubCreator {
         return makeEpub(saveDir, Util.makeEpubFname(story.getTitle(), story.getAuthor()));
     }
 
+    /**
+     * Generate an ePUB file on the {@link EpubOutput} stage and save it at the given location with a filename in the
+     * format "[Title] - [Author].epub". The story must not be modified afterwards.
+     * @param saveDir Location to save the ePUB at.
+     * @return Future which completes with true if the ePUB was generated successfully, otherwise false (and an error
+     * message will have been printed).
+     */
+    public CompletableFuture<Boolean> makeEpubAsync(Path saveDir) {
+        return EpubOutput.submit(() -> makeEpub(saveDir));
+    }
+
     /**
      * Generate an ePUB file and save it at the given location with the given file name.
      * @param saveDir  Location to save the ePUB at.
@@ -51,15 +75,56 @@ public final class EpubCreator {
     private boolean makeEpub(Path saveDir, String fileName) {
         // Generate and save the ePUB, making sure that the file name is legal for any OS.
         File file = saveDir.resolve(fileName).toFile();
+        long start = System.nanoTime();
         try {
-            new EpubWriter().write(generateEpub(), new FileOutputStream(file));
+            ZipWriter zip = buildEpub(generateEpub(), file);
+            // Only write the file if its content would actually change.
+            String contentHash = zip.contentHash();
+            if (file.isFile() && contentHash.equals(OutputManifest.getContentHash(story, fileName)))
+                Util.loudf(C.EPUB_UNCHANGED, file.getAbsolutePath());
+            else zip.commit();
+            OutputManifest.record(story, fileName, contentHash);
+            Metrics.epubSaved();
         } catch (IOException e) {
             Util.logf(C.SAVE_FILE_FAILED, file.getAbsolutePath());
             return false;
+        } finally {
+            Metrics.stageTime(Stage.EPUB_WRITE, start);
         }
         return true;
     }
 
+    /**
+     * Prepare to write a Book to an ePUB file the same way that epublib's {@link EpubWriter} would, except that the
+     * entries are compressed in parallel and the file only appears once it has been completely written.
+     * @param book Book to write.
+     * @param file File to write to.
+     * @return ZipWriter with all of the ePUB's entries added, which will write the file once committed.
+     * @throws IOException if the Book's package document can't be generated.
+     */
+    private static ZipWriter buildEpub(Book book, File file) throws IOException {
+        ZipWriter zip = new ZipWriter(file.toPath(), EpubOutput.deflater());
+        // The mimetype entry must come first, and must not be compressed.
+        zip.addStored("mimetype", MediatypeService.EPUB.getName().getBytes(StandardCharsets.US_ASCII));
+        zip.addDeflated("META-INF/container.xml", C.EPUB_CONTAINER_XML.getBytes(StandardCharsets.UTF_8));
+        // Generate the table of contents, replacing any existing one.
+        Resource toc = NCXDocument.createNCXResource(book);
+        Resource oldToc = book.getSpine().getTocResource();
+        if (oldToc != null) book.getResources().remove(oldToc.getHref());
+        book.getSpine().setTocResource(toc);
+        book.getResources().add(toc);
+        // Add all of the resources, which start compressing right away.
+        for (Resource resource : book.getResources().getAll())
+            zip.addDeflated("OEBPS/" + resource.getHref(), resource.getData());
+        // Add the package document.
+        ByteArrayOutputStream opf = new ByteArrayOutputStream();
+        XmlSerializer serializer = EpubProcessorSupport.createXmlSerializer(opf);
+        PackageDocumentWriter.write(new EpubWriter(), serializer, book);
+        serializer.flush();
+        zip.addDeflated("OEBPS/content.opf", opf.toByteArray());
+        return zip;
+    }
+
     /**
      * Using the {@link Story} object we have, create a Book object which can be saved as an ePUB file.
      * @return Book object made from Story object.
@@ -80,7 +145,7 @@ public final class EpubCreator {
         // Set title, author, description (summary), identifier (story url), and publisher (story site).
         book.getMetadata().addTitle(Util.unEscapeAmps(story.getTitle()));
         book.getMetadata().addAuthor(new Author(story.getAuthor()));
-        book.getMetadata().addDescription(Util.removeImgTags(Util.cleanHtmlString(story.getSummary())));
+        book.getMetadata().addDescription(Util.removeImgTags(Util.cleanHtmlString(story.getSummary(), repairMojibake)));
         if (story.getUrl() != null)
             book.getMetadata().addIdentifier(new Identifier(Identifier.Scheme.URL, story.getUrl()));
         if (story.getHost() != null) book.getMetadata().addPublisher(story.getHost());
@@ -93,8 +158,8 @@ public final class EpubCreator {
         // Create and add chapter pages.
         ArrayList<Chapter> chapters = story.getChapters();
         for (int i = 0; i < chapters.size(); i++)
-            book.addSection(Util.unEscapeAmps(
-                    Util.cleanHtmlString(chapters.get(i).title)), createChapter(chapters.get(i), i + 1));
+            book.addSection(Util.unEscapeAmps(Util.cleanHtmlString(chapters.get(i).title, repairMojibake)),
+                    createChapter(chapters.get(i), i + 1));
         // Done, should be ready to save now.
         return book;
     }
@@ -173,7 +238,7 @@ public final class EpubCreator {
         // Add the bottom part that closes the HTML.
         titleHtml.append(C.TITLE_PAGE_END);
         // Escape pesky characters, because ugh.
-        String cleanTitleHtml = Util.cleanHtmlString(titleHtml.toString());
+        String cleanTitleHtml = Util.cleanHtmlString(titleHtml.toString(), repairMojibake);
         // Return a new Resource for the title page.
         return new Resource(cleanTitleHtml.getBytes(StandardCharsets.UTF_8), "title.xhtml");
     }
@@ -195,7 +260,6 @@ public final class EpubCreator {
      */
     private Resource createChapter(Chapter chapter, int chapterNum) {
         // Nothing too fancy here either.
-        return new Resource(Util.cleanHtmlString(chapter.content).getBytes(StandardCharsets.UTF_8),
-                String.format("Chapter%d.xhtml", chapterNum));
+        return new Resource(chapter.getXhtml(), String.format("Chapter%d.xhtml", chapterNum));
     }
 }
@@ -1,26 +1,45 @@
 package bkromhout.fdl;
 
+import bkromhout.fdl.downloaders.StoryOrder;
+import bkromhout.fdl.epub.EpubOutput;
+import bkromhout.fdl.epub.OutputManifest;
 import bkromhout.fdl.events.UpdateTaskProgressEvent;
 import bkromhout.fdl.localfic.LocalStoryProcessor;
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.metrics.MetricsReport;
 import bkromhout.fdl.parsing.ConfigFileParser;
 import bkromhout.fdl.parsing.InputFileParser;
+import bkromhout.fdl.parsing.StoryEntry;
 import bkromhout.fdl.site.Site;
 import bkromhout.fdl.site.Sites;
+import bkromhout.fdl.util.Benchmark;
 import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.CookieMonster;
 import bkromhout.fdl.util.ProgressHelper;
 import bkromhout.fdl.util.Util;
 import com.google.common.eventbus.Subscribe;
 import javafx.concurrent.Task;
+import okhttp3.HttpUrl;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.stream.Collectors;
 
 /**
  * This class is responsible for orchestrating the whole fiction download process. It is given everything it needs to do
  * its job when it is created, and then {@link FictionDL#run()} is called.
  */
 public class FictionDL {
+    /**
+     * Name of the file in the output directory which lists stories that were skipped because their sites were down.
+     */
+    public static final String SKIPPED_FILE_NAME = "fdl-skipped.txt";
     /**
      * If running from the {@link bkromhout.fdl.ui.Gui Gui}, a reference to the {@link FictionDLTask} hosting us. Null
      * if running from the CLI.
@@ -34,6 +53,10 @@ public class FictionDL {
      * Represents the location where we want downloaded stories to be saved.
      */
     private static Path outPath;
+    /**
+     * Order to download each site's stories in.
+     */
+    private static StoryOrder storyOrder = StoryOrder.INPUT;
     /**
      * Represents the configuration file. Might be null if one wasn't supplied.
      */
@@ -42,6 +65,34 @@ public class FictionDL {
      * Config options parsed from the config file. Never null, but it might not contain any options.
      */
     private ConfigFileParser.Config cfg;
+    /**
+     * Whether or not to report throughput numbers at the end of the run.
+     */
+    private boolean isBench;
+    /**
+     * Where to write the JSON and CSV metrics reports. Null if they shouldn't be written.
+     */
+    private Path metricsPath;
+    /**
+     * Where to write the Prometheus metrics report. Null if it shouldn't be written.
+     */
+    private Path promPath;
+    /**
+     * Whether or not to save stories even if they haven't changed since they were last saved.
+     */
+    private boolean force;
+    /**
+     * Where to save login cookies between runs. Null if they shouldn't be saved.
+     */
+    private Path cookiePath;
+    /**
+     * Number of stories which were downloaded (or were already up to date), once {@link #run()} has finished.
+     */
+    private long storiesDownloaded = 0L;
+    /**
+     * Number of stories we tried to download, once {@link #run()} has finished.
+     */
+    private int totalStories = 0;
 
     /**
      * {@link ProgressHelper} for keeping track of our overall progress.
@@ -89,23 +140,49 @@ public class FictionDL {
 
         // Get the config file path, if present.
         if (args.get(C.ARG_CFG_PATH) != null) configFile = Util.tryGetFile(args.get(C.ARG_CFG_PATH));
+
+        // Check if we're benchmarking.
+        isBench = Boolean.parseBoolean(args.get(C.ARG_BENCH));
+
+        // Check if we should ignore the output manifest.
+        force = Boolean.parseBoolean(args.get(C.ARG_FORCE));
+
+        // Get the metrics report paths, if present.
+        if (args.get(C.ARG_METRICS_PATH) != null) metricsPath = Paths.get(args.get(C.ARG_METRICS_PATH));
+        if (args.get(C.ARG_PROM_PATH) != null) promPath = Paths.get(args.get(C.ARG_PROM_PATH));
+
+        // Get the cookie file path, if present.
+        if (args.get(C.ARG_COOKIE_PATH) != null) cookiePath = Paths.get(args.get(C.ARG_COOKIE_PATH));
+
+        // Figure out which order to download stories in.
+        storyOrder = StoryOrder.fromName(args.get(C.ARG_STORY_ORDER));
     }
 
     /**
      * Do the fun stuff.
      */
-    void run() {
+    public void run() {
         /* Do pre-run tasks. */
+        Metrics.start();
+        if (isBench) Benchmark.start();
+        // Load the output manifest, so that we can skip stories which haven't changed.
+        OutputManifest.load(outPath, force);
         // Create Site classes and local story processor.
         Sites.init();
         LocalStoryProcessor localStoryProcessor = new LocalStoryProcessor(inputFile.toPath().getParent());
         C.getEventBus().register(localStoryProcessor);
 
+        // Restore login cookies for sites which support auth, if we're keeping them between runs.
+        if (cookiePath != null) CookieMonster.get().load(cookiePath,
+                Sites.all().stream().filter(Site::supportsAuth).map(Site::getHost).collect(Collectors.toList()));
+
         // Create a InputFileParser so that site url lists and the local story list are populated.
         new InputFileParser(inputFile);
 
         // If we have a config file, create a ConfigFileParser to get options.
         if (configFile != null) cfg = new ConfigFileParser(configFile).getConfig();
+        // If the config file has network options, use an OkHttpClient with them for this run.
+        if (cfg != null && cfg.hasNetworkOptions()) Main.useNetworkProfile(cfg.getNetworkProfile());
 
         // Figure out how work we will be doing, then create a ProgressHelper and pass it in.
         int totalWork = 0;
@@ -113,15 +190,131 @@ public class FictionDL {
         totalWork += localStoryProcessor.getWorkCount(); // Add number of local stories.
         ProgressHelper progressHelper = new ProgressHelper(totalWork);
 
+        /* Log in to any sites which we have credentials for, all at once. */
+        Sites.authenticate(cfg);
+
         /* Download stories from all sites. */
-        for (Site site : Sites.all()) site.process(cfg);
+        for (Site site : Sites.all()) site.process();
 
         /* Create any local stories that we parsed from the input file. */
         localStoryProcessor.process();
 
         /* Do post-run tasks. */
+        // Wait for any ePUBs which are still being written.
+        EpubOutput.awaitAll();
+        OutputManifest.save();
+        CookieMonster.get().save();
         Util.log(C.ALL_FINISHED);
-        Util.logf(C.RUN_RESULTS, progressHelper.getStoriesDownloaded(), progressHelper.getTotalNumberOfStories());
+        int duplicates = 0;
+        for (Site site : Sites.all()) duplicates += site.getDuplicateCount();
+        if (duplicates > 0) Util.logf(C.DUPLICATES_SKIPPED, duplicates);
+        writeSkipped();
+        storiesDownloaded = progressHelper.getStoriesDownloaded();
+        totalStories = progressHelper.getTotalNumberOfStories();
+        Util.logf(C.RUN_RESULTS, storiesDownloaded, totalStories);
+        if (isBench) Benchmark.report(progressHelper.getStoriesDownloaded(), storyOrder.toString());
+        writeMetrics(new MetricsReport(storiesDownloaded, totalStories, storyOrder.toString()));
+        // Stop listening for events, in case we're running in a JVM which will do more runs after this one.
+        C.getEventBus().unregister(progressHelper);
+        C.getEventBus().unregister(localStoryProcessor);
+        if (task != null) C.getEventBus().unregister(task);
+        Main.useDefaultNetworkProfile();
+    }
+
+    /**
+     * Write the urls of any stories which were skipped because their sites were down to {@link #SKIPPED_FILE_NAME} in
+     * the output directory, so that it can be used as an input file to try them again.
+     * <p>
+     * Stories which earlier runs skipped are kept in the file unless this run tried them again, so running with a
+     * different input file doesn't lose them. If that leaves the file empty, it's deleted.
+     */
+    private void writeSkipped() {
+        Path file = outPath.resolve(SKIPPED_FILE_NAME);
+        // Skipped story urls, keyed by canonical story key so that we don't list the same story twice.
+        LinkedHashMap<String, String> skipped = new LinkedHashMap<>();
+        int newlySkipped = 0;
+        try {
+            if (Files.isRegularFile(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String url = line.trim();
+                    if (!url.isEmpty()) skipped.putIfAbsent(storyKey(url), url);
+                }
+            }
+            // Drop the stories which this run tried, then add back the ones which it skipped.
+            for (Site site : Sites.all())
+                for (StoryEntry entry : site.getStoryEntries()) skipped.remove(entry.getKey());
+            for (Site site : Sites.all()) {
+                for (String url : site.getSkippedUrls()) {
+                    skipped.put(site.canonicalize(url), url);
+                    newlySkipped++;
+                }
+            }
+
+            if (skipped.isEmpty()) {
+                Files.deleteIfExists(file);
+                return;
+            }
+            Path temp = Files.createTempFile(outPath, ".fdl-", ".tmp");
+            try {
+                Files.write(temp, skipped.values(), StandardCharsets.UTF_8);
+                Util.replaceFile(temp, file);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            if (newlySkipped > 0) Util.logf(C.SKIPPED_WRITTEN, newlySkipped, file);
+        } catch (IOException e) {
+            Util.logf(C.SKIPPED_WRITE_FAILED, file, e.getMessage());
+        }
+    }
+
+    /**
+     * Get the canonical key for a story url from a skipped stories file.
+     * @param url Story url.
+     * @return Story key from the url's site, or the url itself if it isn't for a supported site.
+     */
+    private static String storyKey(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        Site site = httpUrl != null ? Sites.forHost(httpUrl.host()) : null;
+        return site != null ? site.canonicalize(url) : url;
+    }
+
+    /**
+     * Write the metrics reports which were asked for. Failing to write them doesn't fail the run.
+     * @param report Metrics report.
+     */
+    private void writeMetrics(MetricsReport report) {
+        if (metricsPath != null) {
+            try {
+                report.writeReports(metricsPath);
+                Util.logf(C.METRICS_WRITTEN, metricsPath);
+            } catch (IOException e) {
+                Util.logf(C.METRICS_WRITE_FAILED, metricsPath, e.getMessage());
+            }
+        }
+        if (promPath != null) {
+            try {
+                report.writePrometheus(promPath);
+                Util.logf(C.METRICS_WRITTEN, promPath);
+            } catch (IOException e) {
+                Util.logf(C.METRICS_WRITE_FAILED, promPath, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the number of stories which were downloaded (or were already up to date).
+     * @return Number of downloaded stories, or 0 if {@link #run()} hasn't finished.
+     */
+    public long getStoriesDownloaded() {
+        return storiesDownloaded;
+    }
+
+    /**
+     * Get the number of stories we tried to download.
+     * @return Number of stories, or 0 if {@link #run()} hasn't finished.
+     */
+    public int getTotalStories() {
+        return totalStories;
     }
 
     /**
@@ -132,6 +325,14 @@ public class FictionDL {
         return outPath;
     }
 
+    /**
+     * Get the order to download each site's stories in.
+     * @return Story order.
+     */
+    public static StoryOrder getStoryOrder() {
+        return storyOrder;
+    }
+
     /**
      * Subclass of Task so that {@link FictionDL} can be used by a JavaFX GUI app without running on the UI thread.
      */
@@ -1,5 +1,17 @@
 package bkromhout.fdl;
 
+import bkromhout.fdl.metrics.MetricsInterceptor;
+import bkromhout.fdl.net.FixtureServer;
+import bkromhout.fdl.net.FixtureStore;
+import bkromhout.fdl.net.CircuitBreakerInterceptor;
+import bkromhout.fdl.net.ConcurrencyInterceptor;
+import bkromhout.fdl.net.HostRewriteInterceptor;
+import bkromhout.fdl.net.NetworkProfile;
+import bkromhout.fdl.net.RecordingInterceptor;
+import bkromhout.fdl.parsing.HostMapFileParser;
+import bkromhout.fdl.server.FolderWatcher;
+import bkromhout.fdl.server.JobRunner;
+import bkromhout.fdl.server.JobServer;
 import bkromhout.fdl.ui.Gui;
 import bkromhout.fdl.util.C;
 import bkromhout.fdl.util.CookieMonster;
@@ -14,11 +26,13 @@ import okhttp3.OkHttpClient;
 import okhttp3.logging.HttpLoggingInterceptor;
 import org.apache.commons.cli.*;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Just a simple entry point class for the command line app.
@@ -44,6 +58,19 @@ public class Main {
      * Global OkHttpClient, will be used for all networking.
      */
     public static OkHttpClient httpClient;
+    /**
+     * Network profile which {@link #httpClient} was built with.
+     */
+    public static NetworkProfile networkProfile;
+    /**
+     * The OkHttpClient which {@link #httpClient} is switched back to once a job which used its own network profile is
+     * done. Null unless a job's network profile is in use.
+     */
+    private static OkHttpClient defaultClient;
+    /**
+     * Network profile which {@link #defaultClient} was built with.
+     */
+    private static NetworkProfile defaultProfile;
 
 
     public static void main(String[] args) {
@@ -74,7 +101,27 @@ public class Main {
         // Check verbosity.
         if (cmds.hasOption("v")) isVerbose = true;
         // Check GUI.
-        if (cmds.hasOption("g")) {
+        if (cmds.hasOption("serve") || cmds.hasOption("watch")) {
+            // Run FictionDL as a server and/or folder watcher, which share one job runner until told to stop.
+            Util.log(C.VER_STRING);
+            try {
+                setUpNetHarness(cmds);
+                JobRunner jobRunner = new JobRunner();
+                JobServer jobServer = null;
+                if (cmds.hasOption("serve")) {
+                    jobServer = new JobServer(Integer.parseInt(cmds.getOptionValue("serve")), jobRunner);
+                    Util.logf(C.SERVING_JOBS, jobServer.start());
+                }
+                if (cmds.hasOption("watch")) new FolderWatcher(jobRunner, Util.tryGetPath(cmds.getOptionValue("watch")),
+                        cmds.hasOption("o") ? Util.tryGetPath(cmds.getOptionValue("o")) : null,
+                        cmds.hasOption("c") ? Paths.get(cmds.getOptionValue("c")) : null).run();
+                if (jobServer != null) jobServer.awaitStop();
+            } catch (IOException | IllegalArgumentException e) {
+                Util.log(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (cmds.hasOption("g")) {
             // Run FictionDL using the GUI.
             isGui = true;
             Application.launch(Gui.class, makeGuiArgs(cmds));
@@ -82,11 +129,19 @@ public class Main {
             // Run FictionDL using the CLI.
             Util.log(C.VER_STRING);
             try {
+                // Set up response recording/replaying, if we were asked to.
+                setUpNetHarness(cmds);
                 // Create arguments map.
                 HashMap<String, String> ficDlArgs = new HashMap<>();
                 ficDlArgs.put(C.ARG_IN_PATH, cmds.getOptionValue("i"));
                 ficDlArgs.put(C.ARG_OUT_PATH, cmds.getOptionValue("o"));
                 ficDlArgs.put(C.ARG_CFG_PATH, cmds.getOptionValue("c"));
+                if (cmds.hasOption("bench")) ficDlArgs.put(C.ARG_BENCH, String.valueOf(true));
+                if (cmds.hasOption("force")) ficDlArgs.put(C.ARG_FORCE, String.valueOf(true));
+                ficDlArgs.put(C.ARG_COOKIE_PATH, cmds.getOptionValue("cookies"));
+                ficDlArgs.put(C.ARG_METRICS_PATH, cmds.getOptionValue("metrics"));
+                ficDlArgs.put(C.ARG_PROM_PATH, cmds.getOptionValue("prometheus"));
+                ficDlArgs.put(C.ARG_STORY_ORDER, cmds.getOptionValue("order"));
                 // Run FictionDL.
                 new FictionDL(ficDlArgs).run();
             } catch (IllegalArgumentException e) {
@@ -106,17 +161,92 @@ public class Main {
         eventBus = new AsyncEventBus("fdl-event-bus", eventBusExecutor);
         //eventBus = new EventBus("fdl-event-bus");
 
-        // Set up the OkHttpClient.
-        httpClient = new OkHttpClient.Builder()
+        // Set up the OkHttpClient using the default network profile. This might be replaced once the config file has
+        // been parsed.
+        networkProfile = new NetworkProfile();
+        MetricsInterceptor metricsInterceptor = new MetricsInterceptor();
+        CircuitBreakerInterceptor circuitBreakerInterceptor = new CircuitBreakerInterceptor();
+        httpClient = networkProfile.apply(new OkHttpClient.Builder())
                 .cookieJar(CookieMonster.get())
-                .connectionPool(new ConnectionPool())
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .addInterceptor(metricsInterceptor)
+                .addInterceptor(circuitBreakerInterceptor)
+                .addInterceptor(new ConcurrencyInterceptor())
                 .addInterceptor(makeOkHttpLoggingInterceptor())
+                .addNetworkInterceptor(metricsInterceptor.network())
+                .addNetworkInterceptor(circuitBreakerInterceptor.network())
                 .build();
         httpClient.dispatcher().setMaxRequestsPerHost(MAX_CONNECTIONS_PER_HOST);
     }
 
+    /**
+     * Switch to an OkHttpClient which uses the given network profile, for the length of one job. The job's client is
+     * built from the default one, so it shares its interceptors, cookie jar, and dispatcher, and also its connection
+     * pool unless the profile changes the pool's size or keep-alive. Call {@link #useDefaultNetworkProfile()} once the
+     * job is done.
+     * @param profile Network profile.
+     */
+    public static synchronized void useNetworkProfile(NetworkProfile profile) {
+        if (defaultClient == null) {
+            defaultClient = httpClient;
+            defaultProfile = networkProfile;
+        } else if (httpClient.connectionPool() != defaultClient.connectionPool()) {
+            httpClient.connectionPool().evictAll();
+        }
+        ConnectionPool pool = profile.hasSamePoolAs(defaultProfile) ? defaultClient.connectionPool()
+                : profile.newConnectionPool();
+        networkProfile = profile;
+        httpClient = profile.apply(defaultClient.newBuilder(), pool).build();
+    }
+
+    /**
+     * Switch back to the default OkHttpClient after a job which used its own network profile. If the job had its own
+     * connection pool, its idle connections are closed; the default pool is left alone.
+     */
+    public static synchronized void useDefaultNetworkProfile() {
+        if (defaultClient == null) return;
+        if (httpClient.connectionPool() != defaultClient.connectionPool()) httpClient.connectionPool().evictAll();
+        httpClient = defaultClient;
+        networkProfile = defaultProfile;
+        defaultClient = null;
+        defaultProfile = null;
+    }
+
+    /**
+     * Adds the response recording, replaying, and host rewriting interceptors to the OkHttpClient, depending on which
+     * of the relevant options were given.
+     * <p>
+     * When replaying, a local {@link FixtureServer} is started and every host which isn't explicitly mapped in the host
+     * map file is sent to it.
+     * @param cmds Command line arguments.
+     * @throws IllegalArgumentException if the options are invalid or the harness can't be set up.
+     */
+    private static void setUpNetHarness(CommandLine cmds) {
+        LinkedHashMap<String, String> hostMap = new LinkedHashMap<>();
+        if (cmds.hasOption("host-map"))
+            hostMap.putAll(new HostMapFileParser(Util.tryGetFile(cmds.getOptionValue("host-map"))).getHostMap());
+
+        OkHttpClient.Builder builder = httpClient.newBuilder();
+        try {
+            if (cmds.hasOption("replay")) {
+                FixtureStore store = new FixtureStore(Paths.get(cmds.getOptionValue("replay")));
+                long latency = Long.parseLong(cmds.getOptionValue("replay-latency", "0"));
+                double errorRate = Double.parseDouble(cmds.getOptionValue("replay-errors", "0"));
+                String serverUrl = new FixtureServer(store, latency, errorRate).start();
+                hostMap.putIfAbsent(HostRewriteInterceptor.ANY_HOST, serverUrl);
+                Util.logf(C.REPLAYING_FROM, cmds.getOptionValue("replay"), serverUrl);
+            }
+            if (!hostMap.isEmpty()) builder.addInterceptor(new HostRewriteInterceptor(hostMap));
+            if (cmds.hasOption("record")) {
+                builder.addInterceptor(new RecordingInterceptor(new FixtureStore(Paths.get(cmds.getOptionValue(
+                        "record")))));
+                Util.logf(C.RECORDING_TO, cmds.getOptionValue("record"));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format(C.NET_HARNESS_FAILED, e.getMessage()), e);
+        }
+        httpClient = builder.build();
+    }
+
     /**
      * Creates a logging interceptor for OkHttp3's OkHttpClient.
      * <p>
@@ -194,6 +324,99 @@ public class Main {
                                         "be achieved by " +
                                         "supplying no arguments.")
                                 .build());
+        // Add response recording option.
+        options.addOption(Option.builder()
+                                .longOpt("record")
+                                .hasArg()
+                                .argName("FIXTURE DIR PATH")
+                                .desc("Record all responses to the given directory so that they can be replayed.")
+                                .build());
+        // Add response replaying options.
+        options.addOption(Option.builder()
+                                .longOpt("replay")
+                                .hasArg()
+                                .argName("FIXTURE DIR PATH")
+                                .desc("Serve previously recorded responses from a local server instead of using the " +
+                                        "real sites.")
+                                .build());
+        options.addOption(Option.builder()
+                                .longOpt("replay-latency")
+                                .hasArg()
+                                .argName("MILLIS")
+                                .desc("Delay each replayed response by this many milliseconds. Defaults to 0.")
+                                .build());
+        options.addOption(Option.builder()
+                                .longOpt("replay-errors")
+                                .hasArg()
+                                .argName("RATE")
+                                .desc("Fail this fraction (0 to 1) of replayed responses with a 503. Defaults to 0.")
+                                .build());
+        // Add host map option.
+        options.addOption(Option.builder()
+                                .longOpt("host-map")
+                                .hasArg()
+                                .argName("HOST MAP FILE PATH")
+                                .desc("Send requests for the hosts in the given file to the base URLs they're mapped " +
+                                        "to.")
+                                .build());
+        // Add server option.
+        options.addOption(Option.builder()
+                                .longOpt("serve")
+                                .hasArg()
+                                .argName("PORT")
+                                .desc("Run as a server on the given local port, accepting download jobs over HTTP " +
+                                        "until a shutdown request is received. Other path options are ignored.")
+                                .build());
+        // Add watch option.
+        options.addOption(Option.builder()
+                                .longOpt("watch")
+                                .hasArg()
+                                .argName("WATCH DIR PATH")
+                                .desc("Watch the given directory, downloading stories for each input file and local " +
+                                        "story folder put into it. Uses -o and -c for every job. Can be used with " +
+                                        "--serve.")
+                                .build());
+        // Add force option.
+        options.addOption(Option.builder()
+                                .longOpt("force")
+                                .desc("Download and save every story, even ones which haven't changed since they " +
+                                        "were last saved to the output directory.")
+                                .build());
+        // Add story order option.
+        options.addOption(Option.builder()
+                                .longOpt("order")
+                                .hasArg()
+                                .argName("ORDER")
+                                .desc("Order to download each site's stories in: \"input\" (input file order, the " +
+                                        "default), \"sjf\" (shortest first), or \"ljf\" (longest first).")
+                                .build());
+        // Add cookie file option.
+        options.addOption(Option.builder()
+                                .longOpt("cookies")
+                                .hasArg()
+                                .argName("COOKIE FILE PATH")
+                                .desc("Save login cookies to the given file, and reuse them on later runs instead of " +
+                                        "logging in again.")
+                                .build());
+        // Add benchmark option.
+        options.addOption(Option.builder()
+                                .longOpt("bench")
+                                .desc("Report throughput and peak heap usage at the end of the run.")
+                                .build());
+        // Add metrics options.
+        options.addOption(Option.builder()
+                                .longOpt("metrics")
+                                .hasArg()
+                                .argName("METRICS DIR PATH")
+                                .desc("Write JSON and CSV reports of network metrics and stage timings to the given " +
+                                        "directory at the end of the run.")
+                                .build());
+        options.addOption(Option.builder()
+                                .longOpt("prometheus")
+                                .hasArg()
+                                .argName("PROMETHEUS FILE PATH")
+                                .desc("Write the same metrics to the given file in the Prometheus text format.")
+                                .build());
         // Add help option.
         options.addOption(Option.builder("?")
                                 .longOpt("help")
@@ -2,7 +2,6 @@ package bkromhout.fdl.chapter;
 
 import bkromhout.fdl.stories.Story;
 import bkromhout.fdl.util.C;
-import bkromhout.fdl.util.Util;
 import org.jsoup.nodes.Document;
 
 /**
@@ -22,13 +21,19 @@ public class Chapter {
      */
     public String title;
     /**
-     * Raw chapter HTML.
+     * Raw chapter HTML. Null once the chapter is {@link #finish() finished}.
      */
-    public final Document rawHtml;
+    public Document rawHtml;
     /**
-     * Stringified chapter XHTML which will eventually be put into the ePUB.
+     * Chapter body HTML, which is put into the chapter page template when the chapter is {@link #finish() finished}.
+     * Null once the chapter is finished.
      */
     public String content;
+    /**
+     * Finished chapter page XHTML which will be put into the ePUB, encoded as UTF-8. Null until the chapter is {@link
+     * #finish() finished}.
+     */
+    private byte[] xhtml;
 
     /**
      * Create a new {@link Chapter} using raw HTML which can be manipulated in an OO fashion.
@@ -46,11 +51,17 @@ public class Chapter {
     }
 
     /**
-     * Create a new {@link Chapter} using a raw HTML string.
-     * <p>
-     * Note that this constructor will set {@link #content} to be {@code htmlStr} without putting it into the chapter
-     * template first (since we don't know the title yet). Call {@link #wrapContentInTemplate()} later after populating
-     * {@link #title} to do so.
+     * Create a copy of this {@link Chapter} which uses different raw HTML, such as when the chapter had to be
+     * downloaded again.
+     * @param rawHtml New raw chapter content.
+     * @return New {@link Chapter} with the same story and number.
+     */
+    public Chapter withRawHtml(Document rawHtml) {
+        return new Chapter(story, rawHtml, number);
+    }
+
+    /**
+     * Create a new {@link Chapter} using a raw HTML string, which is used as {@link #content}.
      * @param story Story which this chapter is a part of.
      * @param htmlStr Raw chapter content String.
      * @param number  Chapter number.
@@ -63,32 +74,39 @@ public class Chapter {
     }
 
     /**
-     * Convenience method which takes the given content string and puts it into the final chapter XHTML template from
-     * {@link C#CHAPTER_PAGE}. This is a no-op if {@code contentStr} is null.
+     * Convenience method which sets {@link #content} to the given chapter body HTML string. This is a no-op if {@code
+     * contentStr} is null.
      * @param contentStr Chapter html content string.
-     * @throws IllegalStateException if {@link #title} is null, since the template needs it.
      */
     public void contentFromString(String contentStr) {
-        if (title == null) throw new IllegalStateException();
         if (contentStr == null) return;
-        this.content = String.format(C.CHAPTER_PAGE, title, title, contentStr);
+        this.content = contentStr;
     }
 
     /**
-     * Convenience method which will wrap the current value of {@link #content} in {@link C#CHAPTER_PAGE}.
+     * Finish this chapter by cleaning {@link #title} and {@link #content} and writing them into the chapter XHTML
+     * template from {@link C#CHAPTER_PAGE} as UTF-8. {@link #rawHtml} and {@link #content} are dropped afterwards, so
+     * that we only hold on to the encoded page. This is a no-op if the chapter is already finished.
      * @throws IllegalStateException if either {@link #content} or {@link #title} are null, since the template needs
      *                               both.
      */
-    public void wrapContentInTemplate() {
+    public synchronized void finish() {
+        if (xhtml != null) return;
         if (content == null || title == null) throw new IllegalStateException();
-        contentFromString(content);
+        xhtml = ChapterPageWriter.write(title, content, story.needsMojibakeRepair());
+        rawHtml = null;
+        content = null;
     }
 
     /**
-     * Convenience method which runs {@link #content} through {@link Util#cleanHtmlString(String)}.
+     * Get the finished chapter page XHTML, finishing the chapter first if needed.
+     * @return Chapter page XHTML, encoded as UTF-8.
+     * @throws IllegalStateException if the chapter isn't finished and can't be.
+     * @see #finish()
      */
-    public void sanitizeContent() {
-        content = Util.cleanHtmlString(content);
+    public synchronized byte[] getXhtml() {
+        finish();
+        return xhtml;
     }
 
     /**
@@ -0,0 +1,50 @@
+package bkromhout.fdl.chapter;
+
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import okio.Buffer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes finished chapter pages as UTF-8 XHTML, using the {@link C#CHAPTER_PAGE} template.
+ * <p>
+ * Rather than formatting the whole page as a String and then encoding it, the template's header, the chapter's title
+ * and body, and the template's footer are each written straight into one UTF-8 buffer, so the only copy of the page
+ * which we keep is the encoded one.
+ */
+final class ChapterPageWriter {
+    /**
+     * The literal parts of {@link C#CHAPTER_PAGE}, already encoded: the header before the page title, the part between
+     * the page title and the heading, the part between the heading and the chapter text, and the footer.
+     */
+    private static final byte[][] TEMPLATE_PARTS;
+
+    static {
+        String[] parts = C.CHAPTER_PAGE.split("%s", -1);
+        if (parts.length != 4) throw new IllegalStateException("Unexpected chapter page template.");
+        TEMPLATE_PARTS = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++) TEMPLATE_PARTS[i] = parts[i].getBytes(StandardCharsets.UTF_8);
+    }
+
+    private ChapterPageWriter() {
+    }
+
+    /**
+     * Clean a chapter's title and body HTML and write them into a chapter page.
+     * @param title          Chapter title.
+     * @param body           Chapter body HTML.
+     * @param repairMojibake Whether the title and body might have mojibake which needs to be repaired.
+     * @return Chapter page XHTML, encoded as UTF-8.
+     * @see Util#cleanHtmlString(String, boolean)
+     */
+    static byte[] write(String title, String body, boolean repairMojibake) {
+        String cleanTitle = Util.cleanHtmlString(title, repairMojibake);
+        Buffer page = new Buffer();
+        page.write(TEMPLATE_PARTS[0]).writeUtf8(cleanTitle)
+            .write(TEMPLATE_PARTS[1]).writeUtf8(cleanTitle)
+            .write(TEMPLATE_PARTS[2]).writeUtf8(Util.cleanHtmlString(body, repairMojibake))
+            .write(TEMPLATE_PARTS[3]);
+        return page.readByteArray();
+    }
+}
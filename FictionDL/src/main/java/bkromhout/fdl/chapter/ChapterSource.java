@@ -1,9 +1,13 @@
 package bkromhout.fdl.chapter;
 
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.metrics.Stage;
+import bkromhout.fdl.net.BodyBuffer;
 import bkromhout.fdl.stories.Story;
 import bkromhout.fdl.util.C;
 import bkromhout.fdl.util.Util;
 import com.google.common.io.Files;
+import okhttp3.Request;
 import okhttp3.Response;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
@@ -20,6 +24,14 @@ public class ChapterSource {
     private final Response response;
     private final File file;
     private final String string;
+    /**
+     * Response body, if it has been read ahead of time by {@link #buffer()}.
+     */
+    private BodyBuffer body = null;
+    /**
+     * Whether {@link #buffer()} failed to read the response body.
+     */
+    private boolean bufferFailed = false;
     /**
      * Chapter number.
      */
@@ -33,6 +45,30 @@ public class ChapterSource {
      */
     private Story story;
 
+    /**
+     * Create an OkHttp Request for a chapter which is tagged with its chapter number. The tag survives redirects, so
+     * the number can be read back from the Response with {@link #chapterNumber(Request)} no matter what url it ends up
+     * at.
+     * @param url    Chapter url.
+     * @param number Chapter number, must be >= 1.
+     * @return New Request.
+     * @throws IllegalArgumentException if {@code number} < 1.
+     */
+    public static Request requestFor(String url, int number) {
+        if (number < 1) throw new IllegalArgumentException();
+        return new Request.Builder().url(url).tag(new ChapterTag(number)).build();
+    }
+
+    /**
+     * Get the chapter number that a Request was tagged with by {@link #requestFor(String, int)}.
+     * @param request Request.
+     * @return Chapter number, or 0 if the request wasn't tagged with one.
+     */
+    public static int chapterNumber(Request request) {
+        Object tag = request.tag();
+        return tag instanceof ChapterTag ? ((ChapterTag) tag).number : 0;
+    }
+
     /**
      * Create a new {@link ChapterSource} using an OkHttp Response.
      * @param response Response.
@@ -45,6 +81,34 @@ public class ChapterSource {
         this.string = null;
     }
 
+    /**
+     * Read the whole body of this source's Response into a pooled {@link BodyBuffer} and close it, so that it can be
+     * parsed later on another thread. This is meant to be called on the network thread which got the Response, so
+     * that the network threads spend their time reading from sockets rather than parsing HTML. Does nothing if this
+     * source isn't a Response.
+     * @return This source.
+     */
+    public ChapterSource buffer() {
+        if (response == null || body != null || bufferFailed) return this;
+        try {
+            body = BodyBuffer.read(response.body());
+        } catch (IOException e) {
+            bufferFailed = true;
+            Util.logf(C.CHAP_FETCH_FAILED, response.request().url());
+        }
+        return this;
+    }
+
+    /**
+     * Release this source's buffered body (or close its Response's body if it wasn't buffered) without making a
+     * chapter from it, such as when it's dropped because we were unsubscribed from before it was parsed.
+     */
+    public void release() {
+        if (body != null) body.release();
+        body = null;
+        if (response != null) response.body().close();
+    }
+
     /**
      * Create a new {@link ChapterSource} using a File.
      * @param file             File.
@@ -100,14 +164,22 @@ public class ChapterSource {
      */
     private Chapter fromResponse() {
         assert response != null;
+        if (bufferFailed) return null;
+        long start = System.nanoTime();
         try {
-            Document doc = Jsoup.parse(response.body().byteStream(), null, response.request().url().toString());
+            Document doc = story.getPageEncoding().parse(
+                    body != null ? body.inputStream() : response.body().byteStream(),
+                    response.request().url().toString());
             // Make sure the ResponseBody is closed so that it doesn't leak.
             response.body().close();
             return new Chapter(story, doc, number);
         } catch (IOException e) {
             Util.loudf(C.PARSE_HTML_FAILED, response.request().url());
             return null;
+        } finally {
+            if (body != null) body.release();
+            body = null;
+            Metrics.stageTime(Stage.PARSE, start);
         }
     }
 
@@ -159,13 +231,28 @@ public class ChapterSource {
         // Don't redo work.
         if (number > 0) return number;
 
-        // If the source is a Response, we can use the request url to get the number by finding its index in the
-        // Story's list of urls.
-        if (response != null) return story.getChapterUrls().indexOf(response.request().url().toString()) + 1;
+        if (response != null) {
+            // If the source is a Response, its request should have been tagged with the number.
+            int tagged = chapterNumber(response.request());
+            if (tagged > 0) return tagged;
+            // Otherwise, fall back to finding the request url's index in the Story's list of urls.
+            return story.getChapterUrls().indexOf(response.request().url().toString()) + 1;
+        }
 
         // If the source is a file, we can use the filename to get the number.
         if (file != null) return Integer.parseInt(file.getName().split("\\.")[0]);
 
         throw new IllegalStateException();
     }
+
+    /**
+     * Request tag which holds a chapter number. Its own type, so it can't be confused with OkHttp's default tag.
+     */
+    private static final class ChapterTag {
+        private final int number;
+
+        private ChapterTag(int number) {
+            this.number = number;
+        }
+    }
 }
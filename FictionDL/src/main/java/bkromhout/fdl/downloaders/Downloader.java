@@ -1,21 +1,31 @@
 package bkromhout.fdl.downloaders;
 
+import bkromhout.fdl.FictionDL;
+import bkromhout.fdl.epub.OutputManifest;
 import bkromhout.fdl.parsing.StoryEntry;
 import bkromhout.fdl.rx.RxMakeStories;
 import bkromhout.fdl.site.Site;
 import bkromhout.fdl.stories.Story;
 import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.CookieMonster;
 import bkromhout.fdl.util.ProgressHelper;
 import bkromhout.fdl.util.Util;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import org.jsoup.nodes.Document;
 import rx.Observable;
 import rx.schedulers.Schedulers;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base for all downloader classes.
@@ -26,6 +36,20 @@ import java.util.HashSet;
  * downloader which has to download and parse HTML.
  */
 public abstract class Downloader {
+    /**
+     * Maximum number of times to log in again during a run because we got login pages.
+     */
+    private static final int MAX_REAUTHS = 3;
+    /**
+     * If we logged in less than this many milliseconds before getting a login page, the page was probably requested
+     * before we logged in, so we don't log in again.
+     */
+    private static final long REAUTH_GRACE_MS = 10_000L;
+    /**
+     * Fewest stories which need to share a listing page before it's worth getting the page to check them for updates,
+     * instead of just building their models.
+     */
+    private static final int MIN_LISTING_GROUP = 2;
     /**
      * This is the specific {@link Story} subclass whose constructor will be called which creating stories.
      */
@@ -37,12 +61,24 @@ public abstract class Downloader {
     /**
      * Story urls.
      */
-    private final HashSet<StoryEntry> storyEntries;
+    private final Collection<StoryEntry> storyEntries;
     /**
      * Any extra messages to print prior to starting the download process. Can be set by a subclass at some point after
      * initialization.
      */
     String extraPreDlMsgs;
+    /**
+     * Credentials we logged in with, kept so that we can log in again. Null if we haven't logged in.
+     */
+    private String[] creds = null;
+    /**
+     * When we last logged in, from {@link System#currentTimeMillis()}.
+     */
+    private long lastAuthAt = 0L;
+    /**
+     * Number of times we've had to log in again during this run.
+     */
+    private int reauthCount = 0;
 
     /**
      * Create a new {@link Downloader}.
@@ -61,12 +97,20 @@ public abstract class Downloader {
         // Pre-download logging.
         Util.logf(C.STARTING_SITE_DL_PROCESS, site.getName());
         Util.log(extraPreDlMsgs); // This is null unless a subclass has set it to something.
+        // Skip stories which we can tell haven't changed without building their models.
+        List<StoryEntry> entries = skipUnchangedListed(storyEntries);
         Util.logf(C.FETCH_BUILD_MODELS, site.getName());
 
         // Use RxJava to handle the logic.
         ArrayList<Story> stories = (ArrayList<Story>) Observable
-                .from(storyEntries)
+                .from(entries)
                 .subscribeOn(Schedulers.computation())
+                .filter(entry -> {
+                    // Don't wait on a site which is down, just fail its remaining stories right away.
+                    if (!skippedBecauseSiteDown(entry.getUrl())) return true;
+                    ProgressHelper.storyFailed(0L);
+                    return false;
+                })
                 .compose(new RxMakeStories(storyClass))
                 .doOnNext(story -> {
                     // If a story failed, we just add one completed work unit.
@@ -76,22 +120,119 @@ public abstract class Downloader {
                     else ProgressHelper.recalcUnitWorth(story.getChapterUrlCount());
                 })
                 .filter(story -> story != null) // Get rid of failed stories.
+                .filter(story -> {
+                    // Skip stories which haven't changed since we last saved them.
+                    if (!OutputManifest.isUnchanged(story)) return true;
+                    Util.logf(C.STORY_UNCHANGED, Util.unEscapeAmps(story.getTitle()));
+                    ProgressHelper.storyUnchanged();
+                    return false;
+                })
                 .toList()
                 .observeOn(Schedulers.immediate())
                 .toBlocking().single(); // Put all of the stories into a List.
 
-        // Download the stories. (Note that this is the JDK 8 Iterable.forEach() method, because we want our RxJava
-        // flow to finish creating the story models before we download any of them.)
+        // Download the stories. (Note that this happens outside of the RxJava flow above, because we want it to finish
+        // creating the story models before we download any of them, so that we know how long each one is.)
         if (!stories.isEmpty()) {
+            FictionDL.getStoryOrder().sort(stories);
             // In the case where we no longer have any stories because they all failed before now, we don't want to log.
             Util.logf(C.DL_STORIES_FROM_SITE, site.getName());
-            stories.forEach(this::downloadStory);
+            downloadStories(stories);
         }
 
         //Post-download logging.
         Util.logf(C.FINISHED_WITH_SITE, site.getName());
     }
 
+    /**
+     * Skip stories which a listing page shows haven't changed since we last saved them, so that we don't have to get
+     * each of their story pages to find that out. Entries are grouped by the listing page saved for them in the {@link
+     * OutputManifest} (such as their author's page), and each listing page with at least {@link #MIN_LISTING_GROUP} of
+     * the entries on it is fetched once. If a listing page can't be fetched or doesn't list a story, that story just
+     * has its model built as usual.
+     * @param entries Story entries.
+     * @return Entries which still need their models built, in their original order.
+     */
+    private List<StoryEntry> skipUnchangedListed(Collection<StoryEntry> entries) {
+        LinkedHashMap<String, List<StoryEntry>> groups = new LinkedHashMap<>();
+        for (StoryEntry entry : entries) {
+            String listingUrl = OutputManifest.getListingUrl(entry.getKey());
+            if (listingUrl != null) groups.computeIfAbsent(listingUrl, k -> new ArrayList<>()).add(entry);
+        }
+        groups.values().removeIf(group -> group.size() < MIN_LISTING_GROUP);
+        if (groups.isEmpty()) return new ArrayList<>(entries);
+
+        Util.logf(C.CHECKING_LISTINGS, groups.size(), site.getName());
+        Set<StoryEntry> unchanged = ConcurrentHashMap.newKeySet();
+        Observable.from(groups.entrySet())
+                  .flatMap(group -> Observable.just(group)
+                                              .doOnNext(g -> unchanged.addAll(checkListing(g.getKey(), g.getValue())))
+                                              .subscribeOn(Schedulers.io()))
+                  .toBlocking()
+                  .lastOrDefault(null);
+
+        List<StoryEntry> remaining = new ArrayList<>();
+        for (StoryEntry entry : entries) {
+            if (!unchanged.contains(entry)) {
+                remaining.add(entry);
+                continue;
+            }
+            Util.logf(C.STORY_UNCHANGED, entry.getUrl());
+            ProgressHelper.storyUnchanged();
+        }
+        return remaining;
+    }
+
+    /**
+     * Get a listing page and find which of the given stories it shows haven't changed.
+     * @param listingUrl Listing page url.
+     * @param group      Entries for stories which should be on the listing page.
+     * @return Entries for stories which haven't changed.
+     */
+    private List<StoryEntry> checkListing(String listingUrl, List<StoryEntry> group) {
+        Document doc = Util.getHtml(listingUrl);
+        Map<String, ListedStory> listed = doc != null ? parseListing(doc) : Collections.emptyMap();
+        List<StoryEntry> unchanged = new ArrayList<>();
+        for (StoryEntry entry : group) {
+            ListedStory story = listed.get(entry.getKey());
+            if (story != null && OutputManifest.isUnchanged(entry.getKey(), story.dateUpdated, story.chapterCount))
+                unchanged.add(entry);
+        }
+        return unchanged;
+    }
+
+    /**
+     * Individual site downloaders whose stories set {@link Story#getListingUrl()} should override this to parse the
+     * stories on a listing page.
+     * @param doc Listing page.
+     * @return Stories on the page, keyed by {@link StoryEntry#getKey()}.
+     */
+    Map<String, ListedStory> parseListing(Document doc) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Check whether this downloader's site is down. If it is, log that the given story is being skipped and record it
+     * so that it can be tried again later.
+     * @param url Story url.
+     * @return True if the story was skipped.
+     */
+    final boolean skippedBecauseSiteDown(String url) {
+        if (!site.getCircuitBreaker().isOpen()) return false;
+        Util.logf(C.SITE_DOWN_SKIPPING, url, site.getName());
+        site.storySkipped(url);
+        return true;
+    }
+
+    /**
+     * Download the given stories. By default they're downloaded one after another; subclasses can override this to
+     * download several at once.
+     * @param stories Stories to download and save.
+     */
+    void downloadStories(List<Story> stories) {
+        stories.forEach(this::downloadStory);
+    }
+
     /**
      * Download a story.
      * <p>
@@ -102,16 +243,58 @@ public abstract class Downloader {
     protected abstract void downloadStory(Story story);
 
     /**
-     * Log in to the site using form-based authentication.
+     * Make sure that we're logged in to the site. If we have a saved login for it which is still valid, it's used;
+     * otherwise we log in using form-based authentication. Saved logins are only used for sites which have a page to
+     * check them with, since having cookies for a site doesn't mean that we're logged in to it.
+     * <p>
+     * The credentials are kept so that we can log in again if the session expires while we're downloading. If the
+     * site's cookies belong to a different user than the one given (say, from an earlier job), they're dropped first.
+     * @param creds An array containing ["Username", "Password"], or null if we don't have credentials for the site. It
+     *              is assumed that if this is non-null, the username and password strings are both non-null and
+     *              non-empty.
+     * @return True if we're logged in.
+     */
+    public final synchronized boolean authenticate(String[] creds) {
+        CookieMonster.get().switchUser(site.getHost(), creds != null ? creds[0] : null);
+        if (creds == null) return false;
+        this.creds = creds;
+        if (getSessionCheckUrl() != null && CookieMonster.get().hasCookiesFor(site.getHost()) && hasValidSession()) {
+            Util.logf(C.USING_SAVED_LOGIN, site.getName());
+            lastAuthAt = System.currentTimeMillis();
+            return true;
+        }
+        return doFormAuth(creds);
+    }
+
+    /**
+     * Log in to the site again because we got a login page instead of the page we asked for, unless another thread has
+     * already done so recently.
+     * <p>
+     * We only do this a few times per run, so that bad credentials or a site which always returns a login page don't
+     * cause a login attempt for every chapter.
+     * @param wallSeenAt When we got the login page, from {@link System#currentTimeMillis()}.
+     * @return True if we should be logged in now, otherwise false.
+     */
+    final synchronized boolean reauthenticate(long wallSeenAt) {
+        if (creds == null) return false;
+        if (wallSeenAt - lastAuthAt < REAUTH_GRACE_MS) return true;
+        if (reauthCount >= MAX_REAUTHS) return false;
+        reauthCount++;
+        return doFormAuth(creds);
+    }
+
+    /**
+     * Log in to the site using form-based authentication, and check that it worked.
      * @param creds An array containing ["Username", "Password"]. It is assumed that if this is non-null, the username
      *              and password strings are both non-null and non-empty.
+     * @return True if we logged in.
      */
-    public final void doFormAuth(String[] creds) {
-        if (creds == null) return;
+    private synchronized boolean doFormAuth(String[] creds) {
+        if (creds == null) return false;
         // Try to get site-specific form-data and login url
         RequestBody formData = getSiteAuthForm(creds[0], creds[1]);
         String loginUrl = getSiteLoginUrl();
-        if (formData == null || loginUrl == null) return;
+        if (formData == null || loginUrl == null) return false;
 
         try {
             Util.logf(C.STARTING_SITE_AUTH_PROCESS, site.getName());
@@ -125,12 +308,29 @@ public abstract class Downloader {
                 // (Also check prior response headers, for sites which redirect after auth completes.)
                 if (resp.priorResponse() == null || resp.priorResponse().headers().values("Set-Cookie").isEmpty())
                     throw new IOException();
-            Util.log(C.DONE);
+            // Make sure that the login cookies actually work.
+            if (!hasValidSession()) throw new IOException();
+            lastAuthAt = System.currentTimeMillis();
+            Util.logf(C.LOGGED_IN, site.getName());
+            return true;
         } catch (IOException e) {
             Util.logf(C.LOGIN_FAILED, site.getName());
+            return false;
         }
     }
 
+    /**
+     * Check whether we're logged in to the site by getting the page from {@link #getSessionCheckUrl()} and making sure
+     * that it isn't a login page.
+     * @return True if we're logged in, or if the site doesn't have a page to check with.
+     */
+    private boolean hasValidSession() {
+        String checkUrl = getSessionCheckUrl();
+        if (checkUrl == null) return true;
+        Document doc = Util.getHtml(checkUrl);
+        return doc != null && !isLoginWall(doc);
+    }
+
     /**
      * Individual site downloaders should override this if they support form-based authentication.
      * @param u Username.
@@ -148,4 +348,42 @@ public abstract class Downloader {
     String getSiteLoginUrl() {
         return null;
     }
+
+    /**
+     * Individual site downloaders which support form-based authentication should override this to supply the url of a
+     * page which is only shown to logged in users, so that we can check whether we're logged in.
+     * @return Session check url, or null.
+     */
+    String getSessionCheckUrl() {
+        return null;
+    }
+
+    /**
+     * Individual site downloaders which support form-based authentication should override this to recognize the page
+     * the site shows instead of the one we asked for when we aren't logged in.
+     * @param doc Page.
+     * @return True if the page is asking us to log in.
+     */
+    boolean isLoginWall(Document doc) {
+        return false;
+    }
+
+    /**
+     * What a listing page says about one of the stories on it.
+     */
+    static final class ListedStory {
+        /**
+         * Date the story was last updated, in the same format as {@link Story#getDateUpdated()}.
+         */
+        private final String dateUpdated;
+        /**
+         * Number of chapters in the story.
+         */
+        private final int chapterCount;
+
+        ListedStory(String dateUpdated, int chapterCount) {
+            this.dateUpdated = dateUpdated;
+            this.chapterCount = chapterCount;
+        }
+    }
 }
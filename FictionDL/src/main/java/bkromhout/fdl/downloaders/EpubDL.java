@@ -1,23 +1,51 @@
 package bkromhout.fdl.downloaders;
 
 import bkromhout.fdl.FictionDL;
+import bkromhout.fdl.epub.EpubOutput;
+import bkromhout.fdl.epub.EpubRewriter;
+import bkromhout.fdl.epub.OutputManifest;
+import bkromhout.fdl.epub.ZipWriter;
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.rx.RxOkHttpCall;
 import bkromhout.fdl.site.Site;
 import bkromhout.fdl.stories.Story;
 import bkromhout.fdl.util.C;
 import bkromhout.fdl.util.ProgressHelper;
 import bkromhout.fdl.util.Util;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.HashingSink;
+import okio.Okio;
+import okio.Sink;
+import rx.Observable;
+import rx.schedulers.Schedulers;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 /**
  * Base class for downloaders which get stories by downloading ePUBs for them.
+ * <p>
+ * ePUBs are downloaded using the shared OkHttpClient, several at once (up to the site's connection limit), and are
+ * streamed straight to disk. Stories with detail tags have them applied to the ePUB's metadata before it's saved.
+ * Progress is reported as bytes arrive.
  */
 abstract class EpubDL extends Downloader {
+    /**
+     * Maximum number of bytes to read from a response at once.
+     */
+    private static final long CHUNK_SIZE = 64 * 1024;
+    /**
+     * Maximum number of ePUBs to download at once.
+     */
+    private final int maxConcurrentStories;
 
     /**
      * Create a new {@link EpubDL}.
@@ -25,6 +53,19 @@ abstract class EpubDL extends Downloader {
      */
     EpubDL(Site site) {
         super(site);
+        this.maxConcurrentStories = site.getMaxConnections();
+    }
+
+    /**
+     * Download several ePUBs at once.
+     * @param stories Stories to download and save.
+     */
+    @Override
+    void downloadStories(List<Story> stories) {
+        Observable.from(stories)
+                  .flatMap(this::downloadEpub, maxConcurrentStories)
+                  .toBlocking()
+                  .lastOrDefault(null);
     }
 
     /**
@@ -33,20 +74,139 @@ abstract class EpubDL extends Downloader {
      */
     @Override
     protected void downloadStory(Story story) {
-        Util.logf(C.DL_EPUB_FOR, Util.unEscapeAmps(story.getTitle()));
-        ProgressHelper.recalcUnitWorth(0L); // Set unit worth to one story's worth.
-        // Figure out save file path and download URI.
-        Path file = FictionDL.getOutPath().resolve(Util.makeEpubFname(story.getTitle(), story.getAuthor()));
-        URI dlUrl = URI.create(story.getUrl());
-
-        try (final InputStream in = dlUrl.toURL().openStream()) {
-            // Download the ePUB file.
-            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
-            Util.log(C.DONE + C.N);
+        downloadEpub(story).toBlocking().lastOrDefault(null);
+    }
+
+    /**
+     * Download a story's ePUB file and save it. Progress is updated whether we succeed or not.
+     * @param story Story to download and save.
+     * @return Observable which emits whether the story was saved, then completes. Never errors.
+     */
+    private Observable<Boolean> downloadEpub(Story story) {
+        return Observable.just(new Request.Builder().url(story.getUrl()).build())
+                         .doOnNext(request -> Util.logf(C.DL_EPUB_FOR, Util.unEscapeAmps(story.getTitle())))
+                         .compose(new RxOkHttpCall())
+                         // Saving the ePUB blocks, so get off of the OkHttp dispatcher threads first.
+                         .observeOn(Schedulers.io())
+                         .map(response -> saveEpub(story, response))
+                         .onErrorReturn(t -> {
+                             Util.log(t.getMessage());
+                             Util.logf(C.EPUB_DL_FAILED, Util.unEscapeAmps(story.getTitle()));
+                             ProgressHelper.storyFailed(1L, 1L);
+                             return false;
+                         });
+    }
+
+    /**
+     * Stream a story's ePUB from a response to a temporary file, then move it into place if it's different from the
+     * one we saved last time.
+     * <p>
+     * If the story has detail tags, the ePUB is downloaded into memory instead, so that its metadata can be patched
+     * using an {@link EpubRewriter} before it's written. If that fails, the ePUB is saved as-is.
+     * <p>
+     * If the response has a content length, progress is reported in bytes, and the ePUB is only saved if we got
+     * exactly that many bytes. Otherwise, the whole story's progress is reported once it's done.
+     * @param story    Story.
+     * @param response Successful response whose body is the ePUB. Will be closed.
+     * @return True if the ePUB was saved (or was already up to date), otherwise false.
+     */
+    private boolean saveEpub(Story story, Response response) {
+        String fileName = Util.makeEpubFname(story.getTitle(), story.getAuthor());
+        Path file = FictionDL.getOutPath().resolve(fileName);
+        long contentLength = response.body().contentLength();
+        // Use bytes as work units if we know how many we'll get, otherwise the whole story is a single work unit.
+        long unitsInStory = contentLength > 0L ? contentLength : 1L;
+        long bytesRead = 0L;
+        Path temp = null;
+        try (BufferedSource source = response.body().source()) {
+            temp = Files.createTempFile(FictionDL.getOutPath(), ".fdl-", ".tmp");
+            Buffer memory = hasDetailTags(story) ? new Buffer() : null;
+            String contentHash = null;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                // Move the response's buffer segments straight to the file (or memory), hashing them on the way.
+                Sink fileSink = Okio.sink(Channels.newOutputStream(channel));
+                HashingSink sink = HashingSink.sha256(memory != null ? memory : fileSink);
+                Buffer buffer = new Buffer();
+                for (long read; (read = source.read(buffer, CHUNK_SIZE)) != -1L; ) {
+                    sink.write(buffer, read);
+                    bytesRead += read;
+                    if (contentLength > 0L) ProgressHelper.finishedWorkUnits(read, unitsInStory);
+                }
+                sink.flush();
+                if (contentLength >= 0L && bytesRead != contentLength)
+                    throw new IOException(String.format(C.EPUB_LENGTH_MISMATCH, bytesRead, contentLength));
+
+                if (memory != null) {
+                    // Try to patch the metadata. If we can't, write the original ePUB to the file after all.
+                    contentHash = rewriteEpub(story, memory.snapshot().toByteArray(), file, fileName);
+                    if (contentHash == null) {
+                        memory.readAll(fileSink);
+                        fileSink.flush();
+                    }
+                }
+                if (contentHash == null) {
+                    channel.force(true);
+                    contentHash = sink.hash().hex();
+                    // Only replace the file if it has actually changed.
+                    if (Files.isRegularFile(file) && contentHash.equals(OutputManifest.getContentHash(story, fileName)))
+                        Util.loudf(C.EPUB_UNCHANGED, file.toAbsolutePath());
+                    else Util.replaceFile(temp, file);
+                }
+            }
+            OutputManifest.record(story, fileName, contentHash);
+            Metrics.epubSaved();
+            if (contentLength <= 0L) ProgressHelper.finishedWorkUnits(1L, 1L);
+            Util.logf(C.SAVED_STORY, Util.unEscapeAmps(story.getTitle()));
+            return true;
         } catch (IOException e) {
+            Util.log(e.getMessage());
             Util.logf(C.SAVE_FILE_FAILED, file.toAbsolutePath().toString());
+            ProgressHelper.storyFailed(contentLength > 0L ? Math.max(contentLength - bytesRead, 1L) : 1L,
+                    unitsInStory);
+            return false;
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // Nothing else we can do.
+                }
+            }
+        }
+    }
+
+    /**
+     * Patch an ePUB's metadata using a story's detail tags, and save it if its content has changed.
+     * @param story    Story.
+     * @param epub     The ePUB, as downloaded.
+     * @param file     File to save the ePUB to.
+     * @param fileName Name of the file.
+     * @return Content hash of the patched ePUB, or null if it couldn't be patched (in which case nothing was saved).
+     * @throws IOException if the patched ePUB couldn't be saved.
+     */
+    private static String rewriteEpub(Story story, byte[] epub, Path file, String fileName) throws IOException {
+        ZipWriter zip;
+        String contentHash;
+        try {
+            zip = new EpubRewriter(epub).rewrite(file, EpubOutput.deflater(), story.getDetailTags());
+            contentHash = zip.contentHash();
+        } catch (IOException e) {
+            Util.logf(C.EPUB_REWRITE_FAILED, Util.unEscapeAmps(story.getTitle()), e.getMessage());
+            return null;
         }
-        // We update the progress bar whether we succeed or not.
-        ProgressHelper.finishedWorkUnit();
+        // Only replace the file if it has actually changed.
+        if (Files.isRegularFile(file) && contentHash.equals(OutputManifest.getContentHash(story, fileName)))
+            Util.loudf(C.EPUB_UNCHANGED, file.toAbsolutePath());
+        else zip.commit();
+        return contentHash;
+    }
+
+    /**
+     * Check whether a story has any detail tags with values.
+     * @param story Story.
+     * @return True if it does.
+     */
+    private static boolean hasDetailTags(Story story) {
+        return story.getDetailTags().values().stream().anyMatch(value -> value != null && !value.isEmpty());
     }
 }
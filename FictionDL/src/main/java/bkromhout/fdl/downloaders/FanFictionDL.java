@@ -2,8 +2,12 @@ package bkromhout.fdl.downloaders;
 
 import bkromhout.fdl.chapter.Chapter;
 import bkromhout.fdl.site.Sites;
+import bkromhout.fdl.stories.FanFictionStory;
+import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,7 +34,7 @@ public class FanFictionDL extends ParsingDL {
     @Override
     protected void generateChapTitle(Chapter chapter) {
         // Try to find a <select> element on the page that has chapter titles.
-        Element titleElement = chapter.rawHtml.select("select#chap_select > option[selected]").first();
+        Element titleElement = select(chapter.rawHtml, "select#chap_select > option[selected]").first();
 
         // If the story is chaptered, we'll find the <select> element and can get the chapter title from that (we
         // strip off the leading "#. " part of it). If the story is only one chapter, we just call it "Chapter 1".
@@ -59,4 +63,26 @@ public class FanFictionDL extends ParsingDL {
         // Ensure that any "noshade" attributes are non-boolean, XHTML doesn't like boolean attributes.
         chapter.content = chapter.content.replace("noshade", "noshade=\"noshade\"");
     }
+
+    /**
+     * Parse the stories on a FanFiction.net user page, which includes both the user's own stories and their favorites.
+     * Each one has its story ID, updated date, and chapter count in data attributes.
+     * @param doc User page.
+     * @return Stories on the page, keyed by {@link bkromhout.fdl.parsing.StoryEntry#getKey()}.
+     */
+    @Override
+    Map<String, ListedStory> parseListing(Document doc) {
+        Map<String, ListedStory> listed = new HashMap<>();
+        for (Element story : doc.select("div.z-list[data-storyid][data-dateupdate][data-chapters]")) {
+            try {
+                String key = Sites.FFN().canonicalize(String.format(FanFictionStory.FFN_S_URL,
+                        story.attr("data-storyid")));
+                listed.put(key, new ListedStory(FanFictionStory.dateFromFfnTime(story.attr("data-dateupdate")),
+                        Integer.parseInt(story.attr("data-chapters"))));
+            } catch (NumberFormatException ignored) {
+                // If we can't make sense of it, the story's model will just be built as usual.
+            }
+        }
+        return listed;
+    }
 }
@@ -1,7 +1,6 @@
 package bkromhout.fdl.downloaders;
 
 import bkromhout.fdl.chapter.Chapter;
-import bkromhout.fdl.parsing.StoryEntry;
 import bkromhout.fdl.site.Sites;
 import bkromhout.fdl.stories.FanFictionStory;
 import bkromhout.fdl.stories.FictionHuntStory;
@@ -35,9 +34,10 @@ public class FictionHuntDL extends ParsingDL {
         if (((FictionHuntStory) story).isOnFfn()) {
             // Story still on FanFiction.net, which is preferable, so we'll add a FFN url so it gets downloaded later.
             Util.logf(C.FH_ON_FFN, story.getTitle());
-            StoryEntry ffnStoryEntry = new StoryEntry(String.format(FanFictionStory.FFN_S_URL, story.getStoryId()));
-            ffnStoryEntry.addDetailTags(story.getDetailTags());
-            Sites.FFN().getStoryEntries().add(ffnStoryEntry);
+            // If the input file already had this story's FFN url, we'll just add our detail tags to that entry. Like
+            // with any other duplicate entry, the later entry's details win, and ours come after the whole input file.
+            Sites.FFN().addStoryEntry(String.format(FanFictionStory.FFN_S_URL, story.getStoryId()))
+                       .addDetailTags(story.getDetailTags());
         } else {
             // Just do the normal thing.
             super.downloadStory(story);
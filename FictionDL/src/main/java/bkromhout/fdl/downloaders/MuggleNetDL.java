@@ -2,12 +2,15 @@ package bkromhout.fdl.downloaders;
 
 import bkromhout.fdl.chapter.Chapter;
 import bkromhout.fdl.site.Sites;
+import bkromhout.fdl.stories.Story;
 import okhttp3.MultipartBody;
 import okhttp3.RequestBody;
+import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,6 +26,10 @@ public class MuggleNetDL extends ParsingDL {
      * MuggleNet login page url.
      */
     private static final String MN_L_URL = "http://fanfiction.mugglenet.com/user.php?action=login";
+    /**
+     * MuggleNet account page url, which shows the login form instead if we aren't logged in.
+     */
+    private static final String MN_ACCOUNT_URL = "http://fanfiction.mugglenet.com/user.php";
 
     /**
      * Create a new {@link MuggleNetDL}.
@@ -48,6 +55,16 @@ public class MuggleNetDL extends ParsingDL {
         return MN_L_URL;
     }
 
+    @Override
+    protected String getSessionCheckUrl() {
+        return MN_ACCOUNT_URL;
+    }
+
+    @Override
+    protected boolean isLoginWall(Document doc) {
+        return !select(doc, "input[name=\"penname\"]").isEmpty();
+    }
+
     /**
      * Creates a title for a chapter by parsing the actual title from {@link Chapter#rawHtml}.
      * @param chapter Chapter object.
@@ -55,7 +72,7 @@ public class MuggleNetDL extends ParsingDL {
     @Override
     protected void generateChapTitle(Chapter chapter) {
         // Try to find a <select> element on the page that has chapter titles.
-        Element titleElement = chapter.rawHtml.select("select[name=\"chapter\"] > option[selected]").first();
+        Element titleElement = select(chapter.rawHtml, "select[name=\"chapter\"] > option[selected]").first();
 
         // If the story is chaptered, we'll find the <select> element and can get the chapter title from that (we
         // strip off the leading "#. " part of it). If the story is only one chapter, we just call it "Chapter 1".
@@ -74,6 +91,21 @@ public class MuggleNetDL extends ParsingDL {
         }
     }
 
+    /**
+     * MuggleNet's whole story page is split like other eFiction sites', but its notes are in blockquotes too, which we
+     * change to divs like {@link #extractChapText(Chapter)} does.
+     * @param story Story which the page is for.
+     * @param doc   Whole story page.
+     * @return Chapters with their titles and content filled in.
+     */
+    @Override
+    protected List<Chapter> splitWholeStory(Story story, Document doc) {
+        List<Chapter> chapters = super.splitWholeStory(story, doc);
+        if (chapters != null)
+            chapters.forEach(chapter -> chapter.content = chapter.content.replace("blockquote", "div"));
+        return chapters;
+    }
+
     /**
      * MuggleNet chapters' raw HTML first needs to have number of extra elements removed from
      * <code>div.contentLeft</code> (which is where the various notes and the chapter content are, alongside the extra
@@ -88,7 +120,7 @@ public class MuggleNetDL extends ParsingDL {
     protected void extractChapText(Chapter chapter) {
         StringBuilder chapterText = new StringBuilder();
 
-        Elements content = chapter.rawHtml.select(chapTextSelector);
+        Elements content = select(chapter.rawHtml, chapTextSelector);
         Iterator<Element> iterator = content.iterator();
         while (iterator.hasNext()) {
             chapterText.append(iterator.next().html());
@@ -4,34 +4,66 @@ import bkromhout.fdl.EpubCreator;
 import bkromhout.fdl.FictionDL;
 import bkromhout.fdl.chapter.Chapter;
 import bkromhout.fdl.chapter.ChapterSource;
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.metrics.Stage;
+import bkromhout.fdl.net.ChapterScheduler;
 import bkromhout.fdl.rx.RxChapAction;
-import bkromhout.fdl.rx.RxMakeChapters;
-import bkromhout.fdl.rx.RxOkHttpCall;
+import bkromhout.fdl.rx.RxParseChapters;
 import bkromhout.fdl.site.Site;
 import bkromhout.fdl.stories.Story;
+import bkromhout.fdl.util.Benchmark;
 import bkromhout.fdl.util.C;
 import bkromhout.fdl.util.ImageHelper;
+import bkromhout.fdl.util.Patterns;
 import bkromhout.fdl.util.ProgressHelper;
 import bkromhout.fdl.util.Util;
 import nl.siegmann.epublib.domain.Resource;
-import okhttp3.Request;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.Elements;
 import rx.Observable;
 import rx.schedulers.Schedulers;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Base class for downloaders which get stories by scraping their site HTML, and then generating story ePUB files by
  * parsing and cleaning the scraped HTML data.
  */
 abstract class ParsingDL extends Downloader {
+    /**
+     * Maximum number of stories to download at once. Enough that the {@link ChapterScheduler} can interleave chapters
+     * from several stories, without holding too many stories' chapters in memory at once.
+     */
+    private static final int MAX_CONCURRENT_STORIES = 4;
+    /**
+     * CSS selector for the chapter title elements on an eFiction site's printable whole story page. Each one starts a
+     * new chapter.
+     */
+    static final String EFICTION_CHAP_TITLE_SELECTOR = "div.chaptertitle, div#chaptertitle";
+    /**
+     * CSS selector for the page chrome which follows the last chapter on an eFiction site's printable whole story page.
+     */
+    static final String EFICTION_FOOTER_SELECTOR = "div#footer, div.footer, div#copyright, div.copyright, div.jumpmenu";
+    /**
+     * Regex to strip the leading "#. " from chapter titles on whole story pages.
+     */
+    private static final Pattern CHAP_NUM_PREFIX_PATTERN = Pattern.compile("^\\d+\\.\\s*");
     /**
      * CSS selector string to extract chapter content from {@link Chapter#rawHtml}.
      */
     final String chapTextSelector;
+    /**
+     * Compiled regexes and CSS selectors for this downloader's site.
+     */
+    private final Patterns patterns;
 
     /**
      * Create a new {@link ParsingDL}.
@@ -43,25 +75,44 @@ abstract class ParsingDL extends Downloader {
     ParsingDL(Site site, String chapTextSelector) {
         super(site);
         this.chapTextSelector = chapTextSelector;
+        this.patterns = site.getPatterns();
+    }
+
+    /**
+     * Download several stories at once, so that the {@link ChapterScheduler} can share each host between them.
+     * @param stories Stories to download and save.
+     */
+    @Override
+    void downloadStories(List<Story> stories) {
+        Observable.from(stories)
+                  .flatMap(story -> Observable.just(story)
+                                              .doOnNext(this::downloadStory)
+                                              .subscribeOn(Schedulers.io()), MAX_CONCURRENT_STORIES)
+                  .toBlocking()
+                  .lastOrDefault(null);
     }
 
     /**
      * Download the chapters of a story, get their titles, extract their content, then process everything and save the
      * story as an ePUB file.
+     * <p>
+     * This may be called for several stories at once, so progress is reported using each story's own chapter count,
+     * and log lines name the story they're for.
      * @param story Story to download and save.
      * @see Story
      */
     @Override
     protected void downloadStory(Story story) {
-        ProgressHelper.recalcUnitWorth(story.getChapterUrlCount());
+        long chapCount = story.getChapterUrlCount();
         // Create Chapter objects.
-        ArrayList<Chapter> chapters = (ArrayList<Chapter>) downloadStoryChaps(story)
-                .compose(new RxChapAction(this::generateChapTitle))
-                .compose(new RxChapAction(this::extractChapText))
-                .compose(new RxChapAction(this::sanitizeChap))
-                .compose(new RxChapAction(this::inlineImages))
-                .compose(new RxChapAction(chapter -> ProgressHelper.finishedWorkUnit()))
-                .doOnCompleted(() -> Util.log(C.SANITIZING_CHAPS))
+        ArrayList<Chapter> chapters = (ArrayList<Chapter>) getStoryChaps(story)
+                .compose(new RxChapAction(Metrics.timed(Stage.SANITIZE, this::sanitizeChap)))
+                .compose(new RxChapAction(Metrics.timed(Stage.IMAGE_INLINE, this::inlineImages)))
+                .compose(new RxChapAction(Metrics.timed(Stage.CHAPTER_WRITE, Chapter::finish)))
+                .compose(new RxChapAction(chapter -> {
+                    ProgressHelper.finishedWorkUnit(chapCount);
+                    Benchmark.chapterDone();
+                }))
                 .observeOn(Schedulers.immediate())
                 .toSortedList(Chapter::sort) // Get the chapters as a list.
                 .toBlocking()
@@ -71,27 +122,128 @@ abstract class ParsingDL extends Downloader {
         assert chapters != null;
         // Make sure we got all of the chapters. If we didn't we won't continue with this story, it fails.
         if (story.getChapterUrlCount() != chapters.size()) {
-            Util.log(C.PARTIAL_DL_FAIL);
+            // If the site went down part way through, we say so instead, and record the story to try again later.
+            if (!skippedBecauseSiteDown(story.getUrl()))
+                Util.logf(C.PARTIAL_DL_FAIL, Util.unEscapeAmps(story.getTitle()));
             // Add the number of chapters which failed to download to the number of work units completed so that the
             // progress bar remains accurate.
-            ProgressHelper.storyFailed(story.getChapterUrlCount() - chapters.size());
+            ProgressHelper.storyFailed(chapCount - chapters.size(), chapCount);
         } else {
             // Associate the chapters with the story.
             story.setChapters(chapters);
-            // Save the story as an ePUB file.
-            Util.logf(C.SAVING_STORY);
-            new EpubCreator(story).makeEpub(FictionDL.getOutPath());
-            Util.log(C.DONE + C.N);
+            // Save the story as an ePUB file on the output stage, so that this thread can move on to the next story.
+            new EpubCreator(story).makeEpubAsync(FictionDL.getOutPath()).thenAccept(saved -> {
+                if (saved) Util.logf(C.SAVED_STORY, Util.unEscapeAmps(story.getTitle()));
+            });
         }
     }
 
+    /**
+     * Get a story's chapters, with their titles and content. If the story has a whole story page, we try to get every
+     * chapter from it with a single request, and fall back to downloading each chapter separately if we can't.
+     * @param story Story to get chapters for.
+     * @return Observable which emits {@link Chapter Chapters} that have their {@link Chapter#title title} and {@link
+     * Chapter#content content} fields filled in.
+     */
+    private Observable<Chapter> getStoryChaps(Story story) {
+        List<Chapter> chapters = downloadWholeStory(story);
+        if (chapters != null) return Observable.from(chapters);
+        return downloadStoryChaps(story)
+                .compose(new RxChapAction(this::generateChapTitle))
+                .compose(new RxChapAction(this::extractChapText));
+    }
+
+    /**
+     * Download a story's whole story page and split it into {@link Chapter Chapters}.
+     * @param story Story to download chapters for.
+     * @return Chapters with their titles and content filled in, or null if the story doesn't have a whole story page,
+     * or we couldn't download it or split it into the right number of chapters.
+     * @see Story#getWholeStoryUrl()
+     */
+    private List<Chapter> downloadWholeStory(Story story) {
+        String url = story.getWholeStoryUrl();
+        if (url == null) return null;
+        Util.logf(C.DL_WHOLE_STORY_FOR, Util.unEscapeAmps(story.getTitle()));
+
+        long wallSeenAt = System.currentTimeMillis();
+        Document doc = Util.getHtml(url);
+        // If our session expired, log in again and give it one more try.
+        if (doc != null && isLoginWall(doc)) doc = reauthenticate(wallSeenAt) ? Util.getHtml(url) : null;
+        List<Chapter> chapters = doc != null && !isLoginWall(doc) ? splitWholeStory(story, doc) : null;
+        if (chapters == null || chapters.size() != story.getChapterUrlCount()) {
+            Util.logf(C.WHOLE_STORY_FAILED, Util.unEscapeAmps(story.getTitle()));
+            return null;
+        }
+        return chapters;
+    }
+
+    /**
+     * Split a story's whole story page into {@link Chapter Chapters}.
+     * <p>
+     * By default, this expects an eFiction printable page, where each chapter starts with an element matching {@link
+     * #EFICTION_CHAP_TITLE_SELECTOR}. Subclasses whose sites have different whole story pages should override this.
+     * @param story Story which the page is for.
+     * @param doc   Whole story page.
+     * @return Chapters with their titles and content filled in, in order. If the page can't be split, this may return
+     * null or the wrong number of chapters, and each chapter will be downloaded separately instead.
+     */
+    List<Chapter> splitWholeStory(Story story, Document doc) {
+        return splitOnTitles(story, doc, EFICTION_CHAP_TITLE_SELECTOR, EFICTION_FOOTER_SELECTOR);
+    }
+
+    /**
+     * Split a whole story page into {@link Chapter Chapters} in a single pass, where each chapter starts with a title
+     * element and runs until the next title element. The last chapter runs until the end of the element which holds
+     * it, or until the page's footer, whichever comes first. Titles have any leading "#. " and trailing " by Author"
+     * removed.
+     * @param story          Story which the page is for.
+     * @param doc            Whole story page.
+     * @param titleSelector  CSS selector for the chapter title elements.
+     * @param footerSelector CSS selector for the page chrome after the last chapter.
+     * @return Chapters with their titles and content filled in, in order.
+     */
+    List<Chapter> splitOnTitles(Story story, Document doc, String titleSelector, String footerSelector) {
+        Elements titles = select(doc, titleSelector);
+        // Nodes which end a chapter: titles, footers, and anything which holds a footer. Some of a footer's ancestors
+        // will be the titles' ancestors too, but that's fine, since we only ever look at the siblings after a title.
+        Set<Node> stops = Collections.newSetFromMap(new IdentityHashMap<>());
+        stops.addAll(titles);
+        for (Element footer : select(doc, footerSelector)) {
+            stops.add(footer);
+            stops.addAll(footer.parents());
+        }
+        String bySuffix = " by " + story.getAuthor();
+
+        List<Chapter> chapters = new ArrayList<>(titles.size());
+        for (Element titleElement : titles) {
+            // Everything after the title, up to the next title or the footer, is chapter content.
+            StringBuilder content = new StringBuilder();
+            for (Node node = titleElement.nextSibling(); node != null && !stops.contains(node);
+                 node = node.nextSibling())
+                content.append(node.outerHtml());
+
+            int number = chapters.size() + 1;
+            String title = titleElement.text().trim();
+            if (title.endsWith(bySuffix)) title = title.substring(0, title.length() - bySuffix.length());
+            title = CHAP_NUM_PREFIX_PATTERN.matcher(title.trim()).replaceFirst("");
+            Chapter chapter = new ChapterSource(content.toString(), number).toChapter(story);
+            if (chapter == null) return null;
+            chapter.title = !title.isEmpty() ? title : String.format("Chapter %d", number);
+            chapters.add(chapter);
+        }
+        return chapters;
+    }
+
     /**
      * Uses {@link Story#chapterUrls} to create {@link Chapter Chapters}.
      * <p>
      * The {@link Chapter Chapters} that the returned Observable emits are guaranteed to have {@link Chapter#rawHtml}
      * and {@link Chapter#number} populated. <i>However</i>, there is no guarantee that <i>all</i> of the urls will be
-     * successfully downloaded and made into {@link Chapter Chapters}, and the numbers assigned may be incorrect if some
-     * downloads fail.
+     * successfully downloaded and made into {@link Chapter Chapters}. Each request is tagged with its chapter number,
+     * so the numbers are correct even if some downloads fail or are redirected.
+     * <p>
+     * Response bodies are only read into buffers on the network threads; they're parsed on the {@link RxParseChapters}
+     * parse threads, so that slow parsing doesn't hold up reading from the network.
      * <p>
      * Side-effect: This method calls rx.Observable#subscribeOn(Scheduler) and passes it Schedulers#newThread().
      * @param story Story to download chapters for.
@@ -101,16 +253,40 @@ abstract class ParsingDL extends Downloader {
      */
     private Observable<Chapter> downloadStoryChaps(Story story) {
         // Get chapters.
+        List<String> urls = story.getChapterUrls();
         return Observable
-                .from(story.getChapterUrls()) // Create an observable using the chapter urls from the story.
+                .range(0, urls.size()) // Create an observable using the indices of the chapter urls from the story.
                 .doOnSubscribe(() -> Util.logf(C.DL_CONTENT_FOR, Util.unEscapeAmps(story.getTitle())))
                 .subscribeOn(Schedulers.newThread())
-                .map(url -> new Request.Builder().url(url).build()) // Create OkHttp Requests from urls.
-                .compose(new RxOkHttpCall()) // Get Responses by executing Requests.
-                .map(ChapterSource::new) // Wrap the Responses in ChapterSources.
-                .compose(new RxMakeChapters(story)) // Create Chapter objects.
+                .map(i -> ChapterSource.requestFor(urls.get(i), i + 1)) // Create Requests tagged with chapter numbers.
+                .toList()
+                // Get Responses by scheduling the Requests. Each story's weight is the inverse of its length, so short
+                // stories get a bigger share of each host and finish (and get saved) sooner.
+                .flatMap(requests -> ChapterScheduler.get().fetch(requests, 1d / Math.max(1, requests.size())))
+                .map(r -> new ChapterSource(r).buffer()) // Buffer the Responses' bodies, still on the network threads.
+                .compose(new RxParseChapters(story)) // Create Chapter objects on the parse threads.
                 .observeOn(Schedulers.computation())
-                .filter(chap -> chap.rawHtml != null); // Filter out any nulls, they're chapters we failed to make.
+                .filter(chap -> chap != null && chap.rawHtml != null) // Filter out chapters we failed to make.
+                // Make sure we didn't get login pages instead of chapters. Logging in again and re-downloading blocks,
+                // so it's done on the IO scheduler rather than tying up a computation thread.
+                .flatMap(chap -> !isLoginWall(chap.rawHtml) ? Observable.just(chap)
+                        : Observable.fromCallable(() -> checkForLoginWall(chap)).subscribeOn(Schedulers.io()));
+    }
+
+    /**
+     * Check whether we got a login page instead of a chapter, which happens if our session expires while we're
+     * downloading. If we did, log in again and download the chapter again.
+     * @param chapter Chapter.
+     * @return The chapter, or a new copy of it with the re-downloaded raw HTML if we had to download it again.
+     */
+    private Chapter checkForLoginWall(Chapter chapter) {
+        if (!isLoginWall(chapter.rawHtml)) return chapter;
+        long wallSeenAt = System.currentTimeMillis();
+        Util.logf(C.GOT_LOGIN_WALL, chapter.number, Util.unEscapeAmps(chapter.story.getTitle()));
+        // If we can't log in again, just carry on with what we got; the chapter will fail as it would have anyway.
+        if (!reauthenticate(wallSeenAt)) return chapter;
+        Document rawHtml = Util.getHtml(chapter.rawHtml.location());
+        return rawHtml != null ? chapter.withRawHtml(rawHtml) : chapter;
     }
 
     /**
@@ -144,11 +320,22 @@ abstract class ParsingDL extends Downloader {
      */
     void extractChapText(Chapter chapter) {
         // Get the chapter's text, keeping all HTML formatting intact.
-        String chapterText = chapter.rawHtml.select(chapTextSelector).first().html();
-        // Put the chapter's text into a chapter HTML template.
+        String chapterText = select(chapter.rawHtml, chapTextSelector).first().html();
+        // Use the chapter's text as its content; it's put into the chapter HTML template once the chapter is finished.
         chapter.contentFromString(chapterText);
     }
 
+    /**
+     * Select elements using a CSS selector which is only parsed once for this downloader's site, rather than once per
+     * chapter.
+     * @param root     Element to select from.
+     * @param cssQuery CSS selector.
+     * @return Matching elements.
+     */
+    Elements select(Element root, String cssQuery) {
+        return patterns.select(root, cssQuery);
+    }
+
     /**
      * Cleans up the String in {@link Chapter#content} so that it is safe to put in an ePUB file.
      * <p>
@@ -169,12 +356,13 @@ abstract class ParsingDL extends Downloader {
         // Create resource base name using chapter number.
         String baseResourceName = "chap_" + chapter.number + "_img_";
         // Parse chapter string into Document.
-        Document content = Jsoup.parse(chapter.content, chapter.story.getChapterUrls().get(chapter.number - 1));
+        Document content = Jsoup.parseBodyFragment(chapter.content,
+                chapter.story.getChapterUrls().get(chapter.number - 1));
         // Inline images. This will modify the content document and return the downloaded images.
         List<Resource> chapImageResources = new ImageHelper(content, baseResourceName).getImageResources();
         // Set new content with replaced <img> tags, then add all image resources.
         content.outputSettings().syntax(Document.OutputSettings.Syntax.xml);
-        chapter.content = content.toString();
+        chapter.content = content.body().html();
         chapter.story.getImageResources().addAll(chapImageResources);
     }
 }
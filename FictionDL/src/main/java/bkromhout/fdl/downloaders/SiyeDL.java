@@ -32,7 +32,7 @@ public class SiyeDL extends ParsingDL {
     @Override
     protected void generateChapTitle(Chapter chapter) {
         // Try to find a <select> element on the page that has chapter titles.
-        Element titleElement = chapter.rawHtml.select("select[name=\"chapter\"] > option[selected]").first();
+        Element titleElement = select(chapter.rawHtml, "select[name=\"chapter\"] > option[selected]").first();
 
         // If the story is chaptered, we'll find the <select> element and can get the chapter title from that (we
         // strip off the leading "#. " part of it). If the story is only one chapter, we just call it "Chapter 1".
@@ -61,11 +61,11 @@ public class SiyeDL extends ParsingDL {
         StringBuilder chapterText = new StringBuilder();
 
         // So, we need to get a number of things here. First off, we must grab the author's notes (if there are any).
-        Element anElement = chapter.rawHtml.select("div#notes").first();
+        Element anElement = select(chapter.rawHtml, "div#notes").first();
         if (anElement != null) chapterText.append(anElement.html()).append("<hr /><br />");
 
         // Then, we have to get the actual chapter text itself.
-        chapterText.append(chapter.rawHtml.select("td[colspan=\"2\"] span").first().html());
+        chapterText.append(select(chapter.rawHtml, "td[colspan=\"2\"] span").first().html());
         chapter.contentFromString(chapterText.toString());
     }
 }
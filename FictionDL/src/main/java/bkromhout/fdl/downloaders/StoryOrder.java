@@ -0,0 +1,63 @@
+package bkromhout.fdl.downloaders;
+
+import bkromhout.fdl.stories.Story;
+import bkromhout.fdl.util.C;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Policies for the order in which a site's stories are downloaded, once we know how many chapters each one has.
+ * <p>
+ * Stories which are downloaded at the same time still have their chapters interleaved by the {@link
+ * bkromhout.fdl.net.ChapterScheduler ChapterScheduler}; the order decides which stories are started first.
+ */
+public enum StoryOrder {
+    /**
+     * The order that the stories were given in the input file.
+     */
+    INPUT("input"),
+    /**
+     * Shortest stories first, so that as many ePUBs as possible are saved as early as possible.
+     */
+    SHORTEST_FIRST("sjf"),
+    /**
+     * Longest stories first, so that a long story isn't left downloading by itself at the end of the run.
+     */
+    LONGEST_FIRST("ljf");
+
+    /**
+     * Name used to choose this order on the command line.
+     */
+    private final String name;
+
+    StoryOrder(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the story order with the given name.
+     * @param name Name of the story order, or null.
+     * @return Story order, or {@link #INPUT} if name is null.
+     * @throws IllegalArgumentException if there's no story order with the given name.
+     */
+    public static StoryOrder fromName(String name) {
+        if (name == null) return INPUT;
+        for (StoryOrder order : values()) if (order.name.equalsIgnoreCase(name.trim())) return order;
+        throw new IllegalArgumentException(String.format(C.INVALID_STORY_ORDER, name));
+    }
+
+    /**
+     * Sort stories into this order. Stories which are tied keep the order they were in.
+     * @param stories Stories, in input file order.
+     */
+    public void sort(List<Story> stories) {
+        if (this == SHORTEST_FIRST) stories.sort(Comparator.comparingInt(Story::getChapterUrlCount));
+        else if (this == LONGEST_FIRST) stories.sort(Comparator.comparingInt(Story::getChapterUrlCount).reversed());
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
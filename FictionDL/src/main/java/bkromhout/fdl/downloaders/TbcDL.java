@@ -5,6 +5,7 @@ import bkromhout.fdl.site.Sites;
 import bkromhout.fdl.util.Util;
 import okhttp3.MultipartBody;
 import okhttp3.RequestBody;
+import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 
 /**
@@ -15,6 +16,10 @@ public class TbcDL extends ParsingDL {
      * The Broom Cupboard login page url.
      */
     private static final String TBC_L_URL = "http://www.thebroomcupboard.net/processlogin.php?cid=";
+    /**
+     * The Broom Cupboard home page url, which has the login form on it if we aren't logged in.
+     */
+    private static final String TBC_HOME_URL = "http://www.thebroomcupboard.net/";
 
     /**
      * Create a new {@link TbcDL}.
@@ -40,6 +45,16 @@ public class TbcDL extends ParsingDL {
         return TBC_L_URL;
     }
 
+    @Override
+    protected String getSessionCheckUrl() {
+        return TBC_HOME_URL;
+    }
+
+    @Override
+    protected boolean isLoginWall(Document doc) {
+        return !select(doc, "input[name=\"txtusername\"]").isEmpty();
+    }
+
     /**
      * Creates a title for a chapter by parsing the actual title from {@link Chapter#rawHtml}.
      * @param chapter Chapter object.
@@ -47,7 +62,7 @@ public class TbcDL extends ParsingDL {
     @Override
     protected void generateChapTitle(Chapter chapter) {
         // All Broom Cupboard stories have their chapter titles in a common place. :)
-        chapter.title = chapter.rawHtml.select("div#nav25 > center").first().text();
+        chapter.title = select(chapter.rawHtml, "div#nav25 > center").first().text();
     }
 
     /**
@@ -62,15 +77,15 @@ public class TbcDL extends ParsingDL {
     @Override
     protected void extractChapText(Chapter chapter) {
         // Get content container div from raw HTML.
-        Element container = chapter.rawHtml.select("div#nav25").first();
+        Element container = select(chapter.rawHtml, "div#nav25").first();
         // Start index should be 2 more than the index of the chapter title. This way, we don't include the actual
         // title or the obligatory empty <p> that immediately follows it.
-        int startIdx = container.select("center").first().siblingIndex() + 2;
+        int startIdx = select(container, "center").first().siblingIndex() + 2;
         // End index should be the index of the last <p> element, which we don't want to include since it is always
         // either empty (for oneshots) or a <select> element (for chaptered stories).
-        Element lastChapSelect = container.select("table:has(select)").last();
+        Element lastChapSelect = select(container, "table:has(select)").last();
         int endIdx = lastChapSelect != null ? lastChapSelect.siblingIndex() :
-                container.select("p").last().siblingIndex();
+                select(container, "p").last().siblingIndex();
         // Create the chapter content string and put it into the chapter.
         chapter.contentFromString(Util.divFromChildCopies(container, startIdx, endIdx).html().trim());
     }
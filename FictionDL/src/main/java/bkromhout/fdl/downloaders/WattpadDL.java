@@ -33,7 +33,7 @@ public class WattpadDL extends ParsingDL {
         StringBuilder chapterText = new StringBuilder();
 
         // Get all of the chapter text elements, which are (thankfully) stored in <p> elements.
-        Elements pElements = chapter.rawHtml.select(chapTextSelector);
+        Elements pElements = select(chapter.rawHtml, chapTextSelector);
         // Then strip the data-p-id attribute, and append to the chapterText string.
         for (Element p : pElements) {
             p.removeAttr("data-p-id");
@@ -0,0 +1,85 @@
+package bkromhout.fdl.epub;
+
+import bkromhout.fdl.metrics.Metrics;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The ePUB output stage, which builds and writes ePUB files off of the downloading threads.
+ * <p>
+ * Jobs run on a small pool of writer threads, and each ePUB's entries are compressed in parallel on a separate pool
+ * which is sized to the number of processors. The writer queue is bounded; once it's full, the thread submitting a job
+ * runs it itself, which keeps finished stories (and all of their chapters) from piling up in memory if writing can't
+ * keep up with downloading.
+ */
+public abstract class EpubOutput {
+    /**
+     * Number of ePUBs which can be written at once.
+     */
+    private static final int WRITERS = 2;
+    /**
+     * Number of ePUBs which can be waiting to be written.
+     */
+    private static final int QUEUE_SIZE = 4;
+    /**
+     * Executor which compresses ePUB entries.
+     */
+    private static final ExecutorService deflater = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setNameFormat("fdl-epub-deflate-%d").setDaemon(true).build());
+    /**
+     * Executor which runs ePUB output jobs.
+     */
+    private static final ThreadPoolExecutor writer = new ThreadPoolExecutor(WRITERS, WRITERS, 0L,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+            new ThreadFactoryBuilder().setNameFormat("fdl-epub-writer-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    /**
+     * Jobs which haven't finished yet.
+     */
+    private static final Set<CompletableFuture<Boolean>> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Get the executor which ePUB entries should be compressed on.
+     * @return Compression executor.
+     */
+    public static ExecutorService deflater() {
+        return deflater;
+    }
+
+    /**
+     * Run an output job on the output stage.
+     * @param job Job which writes an ePUB and returns true if it succeeded. Shouldn't throw.
+     * @return Future which completes with the result of the job.
+     */
+    public static CompletableFuture<Boolean> submit(Supplier<Boolean> job) {
+        CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(job, writer);
+        pending.add(future);
+        Metrics.gauge("epub_output_queue_depth", writer.getQueue().size());
+        future.whenComplete((saved, t) -> {
+            pending.remove(future);
+            Metrics.gauge("epub_output_queue_depth", writer.getQueue().size());
+        });
+        return future;
+    }
+
+    /**
+     * Wait for all submitted jobs to finish, including any which are submitted while waiting.
+     */
+    public static void awaitAll() {
+        while (!pending.isEmpty()) {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                             .exceptionally(t -> null)
+                             .join();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package bkromhout.fdl.epub;
+
+import bkromhout.fdl.util.C;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Entities;
+import org.jsoup.parser.Parser;
+import org.jsoup.select.Elements;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Rewrites an ePUB which was downloaded from a site so that our detail tags are applied to its metadata, without
+ * repacking the whole thing.
+ * <p>
+ * The ePUB is worked on in memory, before it's written to disk. Only the package document (OPF) is decompressed and
+ * patched; every other entry is copied over exactly as it was, still compressed, so rewriting costs little more than
+ * copying the file. ZIP64 files aren't supported, and neither is anything else that makes the ePUB unreadable to us; in
+ * those cases an IOException is thrown and the caller should save the original.
+ */
+public class EpubRewriter {
+    /**
+     * Number of bytes in the end of central directory record, not counting the comment.
+     */
+    private static final int EOCD_SIZE = 22;
+    /**
+     * ePUB container file name.
+     */
+    private static final String CONTAINER_PATH = "META-INF/container.xml";
+    /**
+     * Detail tags which are added to the package document as subjects, mapped to the labels to use for them.
+     */
+    private static final String[][] SUBJECT_TAGS = {{C.J_FIC_TYPE, "Fic Type"}, {C.J_WARNINGS, "Warnings"},
+            {C.J_RATING, "Rated"}, {C.J_GENRES, "Genres"}, {C.J_CHARACTERS, "Characters"}};
+    /**
+     * The ePUB file's bytes.
+     */
+    private final ByteBuffer epub;
+    /**
+     * Entries from the ePUB's central directory, in order.
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Create a new {@link EpubRewriter} by reading an ePUB's central directory.
+     * @param epub The ePUB file's bytes. Must not be modified afterwards.
+     * @throws IOException if the ePUB isn't a ZIP file that we can read.
+     */
+    public EpubRewriter(byte[] epub) throws IOException {
+        this.epub = ByteBuffer.wrap(epub).order(ByteOrder.LITTLE_ENDIAN);
+        readCentralDirectory();
+    }
+
+    /**
+     * Rewrite the ePUB with its metadata patched using the given detail tags.
+     * @param target     File which the rewritten ePUB will be written to.
+     * @param executor   Executor to compress the patched entry on.
+     * @param detailTags Detail tags. Tags which are null or empty are ignored.
+     * @return ZipWriter with all of the rewritten ePUB's entries added, which will write the file once committed.
+     * @throws IOException if the ePUB's package document can't be found or read.
+     */
+    public ZipWriter rewrite(Path target, Executor executor, Map<String, String> detailTags) throws IOException {
+        Entry opfEntry = find(findOpfPath());
+        if (opfEntry == null) throw new IOException(C.EPUB_NO_OPF);
+
+        ZipWriter zip = new ZipWriter(target, executor);
+        for (Entry entry : entries) {
+            if (entry == opfEntry)
+                zip.addDeflated(entry.name, patchOpf(new String(inflate(entry), StandardCharsets.UTF_8), detailTags)
+                        .getBytes(StandardCharsets.UTF_8));
+            else zip.addRaw(entry.name, entry.method, entry.crc, entry.size, rawData(entry));
+        }
+        return zip;
+    }
+
+    /**
+     * Patch a package document's metadata using detail tags.
+     * @param opf        Package document XML.
+     * @param detailTags Detail tags.
+     * @return Patched package document XML.
+     */
+    static String patchOpf(String opf, Map<String, String> detailTags) {
+        Document doc = Jsoup.parse(opf, "", Parser.xmlParser());
+        doc.outputSettings().syntax(Document.OutputSettings.Syntax.xml).escapeMode(Entities.EscapeMode.xhtml)
+           .charset(StandardCharsets.UTF_8).prettyPrint(false);
+        Elements found = doc.getElementsByTag("metadata");
+        if (found.isEmpty()) found = doc.getElementsByTag("opf:metadata");
+        if (found.isEmpty()) return opf;
+        Element metadata = found.first();
+
+        replaceDc(metadata, "dc:title", detailTags.get(C.J_TITLE));
+        replaceDc(metadata, "dc:creator", detailTags.get(C.J_AUTHOR));
+        replaceDc(metadata, "dc:description", detailTags.get(C.J_SUMMARY));
+        String series = detailTags.get(C.J_SERIES);
+        if (series != null && !series.isEmpty()) {
+            // Use the same namespace prefix as the metadata element, if it has one.
+            String metaTag = metadata.tagName().contains(":")
+                    ? metadata.tagName().substring(0, metadata.tagName().indexOf(':') + 1) + "meta" : "meta";
+            metadata.getElementsByAttributeValue("name", "calibre:series").remove();
+            metadata.appendElement(metaTag).attr("name", "calibre:series").attr("content", series);
+        }
+        for (String[] tag : SUBJECT_TAGS) {
+            String value = detailTags.get(tag[0]);
+            if (value != null && !value.isEmpty()) metadata.appendElement("dc:subject").text(tag[1] + ": " + value);
+        }
+        return doc.outerHtml();
+    }
+
+    /**
+     * Replace the value of a Dublin Core metadata element, replacing any other elements with the same name.
+     * @param metadata Metadata element.
+     * @param tagName  Dublin Core element name, such as "dc:title".
+     * @param value    New value. If null or empty, nothing is changed.
+     */
+    private static void replaceDc(Element metadata, String tagName, String value) {
+        if (value == null || value.isEmpty()) return;
+        Elements existing = metadata.getElementsByTag(tagName);
+        if (existing.isEmpty()) {
+            metadata.appendElement(tagName).text(value);
+            return;
+        }
+        existing.first().text(value);
+        for (int i = 1; i < existing.size(); i++) existing.get(i).remove();
+    }
+
+    /**
+     * Find the path of the package document, using the container file if we can, or else the first ".opf" entry.
+     * @return Path of the package document, or null if there doesn't seem to be one.
+     * @throws IOException if the container file can't be decompressed.
+     */
+    private String findOpfPath() throws IOException {
+        Entry container = find(CONTAINER_PATH);
+        if (container != null) {
+            Document doc = Jsoup.parse(new String(inflate(container), StandardCharsets.UTF_8), "",
+                    Parser.xmlParser());
+            Element rootFile = doc.select("rootfile[full-path]").first();
+            if (rootFile != null) return rootFile.attr("full-path");
+        }
+        for (Entry entry : entries) if (entry.name.toLowerCase().endsWith(".opf")) return entry.name;
+        return null;
+    }
+
+    /**
+     * Find an entry by name.
+     * @param name Entry name.
+     * @return Entry, or null if there isn't one with that name.
+     */
+    private Entry find(String name) {
+        if (name == null) return null;
+        for (Entry entry : entries) if (entry.name.equals(name)) return entry;
+        return null;
+    }
+
+    /**
+     * Read the central directory so that we know where each entry is.
+     * @throws IOException if the central directory can't be found or read.
+     */
+    private void readCentralDirectory() throws IOException {
+        // Find the end of central directory record, which is followed by a comment of up to 64KiB.
+        int eocd = -1;
+        for (int i = epub.limit() - EOCD_SIZE; i >= Math.max(0, epub.limit() - EOCD_SIZE - 0xFFFF); i--) {
+            if (epub.getInt(i) == 0x06054b50) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) throw new IOException(C.EPUB_NOT_A_ZIP);
+        int count = epub.getShort(eocd + 10) & 0xFFFF;
+        long cdOffset = epub.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cdOffset == 0xFFFFFFFFL) throw new IOException(C.EPUB_NOT_A_ZIP);
+
+        int pos = (int) cdOffset;
+        for (int i = 0; i < count; i++) {
+            checkBounds(pos, 46);
+            if (epub.getInt(pos) != 0x02014b50) throw new IOException(C.EPUB_NOT_A_ZIP);
+            int method = epub.getShort(pos + 10) & 0xFFFF;
+            long crc = epub.getInt(pos + 16) & 0xFFFFFFFFL;
+            long compressedSize = epub.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = epub.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = epub.getShort(pos + 28) & 0xFFFF;
+            int extraLength = epub.getShort(pos + 30) & 0xFFFF;
+            int commentLength = epub.getShort(pos + 32) & 0xFFFF;
+            long headerOffset = epub.getInt(pos + 42) & 0xFFFFFFFFL;
+            checkBounds(pos + 46, nameLength);
+            String name = new String(epub.array(), pos + 46, nameLength, StandardCharsets.UTF_8);
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || headerOffset == 0xFFFFFFFFL)
+                throw new IOException(C.EPUB_NOT_A_ZIP);
+            if (method != ZipWriter.STORED && method != ZipWriter.DEFLATED) throw new IOException(C.EPUB_NOT_A_ZIP);
+
+            // The entry's data starts after its local header, whose extra field can differ from the central one.
+            checkBounds((int) headerOffset, 30);
+            if (epub.getInt((int) headerOffset) != 0x04034b50) throw new IOException(C.EPUB_NOT_A_ZIP);
+            int dataOffset = (int) headerOffset + 30 + (epub.getShort((int) headerOffset + 26) & 0xFFFF) +
+                    (epub.getShort((int) headerOffset + 28) & 0xFFFF);
+            checkBounds(dataOffset, compressedSize);
+            entries.add(new Entry(name, method, crc, compressedSize, size, dataOffset));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Make sure a range is within the ePUB.
+     * @param offset Start of the range.
+     * @param length Length of the range.
+     * @throws IOException if the range isn't within the ePUB.
+     */
+    private void checkBounds(int offset, long length) throws IOException {
+        if (offset < 0 || offset + length > epub.limit()) throw new IOException(C.EPUB_NOT_A_ZIP);
+    }
+
+    /**
+     * Get an entry's data exactly as it is in the ePUB.
+     * @param entry Entry.
+     * @return Raw (possibly compressed) data.
+     */
+    private byte[] rawData(Entry entry) {
+        return Arrays.copyOfRange(epub.array(), entry.dataOffset, entry.dataOffset + (int) entry.compressedSize);
+    }
+
+    /**
+     * Get an entry's uncompressed data.
+     * @param entry Entry.
+     * @return Uncompressed data.
+     * @throws IOException if the entry can't be decompressed.
+     */
+    private byte[] inflate(Entry entry) throws IOException {
+        if (entry.method == ZipWriter.STORED) return rawData(entry);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(epub.array(), entry.dataOffset, (int) entry.compressedSize);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) entry.size);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buf);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException(C.EPUB_NOT_A_ZIP);
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(C.EPUB_NOT_A_ZIP, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * An entry from the central directory.
+     */
+    private static final class Entry {
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long compressedSize;
+        /**
+         * Uncompressed size.
+         */
+        private final long size;
+        /**
+         * Offset of the entry's data in the ePUB.
+         */
+        private final int dataOffset;
+
+        private Entry(String name, int method, long crc, long compressedSize, long size, int dataOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.dataOffset = dataOffset;
+        }
+    }
+}
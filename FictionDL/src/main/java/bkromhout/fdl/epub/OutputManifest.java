@@ -0,0 +1,199 @@
+package bkromhout.fdl.epub;
+
+import bkromhout.fdl.stories.Story;
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers what we last saved for each story in the output directory, so that stories which haven't changed since
+ * the last run can be skipped without downloading their chapters, and ePUBs whose content hasn't changed aren't
+ * rewritten.
+ * <p>
+ * Stories are keyed by their site's host and their story ID, which is the same as their {@link
+ * bkromhout.fdl.parsing.StoryEntry#getKey() StoryEntry key}. Stories without a story ID (such as local stories) are
+ * never recorded.
+ */
+public abstract class OutputManifest {
+    /**
+     * Name of the manifest file in the output directory.
+     */
+    public static final String FILE_NAME = ".fdl-manifest.json";
+    /**
+     * Manifest entries, keyed by story key.
+     */
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * Manifest file, or null if no manifest has been loaded.
+     */
+    private static Path file = null;
+    /**
+     * If true, {@link #isUnchanged(Story)} always returns false.
+     */
+    private static boolean force = false;
+
+    /**
+     * Load the manifest from an output directory. If there isn't one, or it can't be read, we start with an empty one.
+     * @param outDir Output directory.
+     * @param force  If true, treat every story as having changed.
+     */
+    public static synchronized void load(Path outDir, boolean force) {
+        OutputManifest.file = outDir.resolve(FILE_NAME);
+        OutputManifest.force = force;
+        entries.clear();
+        if (!Files.isRegularFile(file)) return;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Map<String, Entry> loaded = new Gson().fromJson(reader,
+                    new TypeToken<TreeMap<String, Entry>>() {}.getType());
+            if (loaded != null) entries.putAll(loaded);
+        } catch (IOException | JsonParseException e) {
+            Util.logf(C.MANIFEST_READ_FAILED, file, e.getMessage());
+        }
+    }
+
+    /**
+     * Save the manifest back to the output directory, if one was loaded.
+     */
+    public static synchronized void save() {
+        if (file == null) return;
+        try {
+            Path temp = Files.createTempFile(file.getParent(), ".fdl-", ".tmp");
+            try {
+                try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    new GsonBuilder().setPrettyPrinting().create().toJson(new TreeMap<>(entries), writer);
+                }
+                Util.replaceFile(temp, file);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            Util.logf(C.MANIFEST_WRITE_FAILED, file, e.getMessage());
+        }
+    }
+
+    /**
+     * Check whether a story is the same as when we last saved it, so it doesn't need to be downloaded again. That's the
+     * case if it has the same updated date and chapter count as before, and the file we saved it to is still there.
+     * @param story Story, which only needs to have had its info populated.
+     * @return True if the story hasn't changed.
+     */
+    public static boolean isUnchanged(Story story) {
+        String key = keyFor(story);
+        return key != null && isUnchanged(key, story.getDateUpdated(), story.getChapterUrlCount());
+    }
+
+    /**
+     * Check whether a story is the same as when we last saved it, using details which we got without building its
+     * model (such as from a listing page).
+     * @param key          Story key.
+     * @param dateUpdated  Story's updated date, in the same format as {@link Story#getDateUpdated()}.
+     * @param chapterCount Story's chapter count.
+     * @return True if the story hasn't changed.
+     * @see #isUnchanged(Story)
+     */
+    public static boolean isUnchanged(String key, String dateUpdated, int chapterCount) {
+        if (force || file == null) return false;
+        Entry entry = entries.get(key);
+        return entry != null && dateUpdated != null && dateUpdated.equals(entry.dateUpdated) &&
+                chapterCount == entry.chapterCount && Files.isRegularFile(file.resolveSibling(entry.fileName));
+    }
+
+    /**
+     * Get the listing url which we saved for a story, so that it can be checked for updates along with the other
+     * stories on the same listing page.
+     * @param key Story key.
+     * @return Listing url from {@link Story#getListingUrl()}, or null if we don't have one or every story is being
+     * treated as changed.
+     */
+    public static String getListingUrl(String key) {
+        if (force || file == null) return null;
+        Entry entry = entries.get(key);
+        return entry != null ? entry.listingUrl : null;
+    }
+
+    /**
+     * Get the content hash of the ePUB we last saved for a story, if we'd save it to the same file again.
+     * @param story    Story.
+     * @param fileName Name of the file which the story will be saved to.
+     * @return Content hash, or null if we haven't saved the story under that file name before.
+     */
+    public static String getContentHash(Story story, String fileName) {
+        Entry entry = get(story);
+        return entry != null && fileName.equals(entry.fileName) ? entry.contentHash : null;
+    }
+
+    /**
+     * Record that a story has been saved.
+     * @param story       Story.
+     * @param fileName    Name of the file which the story was saved to.
+     * @param contentHash Content hash of the ePUB, from {@link ZipWriter#contentHash()}.
+     */
+    public static void record(Story story, String fileName, String contentHash) {
+        String key = keyFor(story);
+        if (key == null) return;
+        entries.put(key, new Entry(story.getDateUpdated(), story.getChapterUrlCount(), contentHash, fileName,
+                story.getListingUrl()));
+    }
+
+    /**
+     * Get a story's manifest entry.
+     * @param story Story.
+     * @return Entry, or null if there isn't one.
+     */
+    private static Entry get(Story story) {
+        String key = keyFor(story);
+        return key != null ? entries.get(key) : null;
+    }
+
+    /**
+     * Get the key for a story.
+     * @param story Story.
+     * @return Key, which is the story's host and story ID, or null if it doesn't have both.
+     */
+    private static String keyFor(Story story) {
+        if (story.getHost() == null || story.getStoryId() == null) return null;
+        return story.getHost() + "/" + story.getStoryId();
+    }
+
+    /**
+     * What we remember about a saved story. Serialized by Gson.
+     */
+    private static final class Entry {
+        private final String dateUpdated;
+        private final int chapterCount;
+        /**
+         * Hash of the ePUB's uncompressed entries.
+         */
+        private final String contentHash;
+        /**
+         * Name of the ePUB file in the output directory.
+         */
+        private final String fileName;
+        /**
+         * Url of a page which lists the story along with others, or null. Missing from entries saved by older
+         * versions.
+         */
+        private final String listingUrl;
+
+        private Entry(String dateUpdated, int chapterCount, String contentHash, String fileName, String listingUrl) {
+            this.dateUpdated = dateUpdated;
+            this.chapterCount = chapterCount;
+            this.contentHash = contentHash;
+            this.fileName = fileName;
+            this.listingUrl = listingUrl;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package bkromhout.fdl.epub;
+
+import bkromhout.fdl.util.Util;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes ZIP files (and so ePUB files) without going through {@link java.util.zip.ZipOutputStream}, so that entries
+ * can be compressed in parallel.
+ * <p>
+ * Each entry starts compressing on the given executor as soon as it's added. When {@link #commit()} is called, the
+ * compressed entries are written in the order they were added to a temporary file next to the target, which is then
+ * synced to disk and atomically moved into place. If anything goes wrong, the target is left as it was, so a crash can
+ * never leave behind a truncated file which looks complete.
+ * <p>
+ * A hash of the entries' uncompressed content is available from {@link #contentHash()}, which can be used to tell
+ * whether the file would actually change, since the bytes on disk also depend on entry timestamps.
+ * <p>
+ * Only what ePUBs need is supported: no ZIP64, so no more than 65535 entries and no more than 4GiB in total.
+ */
+public class ZipWriter {
+    /**
+     * STORED compression method.
+     */
+    public static final int STORED = 0;
+    /**
+     * DEFLATED compression method.
+     */
+    public static final int DEFLATED = 8;
+    /**
+     * Size of the write buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Largest value which fits in a ZIP field that isn't ZIP64.
+     */
+    private static final long MAX_U32 = 0xFFFFFFFFL;
+    /**
+     * General purpose flag which indicates that entry names are UTF-8.
+     */
+    private static final int FLAG_UTF8 = 0x0800;
+    /**
+     * File to write.
+     */
+    private final Path target;
+    /**
+     * Executor to compress entries on.
+     */
+    private final Executor executor;
+    /**
+     * Entries, in the order they were added, each of which may still be compressing.
+     */
+    private final List<CompletableFuture<Entry>> entries = new ArrayList<>();
+    /**
+     * DOS-format modification time used for every entry.
+     */
+    private final int dosTime;
+    /**
+     * DOS-format modification date used for every entry.
+     */
+    private final int dosDate;
+
+    /**
+     * Create a new {@link ZipWriter}.
+     * @param target   File to write. Its parent directory must exist.
+     * @param executor Executor to compress entries on.
+     */
+    public ZipWriter(Path target, Executor executor) {
+        this.target = target.toAbsolutePath();
+        this.executor = executor;
+        LocalDateTime now = LocalDateTime.now();
+        this.dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        this.dosDate = ((Math.max(now.getYear(), 1980) - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+    }
+
+    /**
+     * Add an entry which is stored without compression, such as an ePUB's "mimetype" entry.
+     * @param name Entry name.
+     * @param data Entry data.
+     */
+    public void addStored(String name, byte[] data) {
+        entries.add(CompletableFuture.completedFuture(
+                new Entry(name, STORED, crc(data), data.length, data, Hashing.sha256().hashBytes(data))));
+    }
+
+    /**
+     * Add an entry which is compressed in the background. If compressing it doesn't make it any smaller, it's stored
+     * instead, which is what usually happens with images.
+     * @param name Entry name.
+     * @param data Entry data. Must not be modified afterwards.
+     */
+    public void addDeflated(String name, byte[] data) {
+        entries.add(CompletableFuture.supplyAsync(() -> {
+            byte[] compressed = deflate(data);
+            HashCode digest = Hashing.sha256().hashBytes(data);
+            return compressed.length < data.length
+                    ? new Entry(name, DEFLATED, crc(data), data.length, compressed, digest)
+                    : new Entry(name, STORED, crc(data), data.length, data, digest);
+        }, executor));
+    }
+
+    /**
+     * Add an entry which has already been compressed, such as one copied from another ZIP file. Since the data isn't
+     * decompressed, the entry's CRC-32 and size stand in for its content in {@link #contentHash()}.
+     * @param name       Entry name.
+     * @param method     Compression method, either {@link #STORED} or {@link #DEFLATED}.
+     * @param crc        CRC-32 of the uncompressed data.
+     * @param size       Size of the uncompressed data.
+     * @param compressed Compressed data.
+     */
+    public void addRaw(String name, int method, long crc, long size, byte[] compressed) {
+        HashCode digest = Hashing.sha256().newHasher().putLong(crc).putLong(size).hash();
+        entries.add(CompletableFuture.completedFuture(new Entry(name, method, crc, size, compressed, digest)));
+    }
+
+    /**
+     * Wait for all entries to finish compressing, then hash the entries' names and uncompressed content, in order.
+     * @return Hex-encoded SHA-256 hash.
+     * @throws IOException if an entry failed to compress.
+     */
+    public String contentHash() throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (CompletableFuture<Entry> future : entries) {
+            Entry entry = join(future);
+            hasher.putInt(entry.name.length).putBytes(entry.name).putBytes(entry.digest.asBytes());
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Wait for all entries to finish compressing, write them to a temporary file, sync it, and then move it to the
+     * target path, replacing anything already there.
+     * @throws IOException if the file can't be written, in which case the target is left untouched.
+     */
+    public void commit() throws IOException {
+        Path temp = Files.createTempFile(target.getParent(), ".fdl-", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                write(channel);
+                channel.force(true);
+            }
+            Util.replaceFile(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Write the whole ZIP file to a channel.
+     * @param channel Channel to write to.
+     * @throws IOException if the channel can't be written to, or an entry failed to compress.
+     */
+    private void write(FileChannel channel) throws IOException {
+        if (entries.size() > 0xFFFF) throw new IOException("Too many ZIP entries: " + entries.size());
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        List<Entry> written = new ArrayList<>(entries.size());
+        long offset = 0L;
+        // Write each entry's local header and data, in order, as soon as it's been compressed.
+        for (CompletableFuture<Entry> future : entries) {
+            Entry entry = join(future);
+            checkFits(offset);
+            entry.offset = offset;
+            ensureRoom(channel, buf, 30 + entry.name.length);
+            buf.putInt(0x04034b50);
+            putCommonHeader(buf, entry);
+            buf.putShort((short) 0); // Extra field length.
+            buf.put(entry.name);
+            // Big entries skip the buffer.
+            if (entry.data.length > buf.remaining()) {
+                flush(channel, buf);
+                writeFully(channel, ByteBuffer.wrap(entry.data));
+            } else buf.put(entry.data);
+            offset += 30 + entry.name.length + entry.data.length;
+            written.add(entry);
+        }
+
+        // Write the central directory.
+        long cdStart = offset;
+        for (Entry entry : written) {
+            ensureRoom(channel, buf, 46 + entry.name.length);
+            buf.putInt(0x02014b50);
+            buf.putShort((short) 20); // Version made by.
+            putCommonHeader(buf, entry);
+            buf.putShort((short) 0); // Extra field length.
+            buf.putShort((short) 0); // Comment length.
+            buf.putShort((short) 0); // Disk number.
+            buf.putShort((short) 0); // Internal attributes.
+            buf.putInt(0); // External attributes.
+            buf.putInt((int) entry.offset);
+            buf.put(entry.name);
+            offset += 46 + entry.name.length;
+        }
+        checkFits(offset);
+
+        // Write the end of central directory record.
+        ensureRoom(channel, buf, 22);
+        buf.putInt(0x06054b50);
+        buf.putShort((short) 0); // This disk.
+        buf.putShort((short) 0); // Disk with the central directory.
+        buf.putShort((short) written.size());
+        buf.putShort((short) written.size());
+        buf.putInt((int) (offset - cdStart));
+        buf.putInt((int) cdStart);
+        buf.putShort((short) 0); // Comment length.
+        flush(channel, buf);
+    }
+
+    /**
+     * Put the fields which local file headers and central directory headers have in common, starting with "version
+     * needed to extract" and ending with "file name length".
+     * @param buf   Buffer.
+     * @param entry Entry.
+     */
+    private void putCommonHeader(ByteBuffer buf, Entry entry) {
+        buf.putShort((short) 20); // Version needed to extract.
+        buf.putShort((short) FLAG_UTF8);
+        buf.putShort((short) entry.method);
+        buf.putShort((short) dosTime);
+        buf.putShort((short) dosDate);
+        buf.putInt((int) entry.crc);
+        buf.putInt(entry.data.length);
+        buf.putInt((int) entry.size);
+        buf.putShort((short) entry.name.length);
+    }
+
+    /**
+     * Make sure that the buffer has at least the given amount of room, flushing it if it doesn't.
+     * @param channel Channel to flush to.
+     * @param buf     Buffer.
+     * @param needed  Number of bytes needed.
+     * @throws IOException if the channel can't be written to.
+     */
+    private static void ensureRoom(FileChannel channel, ByteBuffer buf, int needed) throws IOException {
+        if (buf.remaining() < needed) flush(channel, buf);
+        if (buf.remaining() < needed) throw new IOException("ZIP entry name is too long.");
+    }
+
+    /**
+     * Write out everything in the buffer and clear it.
+     * @param channel Channel to write to.
+     * @param buf     Buffer.
+     * @throws IOException if the channel can't be written to.
+     */
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        writeFully(channel, buf);
+        buf.clear();
+    }
+
+    /**
+     * Write all of a buffer's remaining bytes to a channel.
+     * @param channel Channel to write to.
+     * @param buf     Buffer.
+     * @throws IOException if the channel can't be written to.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) channel.write(buf);
+    }
+
+    /**
+     * Make sure an offset can be written without ZIP64.
+     * @param offset Offset.
+     * @throws IOException if the offset is too big.
+     */
+    private static void checkFits(long offset) throws IOException {
+        if (offset > MAX_U32) throw new IOException("ZIP file is too large.");
+    }
+
+    /**
+     * Wait for an entry to finish compressing.
+     * @param future Entry future.
+     * @return Entry.
+     * @throws IOException if the entry couldn't be compressed.
+     */
+    private static Entry join(CompletableFuture<Entry> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to compress ZIP entry.", e.getCause());
+        }
+    }
+
+    /**
+     * Compress data using raw deflate, as ZIP files expect.
+     * @param data Data.
+     * @return Compressed data.
+     */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, data.length / 2)];
+            int len = 0;
+            while (!deflater.finished()) {
+                if (len == out.length) out = Arrays.copyOf(out, out.length * 2);
+                len += deflater.deflate(out, len, out.length - len);
+            }
+            return Arrays.copyOf(out, len);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Calculate the CRC-32 of some data.
+     * @param data Data.
+     * @return CRC-32.
+     */
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * A ZIP entry which is ready to be written.
+     */
+    private static final class Entry {
+        private final byte[] name;
+        private final int method;
+        private final long crc;
+        /**
+         * Uncompressed size.
+         */
+        private final long size;
+        /**
+         * Data as it will be written, which is compressed if {@link #method} is {@link #DEFLATED}.
+         */
+        private final byte[] data;
+        /**
+         * Hash of the uncompressed data.
+         */
+        private final HashCode digest;
+        /**
+         * Offset of the entry's local header, set once it's been written.
+         */
+        private long offset;
+
+        private Entry(String name, int method, long crc, long size, byte[] data, HashCode digest) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.digest = digest;
+        }
+    }
+}
@@ -13,6 +13,11 @@ public class IncWorkDoneEvent {
      * Set to true if the units being added are from some failure.
      */
     private final boolean didFail;
+    /**
+     * Total number of work units in the story that the units being added belong to, or 0 to use the progress helper's
+     * current unit worth.
+     */
+    private final long unitsInStory;
 
     /**
      * Create a new {@link IncWorkDoneEvent} to represent that exactly 1 work unit has been finished.
@@ -27,8 +32,21 @@ public class IncWorkDoneEvent {
      * @param didFail    Whether the units that are added from this event are due to failures or not.
      */
     public IncWorkDoneEvent(long unitsToAdd, boolean didFail) {
+        this(unitsToAdd, didFail, 0L);
+    }
+
+    /**
+     * Create a new {@link IncWorkDoneEvent} to represent that some number of work units have been finished for a story
+     * which has a known number of work units. Since the worth of the units is carried with the event, these events can
+     * be posted for several stories at once.
+     * @param unitsToAdd   Work units that have been completed.
+     * @param didFail      Whether the units that are added from this event are due to failures or not.
+     * @param unitsInStory Total number of work units in the story.
+     */
+    public IncWorkDoneEvent(long unitsToAdd, boolean didFail, long unitsInStory) {
         this.unitsToAdd = unitsToAdd;
         this.didFail = didFail;
+        this.unitsInStory = unitsInStory;
     }
 
     /**
@@ -39,6 +57,14 @@ public class IncWorkDoneEvent {
         return unitsToAdd;
     }
 
+    /**
+     * Get the total number of work units in the story that the units being added belong to.
+     * @return Number of work units, or 0 if the progress helper's current unit worth should be used.
+     */
+    public long getUnitsInStory() {
+        return unitsInStory;
+    }
+
     /**
      * Check is the units here were from failures.
      * @return True if so, otherwise false.
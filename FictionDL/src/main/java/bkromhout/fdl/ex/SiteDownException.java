@@ -0,0 +1,17 @@
+package bkromhout.fdl.ex;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making a request to a site whose {@link bkromhout.fdl.net.CircuitBreaker} is open, because the site
+ * seems to be down.
+ */
+public final class SiteDownException extends IOException {
+    /**
+     * Create a new {@link SiteDownException}.
+     * @param message Message.
+     */
+    public SiteDownException(String message) {
+        super(message);
+    }
+}
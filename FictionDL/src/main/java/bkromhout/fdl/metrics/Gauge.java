@@ -0,0 +1,77 @@
+package bkromhout.fdl.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A value which goes up and down over the course of a run, such as a queue depth. Remembers its current value and the
+ * highest value it has been set to, and optionally every change so that it can be plotted.
+ */
+public class Gauge {
+    /**
+     * Maximum number of changes to remember for a plotted gauge. Later changes are dropped.
+     */
+    private static final int MAX_POINTS = 10_000;
+    /**
+     * Current value.
+     */
+    private final AtomicLong value = new AtomicLong();
+    /**
+     * Highest value seen.
+     */
+    private final AtomicLong max = new AtomicLong();
+    /**
+     * Changes, as {elapsed ms, value} pairs, or null if this gauge isn't plotted.
+     */
+    private final List<long[]> points;
+
+    /**
+     * Create a new {@link Gauge}.
+     * @param plotted Whether to remember every change.
+     */
+    Gauge(boolean plotted) {
+        this.points = plotted ? new ArrayList<>() : null;
+    }
+
+    /**
+     * Set the current value.
+     * @param newValue New value.
+     */
+    void set(long newValue) {
+        long oldValue = value.getAndSet(newValue);
+        max.accumulateAndGet(newValue, Math::max);
+        if (points == null) return;
+        synchronized (points) {
+            if (points.size() < MAX_POINTS && (points.isEmpty() || oldValue != newValue))
+                points.add(new long[] {Metrics.elapsedMs(), newValue});
+        }
+    }
+
+    /**
+     * Get the current value.
+     * @return Current value.
+     */
+    public long getValue() {
+        return value.get();
+    }
+
+    /**
+     * Get the highest value seen.
+     * @return Highest value.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the changes to a plotted gauge.
+     * @return Changes, as {elapsed ms, value} pairs in the order they happened, or null if this gauge isn't plotted.
+     */
+    public List<long[]> getPoints() {
+        if (points == null) return null;
+        synchronized (points) {
+            return new ArrayList<>(points);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package bkromhout.fdl.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of latencies with fixed, roughly logarithmic bucket bounds.
+ */
+public class LatencyHistogram {
+    /**
+     * Upper bounds of the buckets, in milliseconds. There is one more bucket than there are bounds, which holds
+     * everything larger than the last bound.
+     */
+    static final long[] BOUNDS_MS = {10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L, 30000L, 60000L};
+    /**
+     * Bucket counts.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MS.length + 1);
+    /**
+     * Total number of samples.
+     */
+    private final AtomicLong count = new AtomicLong();
+    /**
+     * Sum of all samples, in milliseconds.
+     */
+    private final AtomicLong sumMs = new AtomicLong();
+
+    /**
+     * Record a latency sample.
+     * @param ms Latency, in milliseconds.
+     */
+    public void record(long ms) {
+        int i = 0;
+        while (i < BOUNDS_MS.length && ms > BOUNDS_MS[i]) i++;
+        counts.incrementAndGet(i);
+        count.incrementAndGet();
+        sumMs.addAndGet(ms);
+    }
+
+    /**
+     * Get the number of samples.
+     * @return Sample count.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the sum of all samples.
+     * @return Sum, in milliseconds.
+     */
+    public long getSumMs() {
+        return sumMs.get();
+    }
+
+    /**
+     * Get the number of samples in a bucket.
+     * @param bucket Bucket index, in the range [0..{@link #BOUNDS_MS}.length].
+     * @return Number of samples in the bucket.
+     */
+    long getBucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * Estimate a percentile. The estimate is the upper bound of the bucket which the percentile falls into.
+     * @param percentile Percentile, in the range (0..100].
+     * @return Estimated latency in milliseconds, -1 if there are no samples, or {@link Long#MAX_VALUE} if the
+     * percentile falls into the overflow bucket.
+     */
+    public long percentileMs(double percentile) {
+        long total = count.get();
+        if (total == 0L) return -1L;
+        long target = (long) Math.ceil(total * percentile / 100d);
+        long seen = 0L;
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            seen += counts.get(i);
+            if (seen >= target) return BOUNDS_MS[i];
+        }
+        return Long.MAX_VALUE;
+    }
+}
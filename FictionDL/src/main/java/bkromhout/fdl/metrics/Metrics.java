@@ -0,0 +1,225 @@
+package bkromhout.fdl.metrics;
+
+import bkromhout.fdl.site.Site;
+import bkromhout.fdl.site.Sites;
+import rx.functions.Action1;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects metrics about a run: per-site network metrics, time spent in each {@link Stage}, named {@link Gauge}s, and
+ * heap usage.
+ * <p>
+ * Everything here is thread-safe and cheap enough to always be collected; {@link MetricsReport} is used to write it out
+ * at the end of a run if the user asked for it.
+ */
+public abstract class Metrics {
+    /**
+     * Name used for requests to hosts which don't belong to a supported {@link Site}.
+     */
+    static final String OTHER_SITE = "Other";
+    /**
+     * Network metrics, keyed by site name.
+     */
+    private static final ConcurrentHashMap<String, SiteMetrics> sites = new ConcurrentHashMap<>();
+    /**
+     * Total time spent in each stage, in nanoseconds, indexed by {@link Stage#ordinal()}.
+     */
+    private static final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    /**
+     * Number of times each stage was run, indexed by {@link Stage#ordinal()}.
+     */
+    private static final AtomicLongArray stageCounts = new AtomicLongArray(Stage.values().length);
+    /**
+     * Gauges, keyed by name.
+     */
+    private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    /**
+     * How long into the run the first ePUB was saved, in milliseconds, or -1 if none have been.
+     */
+    private static final AtomicLong firstEpubMs = new AtomicLong(-1L);
+    /**
+     * How long into the run the most recent ePUB was saved, in milliseconds, or -1 if none have been.
+     */
+    private static final AtomicLong lastEpubMs = new AtomicLong(-1L);
+    /**
+     * Time that the run started, in nanoseconds.
+     */
+    private static volatile long startNanos = System.nanoTime();
+
+    /**
+     * Reset all metrics (including the JVM's peak heap usage) at the start of a run.
+     */
+    public static void start() {
+        sites.clear();
+        gauges.clear();
+        firstEpubMs.set(-1L);
+        lastEpubMs.set(-1L);
+        for (int i = 0; i < stageNanos.length(); i++) {
+            stageNanos.set(i, 0L);
+            stageCounts.set(i, 0L);
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Get the network metrics for the site which the given host belongs to.
+     * @param host Host name.
+     * @return Site metrics. Hosts which don't belong to a supported site share one set of metrics.
+     */
+    static SiteMetrics forHost(String host) {
+        Site site = Sites.forHost(host);
+        return sites.computeIfAbsent(site != null ? site.getName() : OTHER_SITE, k -> new SiteMetrics());
+    }
+
+    /**
+     * Record time spent in a stage.
+     * @param stage      Stage.
+     * @param startNanos Value of {@link System#nanoTime()} when the stage started.
+     */
+    public static void stageTime(Stage stage, long startNanos) {
+        stageNanos.addAndGet(stage.ordinal(), System.nanoTime() - startNanos);
+        stageCounts.incrementAndGet(stage.ordinal());
+    }
+
+    /**
+     * Wrap an action so that the time spent running it is recorded against a stage.
+     * @param stage  Stage.
+     * @param action Action to wrap.
+     * @param <T>    Type of the action's argument.
+     * @return Wrapped action.
+     */
+    public static <T> Action1<T> timed(Stage stage, Action1<T> action) {
+        return t -> {
+            long start = System.nanoTime();
+            try {
+                action.call(t);
+            } finally {
+                stageTime(stage, start);
+            }
+        };
+    }
+
+    /**
+     * Record that a duplicate request was sent to hedge a slow request.
+     * @param host Host name.
+     */
+    public static void hedgeSent(String host) {
+        forHost(host).hedgeSent();
+    }
+
+    /**
+     * Record that a duplicate request got a response before the request it was hedging.
+     * @param host Host name.
+     */
+    public static void hedgeWon(String host) {
+        forHost(host).hedgeWon();
+    }
+
+    /**
+     * Set the value of a gauge, creating it if needed.
+     * @param name  Gauge name.
+     * @param value New value.
+     */
+    public static void gauge(String name, long value) {
+        gauges.computeIfAbsent(name, k -> new Gauge(false)).set(value);
+    }
+
+    /**
+     * Set the value of a gauge, creating it if needed, and remember when it changed so that it can be plotted over the
+     * course of the run. Only use this for gauges which change now and then, not constantly.
+     * @param name  Gauge name.
+     * @param value New value.
+     */
+    public static void plottedGauge(String name, long value) {
+        gauges.computeIfAbsent(name, k -> new Gauge(true)).set(value);
+    }
+
+    /**
+     * Record that an ePUB has been saved.
+     */
+    public static void epubSaved() {
+        long now = elapsedMs();
+        firstEpubMs.compareAndSet(-1L, now);
+        lastEpubMs.accumulateAndGet(now, Math::max);
+    }
+
+    /**
+     * Get how long into the run the first ePUB was saved. This is how long a user had to wait for their first story.
+     * @return Time to first ePUB, in milliseconds, or -1 if no ePUBs have been saved.
+     */
+    public static long firstEpubMs() {
+        return firstEpubMs.get();
+    }
+
+    /**
+     * Get how long into the run the last ePUB was saved, which is the run's makespan.
+     * @return Time to last ePUB, in milliseconds, or -1 if no ePUBs have been saved.
+     */
+    public static long lastEpubMs() {
+        return lastEpubMs.get();
+    }
+
+    /**
+     * Get the peak heap usage since the last call to {@link #start()}.
+     * @return Peak heap usage, in bytes.
+     */
+    public static long peakHeapBytes() {
+        long peak = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    /**
+     * Get how long the run has taken so far.
+     * @return Elapsed time, in milliseconds.
+     */
+    static long elapsedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Get a snapshot of the per-site metrics.
+     * @return Site metrics, keyed by site name, in sorted order.
+     */
+    static Map<String, SiteMetrics> getSites() {
+        return new TreeMap<>(sites);
+    }
+
+    /**
+     * Get a snapshot of the gauges.
+     * @return Gauges, keyed by name, in sorted order.
+     */
+    static Map<String, Gauge> getGauges() {
+        return new TreeMap<>(gauges);
+    }
+
+    /**
+     * Get the total time spent in a stage.
+     * @param stage Stage.
+     * @return Total time, in milliseconds.
+     */
+    static long getStageMs(Stage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(stageNanos.get(stage.ordinal()));
+    }
+
+    /**
+     * Get the number of times a stage was run.
+     * @param stage Stage.
+     * @return Run count.
+     */
+    static long getStageCount(Stage stage) {
+        return stageCounts.get(stage.ordinal());
+    }
+}
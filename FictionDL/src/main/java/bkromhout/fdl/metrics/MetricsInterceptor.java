@@ -0,0 +1,139 @@
+package bkromhout.fdl.metrics;
+
+import bkromhout.fdl.net.HostRewriteInterceptor;
+import okhttp3.Connection;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OkHttp interceptor which records per-site network {@link Metrics}: latency, bytes read, cache hits, retries, and
+ * failures.
+ * <p>
+ * This must be added as an application interceptor, and the interceptor returned by {@link #network()} must be added as
+ * a network interceptor to the same client so that retries can be counted. OkHttp runs both interceptors for a call on
+ * the same thread, which is how they find each other.
+ */
+public class MetricsInterceptor implements Interceptor {
+    /**
+     * Number of times the current thread's call has hit the network.
+     */
+    private static final ThreadLocal<int[]> attempts = ThreadLocal.withInitial(() -> new int[1]);
+    /**
+     * Connections which have carried at least one request. Weak, so that connections can be garbage collected once the
+     * pool evicts them.
+     */
+    private final Map<Connection, Boolean> seenConnections = Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        SiteMetrics metrics = Metrics.forHost(request.url().host());
+        attempts.get()[0] = 0;
+        long start = System.nanoTime();
+
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            metrics.requestDone(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            Metrics.stageTime(Stage.FETCH, start);
+            metrics.retried(Math.max(0, attempts.get()[0] - 1));
+            metrics.failed(e.getClass().getSimpleName());
+            throw e;
+        }
+        metrics.requestDone(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        Metrics.stageTime(Stage.FETCH, start);
+
+        // Anything beyond the first attempt which wasn't a redirect or auth challenge was a retry.
+        int followUps = 0;
+        for (Response prior = response.priorResponse(); prior != null; prior = prior.priorResponse()) followUps++;
+        metrics.retried(Math.max(0, attempts.get()[0] - 1 - followUps));
+
+        if (response.cacheResponse() != null && response.networkResponse() == null) metrics.cacheHit();
+        if (!response.isSuccessful()) metrics.failed("HTTP " + response.code());
+
+        ResponseBody body = response.body();
+        if (body == null) return response;
+        return response.newBuilder().body(new CountingResponseBody(body, metrics)).build();
+    }
+
+    /**
+     * Get the network interceptor which counts how many times each call hits the network, and whether each attempt
+     * reused a pooled connection.
+     * @return Network interceptor.
+     */
+    public Interceptor network() {
+        return chain -> {
+            attempts.get()[0]++;
+            Connection connection = chain.connection();
+            if (connection != null) Metrics.forHost(originalHost(chain.request())).connectionUsed(
+                    seenConnections.put(connection, Boolean.TRUE) != null);
+            return chain.proceed(chain.request());
+        };
+    }
+
+    /**
+     * Get the host that a request was originally for, even if a {@link HostRewriteInterceptor} has sent it somewhere
+     * else.
+     * @param request Request.
+     * @return Original host.
+     */
+    private static String originalHost(Request request) {
+        HttpUrl original = HttpUrl.parse(String.valueOf(request.header(HostRewriteInterceptor.ORIGINAL_URL_HEADER)));
+        return original != null ? original.host() : request.url().host();
+    }
+
+    /**
+     * Response body which records the number of bytes read from it.
+     */
+    private static final class CountingResponseBody extends ResponseBody {
+        private final ResponseBody body;
+        private final BufferedSource source;
+
+        /**
+         * Create a new {@link CountingResponseBody}.
+         * @param body    Body to wrap.
+         * @param metrics Site metrics to record bytes to.
+         */
+        private CountingResponseBody(ResponseBody body, SiteMetrics metrics) {
+            this.body = body;
+            this.source = Okio.buffer(new ForwardingSource(body.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read > 0L) metrics.bytesRead(read);
+                    return read;
+                }
+            });
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return body.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+    }
+}
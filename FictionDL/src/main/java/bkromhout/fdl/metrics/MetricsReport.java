@@ -0,0 +1,336 @@
+package bkromhout.fdl.metrics;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes out the {@link Metrics} collected during a run.
+ * <p>
+ * The JSON report is meant for humans and ad-hoc tooling, the CSV report has one {@code section,name,metric,value} row
+ * per value so that runs can easily be compared, and the Prometheus report uses the text exposition format so that it
+ * can be picked up by node_exporter's textfile collector.
+ */
+public class MetricsReport {
+    /**
+     * Name of the JSON report file.
+     */
+    public static final String JSON_FILE = "fdl-metrics.json";
+    /**
+     * Name of the CSV report file.
+     */
+    public static final String CSV_FILE = "fdl-metrics.csv";
+    /**
+     * Name of the Prometheus request latency histogram.
+     */
+    private static final String HTTP_DURATION = "fdl_http_request_duration_seconds";
+    /**
+     * Number of stories which were successfully downloaded.
+     */
+    private final long storiesDownloaded;
+    /**
+     * Number of stories which we tried to download.
+     */
+    private final long storiesTotal;
+    /**
+     * Name of the order that stories were downloaded in.
+     */
+    private final String storyOrder;
+
+    /**
+     * Create a new {@link MetricsReport} from the current state of {@link Metrics}.
+     * @param storiesDownloaded Number of stories which were successfully downloaded.
+     * @param storiesTotal      Number of stories which we tried to download.
+     * @param storyOrder        Name of the order that stories were downloaded in.
+     */
+    public MetricsReport(long storiesDownloaded, long storiesTotal, String storyOrder) {
+        this.storiesDownloaded = storiesDownloaded;
+        this.storiesTotal = storiesTotal;
+        this.storyOrder = storyOrder;
+    }
+
+    /**
+     * Write the JSON and CSV reports to the given directory.
+     * @param dir Directory to write to. Will be created if it doesn't exist.
+     * @throws IOException if the reports can't be written.
+     */
+    public void writeReports(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        try (Writer writer = Files.newBufferedWriter(dir.resolve(JSON_FILE), StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(toMap(), writer);
+        }
+        Files.write(dir.resolve(CSV_FILE), toCsv(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the Prometheus text format report to the given file.
+     * @param file File to write to. Is written to a temporary file first and then moved into place, so that a
+     *             collector never sees a partial file.
+     * @throws IOException if the report can't be written.
+     */
+    public void writePrometheus(Path file) throws IOException {
+        Path absFile = file.toAbsolutePath();
+        Files.createDirectories(absFile.getParent());
+        Path temp = absFile.resolveSibling(absFile.getFileName() + ".tmp");
+        Files.write(temp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, absFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Build the JSON report's structure.
+     * @return Map which Gson can serialize.
+     */
+    private Map<String, Object> toMap() {
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("elapsedMs", Metrics.elapsedMs());
+        root.put("storiesDownloaded", storiesDownloaded);
+        root.put("storiesTotal", storiesTotal);
+        root.put("storyOrder", storyOrder);
+        root.put("firstEpubMs", Metrics.firstEpubMs());
+        root.put("makespanMs", Metrics.lastEpubMs());
+        root.put("peakHeapBytes", Metrics.peakHeapBytes());
+
+        Map<String, Object> sites = new LinkedHashMap<>();
+        Metrics.getSites().forEach((name, m) -> {
+            Map<String, Object> site = new LinkedHashMap<>();
+            site.put("requests", m.getRequests());
+            site.put("bytes", m.getBytes());
+            site.put("cacheHits", m.getCacheHits());
+            site.put("connectionsOpened", m.getConnectionsOpened());
+            site.put("connectionsReused", m.getConnectionsReused());
+            site.put("retries", m.getRetries());
+            site.put("hedges", m.getHedges());
+            site.put("hedgeWins", m.getHedgeWins());
+            site.put("hedgeWinRate", m.getHedgeWinRate());
+            site.put("failures", m.getFailures());
+            LatencyHistogram h = m.getLatency();
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("sumMs", h.getSumMs());
+            latency.put("p50Ms", h.percentileMs(50d));
+            latency.put("p95Ms", h.percentileMs(95d));
+            latency.put("p99Ms", h.percentileMs(99d));
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i <= LatencyHistogram.BOUNDS_MS.length; i++)
+                buckets.put(bucketLabel(i), h.getBucketCount(i));
+            latency.put("buckets", buckets);
+            site.put("latency", latency);
+            sites.put(name, site);
+        });
+        root.put("sites", sites);
+
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            Map<String, Long> s = new LinkedHashMap<>();
+            s.put("totalMs", Metrics.getStageMs(stage));
+            s.put("count", Metrics.getStageCount(stage));
+            stages.put(stage.toString(), s);
+        }
+        root.put("stages", stages);
+
+        Map<String, Object> gauges = new LinkedHashMap<>();
+        Map<String, Object> plots = new LinkedHashMap<>();
+        Metrics.getGauges().forEach((name, g) -> {
+            Map<String, Long> gauge = new LinkedHashMap<>();
+            gauge.put("value", g.getValue());
+            gauge.put("max", g.getMax());
+            gauges.put(name, gauge);
+            if (g.getPoints() != null) plots.put(name, g.getPoints());
+        });
+        root.put("gauges", gauges);
+        root.put("plots", plots);
+        return root;
+    }
+
+    /**
+     * Build the CSV report's lines.
+     * @return Lines, starting with a header.
+     */
+    private List<String> toCsv() {
+        List<String> lines = new ArrayList<>();
+        lines.add("section,name,metric,value");
+        lines.add(csv("run", "", "elapsed_ms", Metrics.elapsedMs()));
+        lines.add(csv("run", "", "stories_downloaded", storiesDownloaded));
+        lines.add(csv("run", "", "stories_total", storiesTotal));
+        lines.add(csv("run", storyOrder, "first_epub_ms", Metrics.firstEpubMs()));
+        lines.add(csv("run", storyOrder, "makespan_ms", Metrics.lastEpubMs()));
+        lines.add(csv("run", "", "peak_heap_bytes", Metrics.peakHeapBytes()));
+        Metrics.getSites().forEach((name, m) -> {
+            lines.add(csv("site", name, "requests", m.getRequests()));
+            lines.add(csv("site", name, "bytes", m.getBytes()));
+            lines.add(csv("site", name, "cache_hits", m.getCacheHits()));
+            lines.add(csv("site", name, "connections_opened", m.getConnectionsOpened()));
+            lines.add(csv("site", name, "connections_reused", m.getConnectionsReused()));
+            lines.add(csv("site", name, "retries", m.getRetries()));
+            lines.add(csv("site", name, "hedges", m.getHedges()));
+            lines.add(csv("site", name, "hedge_wins", m.getHedgeWins()));
+            lines.add(csv("site", name, "latency_sum_ms", m.getLatency().getSumMs()));
+            lines.add(csv("site", name, "latency_p50_ms", m.getLatency().percentileMs(50d)));
+            lines.add(csv("site", name, "latency_p95_ms", m.getLatency().percentileMs(95d)));
+            lines.add(csv("site", name, "latency_p99_ms", m.getLatency().percentileMs(99d)));
+            for (int i = 0; i <= LatencyHistogram.BOUNDS_MS.length; i++)
+                lines.add(csv("site", name, "latency_le_" + bucketLabel(i), m.getLatency().getBucketCount(i)));
+            m.getFailures().forEach((cause, count) -> lines.add(csv("site", name, "failures_" + cause, count)));
+        });
+        for (Stage stage : Stage.values()) {
+            lines.add(csv("stage", stage.toString(), "total_ms", Metrics.getStageMs(stage)));
+            lines.add(csv("stage", stage.toString(), "count", Metrics.getStageCount(stage)));
+        }
+        Metrics.getGauges().forEach((name, g) -> {
+            lines.add(csv("gauge", name, "value", g.getValue()));
+            lines.add(csv("gauge", name, "max", g.getMax()));
+            if (g.getPoints() != null)
+                g.getPoints().forEach(point -> lines.add(csv("plot", name, "at_" + point[0] + "_ms", point[1])));
+        });
+        return lines;
+    }
+
+    /**
+     * Build the Prometheus text format report.
+     * @return Report text.
+     */
+    private String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        Map<String, SiteMetrics> sites = Metrics.getSites();
+
+        header(sb, HTTP_DURATION, "histogram", "Time taken to receive response headers.");
+        sites.forEach((name, m) -> {
+            LatencyHistogram h = m.getLatency();
+            long cumulative = 0L;
+            for (int i = 0; i < LatencyHistogram.BOUNDS_MS.length; i++) {
+                cumulative += h.getBucketCount(i);
+                sb.append(String.format(Locale.ROOT, "%s_bucket{site=\"%s\",le=\"%s\"} %d%n", HTTP_DURATION,
+                        escape(name), seconds(LatencyHistogram.BOUNDS_MS[i]), cumulative));
+            }
+            sb.append(String.format(Locale.ROOT, "%s_bucket{site=\"%s\",le=\"+Inf\"} %d%n", HTTP_DURATION,
+                    escape(name), h.getCount()));
+            sb.append(String.format(Locale.ROOT, "%s_sum{site=\"%s\"} %s%n", HTTP_DURATION, escape(name),
+                    seconds(h.getSumMs())));
+            sb.append(String.format(Locale.ROOT, "%s_count{site=\"%s\"} %d%n", HTTP_DURATION, escape(name),
+                    h.getCount()));
+        });
+
+        header(sb, "fdl_http_bytes_total", "counter", "Response body bytes read.");
+        sites.forEach((name, m) -> siteSample(sb, "fdl_http_bytes_total", name, m.getBytes()));
+        header(sb, "fdl_http_cache_hits_total", "counter", "Responses served from a cache.");
+        sites.forEach((name, m) -> siteSample(sb, "fdl_http_cache_hits_total", name, m.getCacheHits()));
+        header(sb, "fdl_http_connections_opened_total", "counter", "Requests which needed a new connection.");
+        sites.forEach((name, m) -> siteSample(sb, "fdl_http_connections_opened_total", name,
+                m.getConnectionsOpened()));
+        header(sb, "fdl_http_connections_reused_total", "counter", "Requests which reused a pooled connection.");
+        sites.forEach((name, m) -> siteSample(sb, "fdl_http_connections_reused_total", name,
+                m.getConnectionsReused()));
+        header(sb, "fdl_http_retries_total", "counter", "Requests which were retried.");
+        sites.forEach((name, m) -> siteSample(sb, "fdl_http_retries_total", name, m.getRetries()));
+        header(sb, "fdl_http_hedges_total", "counter", "Duplicate requests sent to hedge slow chapter requests.");
+        sites.forEach((name, m) -> siteSample(sb, "fdl_http_hedges_total", name, m.getHedges()));
+        header(sb, "fdl_http_hedge_wins_total", "counter", "Hedged requests whose duplicate got a response first.");
+        sites.forEach((name, m) -> siteSample(sb, "fdl_http_hedge_wins_total", name, m.getHedgeWins()));
+        header(sb, "fdl_http_failures_total", "counter", "Failed requests, by cause.");
+        sites.forEach((name, m) -> m.getFailures().forEach((cause, count) -> sb.append(String.format(Locale.ROOT,
+                "fdl_http_failures_total{site=\"%s\",cause=\"%s\"} %d%n", escape(name), escape(cause), count))));
+
+        header(sb, "fdl_stage_seconds_total", "counter", "Time spent in each stage, summed over all threads.");
+        for (Stage stage : Stage.values())
+            sb.append(String.format(Locale.ROOT, "fdl_stage_seconds_total{stage=\"%s\"} %s%n", stage,
+                    seconds(Metrics.getStageMs(stage))));
+
+        if (Metrics.firstEpubMs() >= 0L) {
+            header(sb, "fdl_first_epub_seconds", "gauge", "Time until the first ePUB was saved.");
+            sb.append(String.format(Locale.ROOT, "fdl_first_epub_seconds{order=\"%s\"} %s%n", escape(storyOrder),
+                    seconds(Metrics.firstEpubMs())));
+            header(sb, "fdl_makespan_seconds", "gauge", "Time until the last ePUB was saved.");
+            sb.append(String.format(Locale.ROOT, "fdl_makespan_seconds{order=\"%s\"} %s%n", escape(storyOrder),
+                    seconds(Metrics.lastEpubMs())));
+        }
+
+        Map<String, Gauge> gauges = Metrics.getGauges();
+        if (!gauges.isEmpty()) {
+            header(sb, "fdl_gauge_max", "gauge", "Highest value seen for each internal gauge.");
+            gauges.forEach((name, g) -> sb.append(String.format(Locale.ROOT, "fdl_gauge_max{name=\"%s\"} %d%n",
+                    escape(name), g.getMax())));
+        }
+
+        header(sb, "fdl_heap_peak_bytes", "gauge", "Peak JVM heap usage.");
+        sb.append(String.format(Locale.ROOT, "fdl_heap_peak_bytes %d%n", Metrics.peakHeapBytes()));
+        header(sb, "fdl_run_duration_seconds", "gauge", "Duration of the run.");
+        sb.append(String.format(Locale.ROOT, "fdl_run_duration_seconds %s%n", seconds(Metrics.elapsedMs())));
+        header(sb, "fdl_stories_downloaded", "gauge", "Stories which were successfully downloaded.");
+        sb.append(String.format(Locale.ROOT, "fdl_stories_downloaded %d%n", storiesDownloaded));
+        header(sb, "fdl_stories_total", "gauge", "Stories which we tried to download.");
+        sb.append(String.format(Locale.ROOT, "fdl_stories_total %d%n", storiesTotal));
+        return sb.toString();
+    }
+
+    /**
+     * Append a Prometheus metric header.
+     * @param sb   String builder.
+     * @param name Metric name.
+     * @param type Metric type.
+     * @param help Help text.
+     */
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Append a Prometheus sample which is only labelled with a site.
+     * @param sb    String builder.
+     * @param name  Metric name.
+     * @param site  Site name.
+     * @param value Sample value.
+     */
+    private static void siteSample(StringBuilder sb, String name, String site, long value) {
+        sb.append(String.format(Locale.ROOT, "%s{site=\"%s\"} %d%n", name, escape(site), value));
+    }
+
+    /**
+     * Get the label for a latency histogram bucket.
+     * @param bucket Bucket index.
+     * @return Bucket's upper bound in milliseconds, or "inf" for the overflow bucket.
+     */
+    private static String bucketLabel(int bucket) {
+        return bucket < LatencyHistogram.BOUNDS_MS.length ? String.valueOf(LatencyHistogram.BOUNDS_MS[bucket]) : "inf";
+    }
+
+    /**
+     * Convert milliseconds to a seconds string.
+     * @param ms Milliseconds.
+     * @return Seconds, formatted for Prometheus.
+     */
+    private static String seconds(long ms) {
+        return String.format(Locale.ROOT, "%.3f", ms / 1000d);
+    }
+
+    /**
+     * Escape a Prometheus label value.
+     * @param value Label value.
+     * @return Escaped value.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Build a CSV line.
+     * @param section Section.
+     * @param name    Name within the section.
+     * @param metric  Metric.
+     * @param value   Value.
+     * @return CSV line.
+     */
+    private static String csv(String section, String name, String metric, long value) {
+        String quotedName = name.contains(",") || name.contains("\"") ? "\"" + name.replace("\"", "\"\"") + "\"" : name;
+        return section + "," + quotedName + "," + metric.replace(',', '_') + "," + value;
+    }
+}
@@ -0,0 +1,206 @@
+package bkromhout.fdl.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Network metrics for a single site.
+ */
+public class SiteMetrics {
+    /**
+     * Request latencies, measured until the response headers have been received.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+    /**
+     * Number of requests made.
+     */
+    private final AtomicLong requests = new AtomicLong();
+    /**
+     * Number of response body bytes read.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+    /**
+     * Number of responses served from a cache.
+     */
+    private final AtomicLong cacheHits = new AtomicLong();
+    /**
+     * Number of times a request was retried.
+     */
+    private final AtomicLong retries = new AtomicLong();
+    /**
+     * Number of requests which needed a new connection.
+     */
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    /**
+     * Number of requests which reused a pooled connection.
+     */
+    private final AtomicLong connectionsReused = new AtomicLong();
+    /**
+     * Number of duplicate requests sent to hedge slow requests.
+     */
+    private final AtomicLong hedges = new AtomicLong();
+    /**
+     * Number of hedged requests whose duplicate got a response first.
+     */
+    private final AtomicLong hedgeWins = new AtomicLong();
+    /**
+     * Failure counts, keyed by cause.
+     */
+    private final ConcurrentHashMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+    /**
+     * Record a finished request.
+     * @param latencyMs How long it took to get the response headers, in milliseconds.
+     */
+    void requestDone(long latencyMs) {
+        requests.incrementAndGet();
+        latency.record(latencyMs);
+    }
+
+    /**
+     * Record that some response body bytes were read.
+     * @param count Number of bytes.
+     */
+    void bytesRead(long count) {
+        bytes.addAndGet(count);
+    }
+
+    /**
+     * Record that a response was served from a cache.
+     */
+    void cacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Record that a request was retried.
+     * @param count Number of retries.
+     */
+    void retried(long count) {
+        retries.addAndGet(count);
+    }
+
+    /**
+     * Record which kind of connection a request was sent on.
+     * @param reused True if the connection had been used for an earlier request, false if it was new.
+     */
+    void connectionUsed(boolean reused) {
+        if (reused) connectionsReused.incrementAndGet();
+        else connectionsOpened.incrementAndGet();
+    }
+
+    /**
+     * Record that a duplicate request was sent to hedge a slow request.
+     */
+    void hedgeSent() {
+        hedges.incrementAndGet();
+    }
+
+    /**
+     * Record that a duplicate request got a response first.
+     */
+    void hedgeWon() {
+        hedgeWins.incrementAndGet();
+    }
+
+    /**
+     * Record a failed request.
+     * @param cause Short description of what caused the failure.
+     */
+    void failed(String cause) {
+        failures.computeIfAbsent(cause, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Get the latency histogram.
+     * @return Latency histogram.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Get the number of requests made.
+     * @return Request count.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of response body bytes read.
+     * @return Byte count.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Get the number of responses served from a cache.
+     * @return Cache hit count.
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Get the number of times requests were retried.
+     * @return Retry count.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Get the number of requests which needed a new connection.
+     * @return New connection count.
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * Get the number of requests which reused a pooled connection.
+     * @return Reused connection count.
+     */
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    /**
+     * Get the number of duplicate requests sent to hedge slow requests.
+     * @return Hedge count.
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Get the number of hedged requests whose duplicate got a response first.
+     * @return Hedge win count.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Get the fraction of hedged requests whose duplicate got a response first.
+     * @return Hedge win rate, or 0 if nothing was hedged.
+     */
+    public double getHedgeWinRate() {
+        long sent = hedges.get();
+        return sent == 0L ? 0d : (double) hedgeWins.get() / sent;
+    }
+
+    /**
+     * Get a snapshot of the failure counts.
+     * @return Failure counts, keyed by cause, in sorted order.
+     */
+    public Map<String, Long> getFailures() {
+        TreeMap<String, Long> snapshot = new TreeMap<>();
+        failures.forEach((cause, count) -> snapshot.put(cause, count.get()));
+        return snapshot;
+    }
+}
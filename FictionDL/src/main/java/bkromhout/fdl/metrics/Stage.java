@@ -0,0 +1,23 @@
+package bkromhout.fdl.metrics;
+
+/**
+ * Stages of the download process which we keep timings for.
+ * <p>
+ * Stages can overlap (building a story's model includes fetching and parsing its pages, for example), and are timed on
+ * whichever thread runs them, so stage times shouldn't be added together.
+ */
+public enum Stage {
+    MODEL_BUILD("model_build"), FETCH("fetch"), PARSE("parse"), SANITIZE("sanitize"), IMAGE_INLINE("image_inline"),
+    CHAPTER_WRITE("chapter_write"), EPUB_WRITE("epub_write");
+
+    private final String key;
+
+    Stage(String key) {
+        this.key = key;
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,127 @@
+package bkromhout.fdl.net;
+
+import okhttp3.ResponseBody;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A growable byte buffer which a response body is read into, so that the network threads can hand the body off to be
+ * parsed somewhere else instead of parsing it themselves. Buffers are pooled and reused, since most pages from a site
+ * are around the same size; every buffer should be {@link #release() released} once its contents have been used.
+ */
+public final class BodyBuffer {
+    /**
+     * Size of new buffers, if the response doesn't tell us how big its body is.
+     */
+    private static final int INITIAL_SIZE = 64 * 1024;
+    /**
+     * Largest buffer we keep in the pool. Bigger ones are left for the garbage collector, so that one huge page doesn't
+     * pin a lot of memory for the rest of the run.
+     */
+    private static final int MAX_POOLED_SIZE = 1024 * 1024;
+    /**
+     * Most buffers we keep in the pool.
+     */
+    private static final int MAX_POOLED = 64;
+    /**
+     * Released buffers which can be reused.
+     */
+    private static final ConcurrentLinkedQueue<BodyBuffer> pool = new ConcurrentLinkedQueue<>();
+    /**
+     * Number of buffers in the pool. Tracked separately since {@link ConcurrentLinkedQueue#size()} isn't constant
+     * time.
+     */
+    private static final AtomicInteger pooled = new AtomicInteger(0);
+    /**
+     * Buffer.
+     */
+    private byte[] bytes;
+    /**
+     * Number of bytes in {@link #bytes} which have been filled.
+     */
+    private int size = 0;
+
+    private BodyBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    /**
+     * Read a response body into a buffer from the pool, then close the body.
+     * @param body Response body.
+     * @return Buffer holding the whole body.
+     * @throws IOException if the body can't be read.
+     */
+    public static BodyBuffer read(ResponseBody body) throws IOException {
+        BodyBuffer buffer = obtain(body.contentLength());
+        try (InputStream in = body.byteStream()) {
+            buffer.readFrom(in);
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        return buffer;
+    }
+
+    /**
+     * Get an empty buffer from the pool, or make a new one if the pool is empty.
+     * @param contentLength Length of the body which will be read into the buffer, or -1 if it isn't known.
+     * @return Empty buffer.
+     */
+    private static BodyBuffer obtain(long contentLength) {
+        // One byte more than the body, so that we can see the end of the body without growing the buffer.
+        int wanted = contentLength >= 0L && contentLength < MAX_POOLED_SIZE ? (int) contentLength + 1 : INITIAL_SIZE;
+        BodyBuffer buffer = pool.poll();
+        if (buffer == null) return new BodyBuffer(wanted);
+        pooled.decrementAndGet();
+        buffer.size = 0;
+        if (buffer.bytes.length < wanted) buffer.bytes = new byte[wanted];
+        return buffer;
+    }
+
+    /**
+     * Read everything from a stream into this buffer, growing it as needed.
+     * @param in Stream.
+     * @throws IOException if the stream can't be read.
+     */
+    private void readFrom(InputStream in) throws IOException {
+        while (true) {
+            if (size == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            int read = in.read(bytes, size, bytes.length - size);
+            if (read == -1) return;
+            size += read;
+        }
+    }
+
+    /**
+     * Get a stream over this buffer's contents. It's only valid until the buffer is released.
+     * @return Input stream.
+     */
+    public InputStream inputStream() {
+        return new ByteArrayInputStream(bytes, 0, size);
+    }
+
+    /**
+     * Get the number of bytes in this buffer.
+     * @return Size, in bytes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return this buffer to the pool so that it can be reused. It must not be used again afterwards.
+     */
+    public void release() {
+        if (bytes.length > MAX_POOLED_SIZE) return;
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(this);
+    }
+}
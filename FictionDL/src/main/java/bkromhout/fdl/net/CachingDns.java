@@ -0,0 +1,56 @@
+package bkromhout.fdl.net;
+
+import okhttp3.Dns;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OkHttp DNS resolver which caches the system resolver's results for a fixed amount of time, so that we don't look up
+ * the same handful of hosts for every new connection.
+ */
+public class CachingDns implements Dns {
+    /**
+     * Cached lookups, keyed by host name.
+     */
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    /**
+     * How long to cache lookups, in nanoseconds.
+     */
+    private final long ttlNanos;
+
+    /**
+     * Create a new {@link CachingDns}.
+     * @param ttl  How long to cache lookups.
+     * @param unit Unit of {@code ttl}.
+     */
+    public CachingDns(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        Entry entry = cache.get(hostname);
+        if (entry != null && System.nanoTime() - entry.time < ttlNanos) return entry.addresses;
+        // Failed lookups aren't cached, since they throw.
+        List<InetAddress> addresses = Dns.SYSTEM.lookup(hostname);
+        cache.put(hostname, new Entry(addresses, System.nanoTime()));
+        return addresses;
+    }
+
+    /**
+     * A cached lookup.
+     */
+    private static final class Entry {
+        private final List<InetAddress> addresses;
+        private final long time;
+
+        private Entry(List<InetAddress> addresses, long time) {
+            this.addresses = addresses;
+            this.time = time;
+        }
+    }
+}
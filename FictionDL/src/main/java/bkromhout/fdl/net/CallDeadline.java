@@ -0,0 +1,101 @@
+package bkromhout.fdl.net;
+
+import bkromhout.fdl.site.Site;
+import bkromhout.fdl.site.Sites;
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.Call;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cancels an OkHttp Call if it hasn't gotten a response and finished reading its body by the deadline set in the
+ * current {@link NetworkProfile}. OkHttp only has per-socket-operation timeouts, which a slow site can dribble under
+ * forever.
+ * <p>
+ * Call {@link #start(Call)} right before executing or enqueueing a call. If the call fails, or its response won't be
+ * read, call {@link #done()}. Otherwise, pass its response through {@link #doneWhenClosed(Response)}, so that the
+ * deadline keeps running until the response body has been read and closed.
+ */
+public final class CallDeadline {
+    /**
+     * Timer thread which cancels calls.
+     */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("fdl-call-deadline-%d").setDaemon(true).build());
+    /**
+     * Pending cancellation, or null if there's no deadline.
+     */
+    private final ScheduledFuture<?> cancellation;
+    /**
+     * Whether the call was cancelled because it hit its deadline.
+     */
+    private volatile boolean expired = false;
+
+    /**
+     * Start the deadline for a call.
+     * @param call Call.
+     * @return Deadline, whose {@link #done()} method must be called when the call finishes.
+     */
+    public static CallDeadline start(Call call) {
+        return new CallDeadline(call, C.getNetworkProfile().getCallTimeoutMs());
+    }
+
+    private CallDeadline(Call call, long timeoutMs) {
+        long startNanos = System.nanoTime();
+        this.cancellation = timeoutMs <= 0L ? null : timer.schedule(() -> {
+            expired = true;
+            Util.logf(C.CALL_DEADLINE_EXCEEDED, call.request().url(), TimeUnit.MILLISECONDS.toSeconds(timeoutMs));
+            // The call will just look cancelled to the site's concurrency limiter, so tell it that this was a timeout.
+            // The circuit breaker isn't told, since the call may well have connected and just be slow, and a site which
+            // accepts connections isn't down.
+            Site site = Sites.forHost(call.request().url().host());
+            if (site != null) site.getLimiter().overloaded(startNanos);
+            call.cancel();
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Indicate that the call has finished, so it shouldn't be cancelled.
+     */
+    public void done() {
+        if (cancellation != null) cancellation.cancel(false);
+    }
+
+    /**
+     * Keep the deadline running until the response's body has been closed, rather than stopping it as soon as the
+     * response headers arrive.
+     * @param response Response to the call.
+     * @return Response whose body stops the deadline once it's closed.
+     */
+    public Response doneWhenClosed(Response response) {
+        ResponseBody body = response.body();
+        BufferedSource source = Okio.buffer(new ForwardingSource(body.source()) {
+            @Override
+            public void close() throws IOException {
+                done();
+                super.close();
+            }
+        });
+        return response.newBuilder().body(ResponseBody.create(body.contentType(), body.contentLength(), source))
+                       .build();
+    }
+
+    /**
+     * Check whether the call was cancelled because it hit its deadline.
+     * @return True if so, otherwise false.
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+}
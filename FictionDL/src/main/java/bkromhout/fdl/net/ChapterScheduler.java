@@ -0,0 +1,464 @@
+package bkromhout.fdl.net;
+
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.site.Site;
+import bkromhout.fdl.site.Sites;
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+import rx.Observable;
+import rx.Subscriber;
+import rx.observers.SerializedSubscriber;
+import rx.subscriptions.Subscriptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules chapter downloads from many stories at once, rather than letting the first story to start monopolize a
+ * host.
+ * <p>
+ * Each host has its own queue, and its own limit on how many requests can be in flight at once from its site's {@link
+ * ConcurrencyLimiter}. Within a host's queue:
+ * <ul>
+ * <li>The first chapter of every story goes first, so that we find out early if we can't access a story.</li>
+ * <li>The rest of the chapters are ordered using start-time fair queueing across stories, so stories take turns (in
+ * proportion to their weights), and short stories finish and get saved early instead of waiting behind long ones.</li>
+ * </ul>
+ * If {@link NetworkProfile#isHedging() hedging} is turned on, a request which is still waiting for a response once it
+ * has taken longer than the host's recent p95 latency gets a duplicate sent for it. Whichever copy gets a successful
+ * response first is used, and the other one is cancelled. This keeps one slow chapter from holding up a whole story.
+ * Hedges are capped across all hosts, are only sent while the host has room under its site's {@link
+ * ConcurrencyLimiter}, and how often they win is reported to {@link Metrics}.
+ * <p>
+ * Queue depths and in-flight counts for each host are reported as {@link Metrics} gauges.
+ */
+public class ChapterScheduler {
+    /**
+     * Singleton instance.
+     */
+    private static ChapterScheduler INSTANCE = null;
+    /**
+     * Order in which queued fetches are sent: first chapters, then by virtual start time, then in the order they were
+     * queued.
+     */
+    private static final Comparator<Fetch> FETCH_ORDER = Comparator.comparing((Fetch f) -> !f.isFirst)
+                                                                   .thenComparingDouble(f -> f.startTag)
+                                                                   .thenComparingLong(f -> f.seq);
+    /**
+     * Number of recent latencies kept for each host.
+     */
+    private static final int LATENCY_WINDOW = 64;
+    /**
+     * Number of latencies a host needs before its requests are hedged, so that we don't hedge based on a guess.
+     */
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    /**
+     * Timer thread which sends hedges.
+     */
+    private static final ScheduledExecutorService hedgeTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("fdl-hedge-timer-%d").setDaemon(true).build());
+    /**
+     * Queues, keyed by host.
+     */
+    private final HashMap<String, HostQueue> hosts = new HashMap<>();
+    /**
+     * Sequence number for the next fetch, used to break ties.
+     */
+    private long nextSeq = 0L;
+    /**
+     * Number of hedges in flight, across all hosts.
+     */
+    private int hedgesInFlight = 0;
+
+    /**
+     * Get the {@link ChapterScheduler} instance.
+     * @return Instance.
+     */
+    public static synchronized ChapterScheduler get() {
+        if (INSTANCE == null) INSTANCE = new ChapterScheduler();
+        return INSTANCE;
+    }
+
+    private ChapterScheduler() {
+    }
+
+    /**
+     * Fetch a story's chapters with the default weight.
+     * @param requests Requests for the story's chapters, in chapter order.
+     * @return Observable which emits successful responses as they arrive (not necessarily in order), then completes.
+     * @see #fetch(List, double)
+     */
+    public Observable<Response> fetch(List<Request> requests) {
+        return fetch(requests, 1d);
+    }
+
+    /**
+     * Fetch a story's chapters.
+     * <p>
+     * The requests are queued when the returned Observable is subscribed to. Requests which fail, or whose responses
+     * aren't successful, are logged and skipped, so the caller should check that it got as many responses as it asked
+     * for. Unsubscribing cancels any requests which haven't finished.
+     * @param requests Requests for the story's chapters, in chapter order.
+     * @param weight   Share of each host's requests that this story gets, relative to other stories. Must be positive.
+     * @return Observable which emits successful responses as they arrive (not necessarily in order), then completes.
+     */
+    public Observable<Response> fetch(List<Request> requests, double weight) {
+        if (weight <= 0d) throw new IllegalArgumentException("Weight must be positive.");
+        return Observable.create(sub -> {
+            if (requests.isEmpty()) {
+                sub.onCompleted();
+                return;
+            }
+            Flow flow = new Flow(new SerializedSubscriber<>(sub), weight, requests.size());
+            sub.add(Subscriptions.create(() -> cancel(flow)));
+            enqueue(flow, requests);
+        });
+    }
+
+    /**
+     * Queue a story's requests and start sending as many as we can.
+     * @param flow     Story's flow.
+     * @param requests Requests for the story's chapters, in chapter order.
+     */
+    private synchronized void enqueue(Flow flow, List<Request> requests) {
+        HashSet<HostQueue> touched = new HashSet<>();
+        for (int i = 0; i < requests.size(); i++) {
+            Request request = requests.get(i);
+            HostQueue hostQueue = hosts.computeIfAbsent(request.url().host(), HostQueue::new);
+            // Start-time fair queueing: a story's next request starts when its previous one finishes (in virtual
+            // time), or now, whichever is later. A higher weight makes each request "shorter".
+            double startTag = Math.max(hostQueue.virtualTime, flow.lastFinishTag);
+            flow.lastFinishTag = startTag + 1d / flow.weight;
+            hostQueue.queue.add(new Fetch(flow, request, i == 0, startTag, nextSeq++));
+            touched.add(hostQueue);
+        }
+        touched.forEach(this::dispatch);
+    }
+
+    /**
+     * Send queued requests for a host until it has as many in flight as it's allowed.
+     * @param hostQueue Host queue.
+     */
+    private synchronized void dispatch(HostQueue hostQueue) {
+        while (hostQueue.inFlight < hostQueue.limit() && !hostQueue.queue.isEmpty()) {
+            Fetch fetch = hostQueue.queue.poll();
+            if (fetch.flow.cancelled) continue;
+            hostQueue.virtualTime = Math.max(hostQueue.virtualTime, fetch.startTag);
+            send(hostQueue, fetch, false);
+            scheduleHedge(hostQueue, fetch);
+        }
+        updateGauges(hostQueue);
+    }
+
+    /**
+     * Send a call for a fetch. Must be called while holding the lock.
+     * @param hostQueue Host queue which the fetch came from.
+     * @param fetch     Fetch.
+     * @param isHedge   Whether this is a duplicate of a call which is already in flight.
+     */
+    private void send(HostQueue hostQueue, Fetch fetch, boolean isHedge) {
+        hostQueue.inFlight++;
+        Call call = C.getHttpClient().newCall(fetch.request);
+        fetch.calls.add(call);
+        fetch.flow.calls.add(call);
+        long startNanos = System.nanoTime();
+        CallDeadline deadline = CallDeadline.start(call);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call innerCall, IOException e) {
+                deadline.done();
+                attemptFinished(hostQueue, fetch, innerCall, isHedge, startNanos, null);
+            }
+
+            @Override
+            public void onResponse(Call innerCall, Response response) {
+                if (response.isSuccessful()) {
+                    // The deadline keeps running until the body has been read.
+                    Response timed = deadline.doneWhenClosed(response);
+                    attemptFinished(hostQueue, fetch, innerCall, isHedge, startNanos, timed);
+                } else {
+                    // Make sure the response body is closed so that it doesn't leak.
+                    deadline.done();
+                    response.body().close();
+                    attemptFinished(hostQueue, fetch, innerCall, isHedge, startNanos, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * If hedging is turned on and we know enough about the host's latency, arrange for a hedge to be sent if the fetch
+     * is still waiting once it has taken longer than the host's recent p95 latency. Must be called while holding the
+     * lock.
+     * @param hostQueue Host queue which the fetch came from.
+     * @param fetch     Fetch which was just sent.
+     */
+    private void scheduleHedge(HostQueue hostQueue, Fetch fetch) {
+        if (!C.getNetworkProfile().isHedging()) return;
+        long delayMs = hostQueue.p95Ms();
+        if (delayMs >= 0L)
+            fetch.pendingHedge = hedgeTimer.schedule(() -> hedge(hostQueue, fetch), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a hedge for a fetch which is taking too long, unless it has finished, there are already as many hedges in
+     * flight as we allow, or the host is already at its concurrency limit (in which case the hedge couldn't get a
+     * response any sooner than the original).
+     * @param hostQueue Host queue which the fetch came from.
+     * @param fetch     Fetch.
+     */
+    private synchronized void hedge(HostQueue hostQueue, Fetch fetch) {
+        if (fetch.done || fetch.flow.cancelled || hedgesInFlight >= C.getNetworkProfile().getMaxHedges() ||
+                hostQueue.inFlight >= hostQueue.limit()) return;
+        hedgesInFlight++;
+        Metrics.hedgeSent(hostQueue.host);
+        send(hostQueue, fetch, true);
+        updateGauges(hostQueue);
+        updateHedgeGauge();
+    }
+
+    /**
+     * Called when one of a fetch's calls has finished, whether it was successful or not. The fetch is finished by its
+     * first successful call, which cancels any others, or by its last call if none of them succeed.
+     * @param hostQueue  Host queue which the fetch came from.
+     * @param fetch      Fetch.
+     * @param call       Finished call.
+     * @param isHedge    Whether the call was a hedge.
+     * @param startNanos Value of {@link System#nanoTime()} when the call was sent.
+     * @param response   Successful response, or null if the call failed.
+     */
+    private void attemptFinished(HostQueue hostQueue, Fetch fetch, Call call, boolean isHedge, long startNanos,
+                                 Response response) {
+        boolean won = false;
+        List<Call> losers = Collections.emptyList();
+        synchronized (this) {
+            hostQueue.inFlight--;
+            if (isHedge) {
+                hedgesInFlight--;
+                updateHedgeGauge();
+            }
+            fetch.calls.remove(call);
+            fetch.flow.calls.remove(call);
+            // Calls which completed tell us the host's latency, whether or not they won. An original call which was
+            // cancelled because its hedge won only tells us that the latency was at least this long, but leaving it out
+            // would make a slow host look faster than it is. Cancelled hedges are left out, since they were sent late
+            // and cancelled early, and their short times would make hedges fire sooner and sooner.
+            if (!fetch.flow.cancelled && (!isHedge || !call.isCanceled()))
+                hostQueue.recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            if (!fetch.done && (response != null || fetch.calls.isEmpty())) {
+                won = fetch.done = true;
+                if (fetch.pendingHedge != null) fetch.pendingHedge.cancel(false);
+                if (response != null) {
+                    if (isHedge) Metrics.hedgeWon(hostQueue.host);
+                    losers = new ArrayList<>(fetch.calls);
+                }
+            }
+        }
+        losers.forEach(Call::cancel);
+
+        if (!won) {
+            // Another call for this fetch already won, or is still in flight and might yet succeed.
+            if (response != null) response.body().close();
+            dispatch(hostQueue);
+            return;
+        }
+        // Cancelled calls were either unsubscribed from, or hit their deadline (which has been logged).
+        if (response == null && !call.isCanceled()) Util.logf(C.CHAP_FETCH_FAILED, call.request().url());
+        finished(hostQueue, fetch.flow, response);
+    }
+
+    /**
+     * Called when a fetch has finished, whether it was successful or not.
+     * @param hostQueue Host queue which the fetch came from.
+     * @param flow      Story's flow.
+     * @param response  Successful response, or null if the fetch failed.
+     */
+    private void finished(HostQueue hostQueue, Flow flow, Response response) {
+        // Send the next request before emitting, since the subscriber might do a lot of work.
+        dispatch(hostQueue);
+
+        // Emit outside of the lock. The flow is only completed by whichever thread finishes last, after it has emitted
+        // its own response, so no response can be emitted after completion.
+        if (response != null) {
+            if (!flow.cancelled) flow.sub.onNext(response);
+            else response.body().close();
+        }
+        boolean flowDone;
+        synchronized (this) {
+            flowDone = --flow.remaining == 0;
+        }
+        if (flowDone && !flow.cancelled) flow.sub.onCompleted();
+    }
+
+    /**
+     * Cancel any of a story's requests which haven't finished.
+     * @param flow Story's flow.
+     */
+    private void cancel(Flow flow) {
+        HashSet<Call> calls;
+        synchronized (this) {
+            if (flow.cancelled) return;
+            flow.cancelled = true;
+            calls = new HashSet<>(flow.calls);
+            // Queued fetches for this flow are skipped when they're polled, but we drop them now so queue depths stay
+            // accurate.
+            for (HostQueue hostQueue : hosts.values()) {
+                hostQueue.queue.removeIf(fetch -> fetch.flow == flow);
+                updateGauges(hostQueue);
+            }
+        }
+        calls.forEach(Call::cancel);
+    }
+
+    /**
+     * Report a host's queue depth and in-flight count to {@link Metrics}.
+     * @param hostQueue Host queue.
+     */
+    private static void updateGauges(HostQueue hostQueue) {
+        Metrics.gauge("chapter_queue_depth." + hostQueue.host, hostQueue.queue.size());
+        Metrics.gauge("chapter_in_flight." + hostQueue.host, hostQueue.inFlight);
+    }
+
+    /**
+     * Report the number of hedges in flight to {@link Metrics}. Must be called while holding the lock.
+     */
+    private void updateHedgeGauge() {
+        Metrics.gauge("chapter_hedges_in_flight", hedgesInFlight);
+    }
+
+    /**
+     * Queue of fetches for a single host.
+     */
+    private static final class HostQueue {
+        private final String host;
+        private final PriorityQueue<Fetch> queue = new PriorityQueue<>(FETCH_ORDER);
+        private int inFlight = 0;
+        /**
+         * Virtual time, which is the latest start tag of any fetch which has been sent.
+         */
+        private double virtualTime = 0d;
+        /**
+         * Latencies of recent calls, in milliseconds, used as a ring buffer.
+         */
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        /**
+         * Number of latencies recorded, capped at the size of the ring buffer.
+         */
+        private int latencyCount = 0;
+        /**
+         * Index in the ring buffer to record the next latency at.
+         */
+        private int nextLatency = 0;
+
+        private HostQueue(String host) {
+            this.host = host;
+        }
+
+        /**
+         * Get the maximum number of requests to have in flight at once right now, from the host's {@link Site}'s
+         * {@link ConcurrencyLimiter} if it has one. Looked up each time, since the limit changes as we go.
+         * @return Limit.
+         */
+        private int limit() {
+            Site site = Sites.forHost(host);
+            return site != null ? site.getLimiter().getLimit()
+                                : C.getHttpClient().dispatcher().getMaxRequestsPerHost();
+        }
+
+        /**
+         * Record how long a call took to finish.
+         * @param latencyMs Latency, in milliseconds. For an original call which was cancelled because its hedge won,
+         *                  this is how long it ran before being cancelled, which is less than its real latency.
+         */
+        private void recordLatency(long latencyMs) {
+            latencies[nextLatency] = latencyMs;
+            nextLatency = (nextLatency + 1) % LATENCY_WINDOW;
+            latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+        }
+
+        /**
+         * Get the p95 latency of recent calls.
+         * @return p95 latency, in milliseconds, or -1 if there aren't enough recent fetches to tell.
+         */
+        private long p95Ms() {
+            if (latencyCount < MIN_HEDGE_SAMPLES) return -1L;
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(latencyCount * 0.95d) - 1];
+        }
+    }
+
+    /**
+     * A single story's set of requests.
+     */
+    private static final class Flow {
+        private final Subscriber<? super Response> sub;
+        private final double weight;
+        /**
+         * Calls which are in flight.
+         */
+        private final HashSet<Call> calls = new HashSet<>();
+        /**
+         * Number of requests which haven't finished yet.
+         */
+        private int remaining;
+        /**
+         * Virtual finish time of this story's most recently queued fetch.
+         */
+        private double lastFinishTag = 0d;
+        private volatile boolean cancelled = false;
+
+        private Flow(Subscriber<? super Response> sub, double weight, int remaining) {
+            this.sub = sub;
+            this.weight = weight;
+            this.remaining = remaining;
+        }
+    }
+
+    /**
+     * A single queued request.
+     */
+    private static final class Fetch {
+        private final Flow flow;
+        private final Request request;
+        private final boolean isFirst;
+        private final double startTag;
+        private final long seq;
+        /**
+         * Calls for this fetch which are in flight. There's more than one if it has been hedged.
+         */
+        private final HashSet<Call> calls = new HashSet<>();
+        /**
+         * Pending hedge, or null if none was scheduled.
+         */
+        private ScheduledFuture<?> pendingHedge = null;
+        /**
+         * Whether the fetch has finished, either by getting a response or by every call failing.
+         */
+        private boolean done = false;
+
+        private Fetch(Flow flow, Request request, boolean isFirst, double startTag, long seq) {
+            this.flow = flow;
+            this.request = request;
+            this.isFirst = isFirst;
+            this.startTag = startTag;
+            this.seq = seq;
+        }
+    }
+}
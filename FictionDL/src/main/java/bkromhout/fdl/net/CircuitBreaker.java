@@ -0,0 +1,159 @@
+package bkromhout.fdl.net;
+
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+/**
+ * Stops us from making requests to a site which seems to be down, so that we don't wait out a connection timeout for
+ * every story and chapter on it.
+ * <ul>
+ * <li>Closed: requests are made as usual. After {@link #FAILURE_THRESHOLD} connection failures in a row, it opens.</li>
+ * <li>Open: requests fail right away. After {@link #OPEN_MS}, the next request is let through as a probe.</li>
+ * <li>Half-open: only the probe is in flight, and other requests still fail right away. If the probe connects, it
+ * closes again; if not, it opens again.</li>
+ * </ul>
+ */
+public class CircuitBreaker {
+    /**
+     * Number of connection failures in a row which open the breaker.
+     */
+    private static final int FAILURE_THRESHOLD = 5;
+    /**
+     * How long the breaker stays open before letting a probe through.
+     */
+    private static final long OPEN_MS = 30_000L;
+
+    /**
+     * Breaker states.
+     */
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Name of the site, used for logging.
+     */
+    private final String name;
+    /**
+     * Current state.
+     */
+    private State state = State.CLOSED;
+    /**
+     * Number of connection failures in a row.
+     */
+    private int failures = 0;
+    /**
+     * When the breaker can let a probe through, from {@link System#currentTimeMillis()}.
+     */
+    private long openUntil = 0L;
+    /**
+     * Whether the probe is in flight.
+     */
+    private boolean probing = false;
+
+    /**
+     * Create a new {@link CircuitBreaker}.
+     * @param name Name of the site.
+     */
+    public CircuitBreaker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Check whether a failure means that we couldn't reach the site at all. Timeouts only count if they happened while
+     * connecting; a site which accepts connections but is slow to respond isn't down.
+     * @param e         Exception which a request failed with.
+     * @param connected Whether the request had connected to the site before it failed.
+     * @return True if it's a connection failure.
+     */
+    public static boolean isConnectionFailure(Exception e, boolean connected) {
+        return e instanceof ConnectException || e instanceof NoRouteToHostException ||
+                e instanceof UnknownHostException || (e instanceof SocketTimeoutException && !connected);
+    }
+
+    /**
+     * Check whether an HTTP status code means that the site itself is down, rather than just the page we asked for.
+     * These are what proxies and CDNs in front of a site send when they can't reach it.
+     * @param code HTTP status code.
+     * @return True if the site is down.
+     */
+    public static boolean isSiteDownStatus(int code) {
+        return code == 502 || code == 504 || (code >= 520 && code <= 524);
+    }
+
+    /**
+     * Check whether a request can be made now. If the breaker has been open long enough, this lets the caller's request
+     * through as the probe, so every call which returns true must be followed by a call to {@link #succeeded()},
+     * {@link #connectionFailed()}, or {@link #otherFailure()}.
+     * @return True if the request can be made, false if it should fail right away.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) return false;
+                state = State.HALF_OPEN;
+                probing = false;
+                return tryProbe();
+            case HALF_OPEN:
+            default:
+                return tryProbe();
+        }
+    }
+
+    /**
+     * Let the caller's request through as the probe, unless a probe is already in flight. Must only be called while
+     * half-open.
+     * @return True if the request is the probe.
+     */
+    private boolean tryProbe() {
+        if (probing) return false;
+        probing = true;
+        Util.logf(C.SITE_PROBING, name);
+        return true;
+    }
+
+    /**
+     * Check whether the breaker would make a request fail right away, without letting a probe through.
+     * @return True if the site is considered to be down right now.
+     */
+    public synchronized boolean isOpen() {
+        return (state == State.OPEN && System.currentTimeMillis() < openUntil) || (state == State.HALF_OPEN && probing);
+    }
+
+    /**
+     * Record that a request reached the site.
+     */
+    public synchronized void succeeded() {
+        if (state != State.CLOSED) Util.logf(C.SITE_BACK_UP, name);
+        state = State.CLOSED;
+        failures = 0;
+        probing = false;
+    }
+
+    /**
+     * Record that a request couldn't reach the site.
+     */
+    public synchronized void connectionFailed() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= FAILURE_THRESHOLD)) {
+            if (state == State.CLOSED) Util.logf(C.SITE_DOWN, name, failures);
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + OPEN_MS;
+        }
+        probing = false;
+    }
+
+    /**
+     * Record that a request failed in a way which doesn't tell us whether the site is up, such as being cancelled.
+     */
+    public synchronized void otherFailure() {
+        probing = false;
+    }
+}
@@ -0,0 +1,61 @@
+package bkromhout.fdl.net;
+
+import bkromhout.fdl.ex.SiteDownException;
+import bkromhout.fdl.site.Site;
+import bkromhout.fdl.site.Sites;
+import bkromhout.fdl.util.C;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+
+/**
+ * OkHttp application interceptor which fails requests to a supported {@link Site} right away with a {@link
+ * SiteDownException} while the site's {@link CircuitBreaker} is open, and tells the breaker whether each request
+ * reached the site.
+ * <p>
+ * The interceptor returned by {@link #network()} must be added as a network interceptor to the same client, so that we
+ * can tell timeouts while connecting apart from timeouts while waiting for a response. OkHttp runs both interceptors
+ * for a call on the same thread, which is how they find each other.
+ */
+public class CircuitBreakerInterceptor implements Interceptor {
+    /**
+     * Whether the current thread's call has connected to the site.
+     */
+    private static final ThreadLocal<boolean[]> connected = ThreadLocal.withInitial(() -> new boolean[1]);
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Site site = Sites.forHost(request.url().host());
+        if (site == null) return chain.proceed(request);
+        connected.get()[0] = false;
+
+        CircuitBreaker breaker = site.getCircuitBreaker();
+        if (!breaker.allowRequest()) throw new SiteDownException(String.format(C.SITE_IS_DOWN, site.getName()));
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException | RuntimeException e) {
+            if (CircuitBreaker.isConnectionFailure(e, connected.get()[0])) breaker.connectionFailed();
+            else breaker.otherFailure();
+            throw e;
+        }
+        if (CircuitBreaker.isSiteDownStatus(response.code())) breaker.connectionFailed();
+        else breaker.succeeded();
+        return response;
+    }
+
+    /**
+     * Get the network interceptor which notes that the current thread's call has connected to the site. Network
+     * interceptors are only run once there's a connection.
+     * @return Network interceptor.
+     */
+    public Interceptor network() {
+        return chain -> {
+            connected.get()[0] = true;
+            return chain.proceed(chain.request());
+        };
+    }
+}
@@ -0,0 +1,57 @@
+package bkromhout.fdl.net;
+
+import bkromhout.fdl.site.Site;
+import bkromhout.fdl.site.Sites;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * OkHttp application interceptor which counts every request to a supported {@link Site} against the site's {@link
+ * ConcurrencyLimiter}, and tells the limiter how each request turned out. Since it's on the shared client, it covers
+ * the {@link ChapterScheduler}, RxOkHttpCall, and the blocking fetches in Util alike.
+ * <p>
+ * It doesn't wait for room under the limit, since that would tie up OkHttp's dispatcher threads (and count the wait
+ * against the call's {@link CallDeadline}). The limit is enforced before requests are sent instead.
+ */
+public class ConcurrencyInterceptor implements Interceptor {
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Site site = Sites.forHost(request.url().host());
+        if (site == null) return chain.proceed(request);
+
+        ConcurrencyLimiter limiter = site.getLimiter();
+        limiter.started();
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (InterruptedIOException e) {
+            // Timeouts mean the site is struggling. (Calls which hit their deadline are reported by CallDeadline.)
+            limiter.release(start, ConcurrencyLimiter.Outcome.OVERLOAD);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // Cancelled calls throw plain IOExceptions too, so we can't hold these against the site.
+            limiter.release(start, ConcurrencyLimiter.Outcome.IGNORED);
+            throw e;
+        }
+        limiter.release(start, outcomeOf(response));
+        return response;
+    }
+
+    /**
+     * Figure out how a request turned out from its response.
+     * @param response Response.
+     * @return Outcome.
+     */
+    private static ConcurrencyLimiter.Outcome outcomeOf(Response response) {
+        if (response.code() == 429 || response.code() == 503) return ConcurrencyLimiter.Outcome.OVERLOAD;
+        return response.isSuccessful() || response.isRedirect() ? ConcurrencyLimiter.Outcome.SUCCESS
+                                                                : ConcurrencyLimiter.Outcome.FAILURE;
+    }
+}
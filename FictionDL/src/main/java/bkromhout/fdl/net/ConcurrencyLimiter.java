@@ -0,0 +1,263 @@
+package bkromhout.fdl.net;
+
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.site.Site;
+import bkromhout.fdl.site.Sites;
+import okhttp3.Request;
+
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many requests can be in flight to a single site at once, adjusting the limit based on how the site is
+ * coping (additive increase, multiplicative decrease):
+ * <ul>
+ * <li>Completed requests are looked at in windows of roughly one limit's worth of requests. If we actually used the
+ * whole limit during a window, its p95 latency stayed within {@link #LATENCY_TOLERANCE} times the site's baseline, and
+ * few enough requests failed, the limit goes up by one.</li>
+ * <li>If the site tells us to back off (HTTP 429 or 503) or a request times out, the limit is cut in half. Requests
+ * which were already in flight when the limit was cut don't cut it again.</li>
+ * </ul>
+ * The current limit is reported as a plotted {@link Metrics} gauge.
+ */
+public class ConcurrencyLimiter {
+    /**
+     * Lowest the limit can go.
+     */
+    private static final int MIN_LIMIT = 1;
+    /**
+     * Smallest number of completed requests to judge a window by.
+     */
+    private static final int MIN_WINDOW = 5;
+    /**
+     * How much higher than the baseline a window's p95 latency can be before we stop raising the limit.
+     */
+    private static final double LATENCY_TOLERANCE = 2d;
+    /**
+     * Highest fraction of requests in a window which can fail before we stop raising the limit.
+     */
+    private static final double MAX_ERROR_RATE = 0.05d;
+    /**
+     * What the limit is multiplied by when the site is overloaded.
+     */
+    private static final double BACKOFF_RATIO = 0.5d;
+    /**
+     * How quickly the baseline latency drifts up towards slower windows, so that a site which has become slower for
+     * good doesn't stop us from ever raising the limit again.
+     */
+    private static final double BASELINE_DRIFT = 0.05d;
+
+    /**
+     * How a request turned out.
+     */
+    public enum Outcome {
+        /**
+         * Got a response.
+         */
+        SUCCESS,
+        /**
+         * Failed, but not in a way which says anything about load.
+         */
+        FAILURE,
+        /**
+         * The site told us to back off, or we timed out waiting for it.
+         */
+        OVERLOAD,
+        /**
+         * Cancelled, so it doesn't say anything about the site.
+         */
+        IGNORED
+    }
+
+    /**
+     * Name of the gauge which the limit is reported to.
+     */
+    private final String gaugeName;
+    /**
+     * Highest the limit can go.
+     */
+    private final int maxLimit;
+    /**
+     * Current limit. Fractional, so that it can be halved without rounding problems.
+     */
+    private double limit;
+    /**
+     * Number of requests in flight.
+     */
+    private int inFlight = 0;
+    /**
+     * Most requests which were in flight at once during the current window.
+     */
+    private int windowPeakInFlight = 0;
+    /**
+     * Latencies of the successful requests in the current window, in milliseconds.
+     */
+    private long[] windowLatencies = new long[MIN_WINDOW];
+    /**
+     * Number of successful requests in the current window.
+     */
+    private int windowSuccesses = 0;
+    /**
+     * Number of failed requests in the current window.
+     */
+    private int windowFailures = 0;
+    /**
+     * Baseline p95 latency, in milliseconds. 0 until the first window has been judged.
+     */
+    private double baselineMs = 0d;
+    /**
+     * Value of {@link System#nanoTime()} when the limit was last cut, or {@link Long#MIN_VALUE} if it hasn't been.
+     */
+    private long lastCutNanos = Long.MIN_VALUE;
+    /**
+     * Whether the limit has been reported yet. It isn't reported until the site is used, so that unused sites don't
+     * clutter up the metrics.
+     */
+    private boolean reported = false;
+
+    /**
+     * Create a new {@link ConcurrencyLimiter}.
+     * @param name         Name of the site, used to name the gauge.
+     * @param initialLimit Limit to start at.
+     * @param maxLimit     Highest the limit can go.
+     */
+    public ConcurrencyLimiter(String name, int initialLimit, int maxLimit) {
+        this.gaugeName = "concurrency_limit." + name;
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.limit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+    }
+
+    /**
+     * Get the current limit.
+     * @return Maximum number of requests to have in flight at once right now.
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Get the highest the limit can go.
+     * @return Max limit.
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Wait until there's room under the limit for another request to the site which the given request is for. This
+     * blocks, so it must only be called right before sending a request from a thread of the caller's own, never from
+     * one of OkHttp's dispatcher threads.
+     * @param request Request which is about to be sent.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    public static void awaitRoomFor(Request request) throws InterruptedIOException {
+        Site site = Sites.forHost(request.url().host());
+        if (site != null) site.getLimiter().awaitRoom();
+    }
+
+    /**
+     * Wait until there's room under the limit for another request. Several threads which were waiting may all be let
+     * through at once, so the limit can be overshot briefly; that's better than holding a request which is already in
+     * OkHttp's hands.
+     * @throws InterruptedIOException if interrupted while waiting.
+     * @see #awaitRoomFor(Request)
+     */
+    public synchronized void awaitRoom() throws InterruptedIOException {
+        try {
+            while (inFlight >= (int) limit) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Count a request as in flight. This never waits, since it's called from OkHttp's dispatcher threads; the limit is
+     * enforced before requests are sent, by the {@link ChapterScheduler} or {@link #awaitRoomFor(Request)}. Every call
+     * must be followed by a call to {@link #release(long, Outcome)}.
+     */
+    public synchronized void started() {
+        inFlight++;
+        windowPeakInFlight = Math.max(windowPeakInFlight, inFlight);
+        if (!reported) report();
+    }
+
+    /**
+     * Count a request as no longer in flight, and adjust the limit based on how it turned out.
+     * @param startNanos Value of {@link System#nanoTime()} when the request was sent.
+     * @param outcome    How the request turned out.
+     */
+    public synchronized void release(long startNanos, Outcome outcome) {
+        inFlight--;
+        switch (outcome) {
+            case SUCCESS:
+                if (windowSuccesses == windowLatencies.length)
+                    windowLatencies = Arrays.copyOf(windowLatencies, windowLatencies.length * 2);
+                windowLatencies[windowSuccesses++] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                break;
+            case FAILURE:
+                windowFailures++;
+                break;
+            case OVERLOAD:
+                overloaded(startNanos);
+                break;
+            case IGNORED:
+                break;
+        }
+        if (windowSuccesses + windowFailures >= Math.max(MIN_WINDOW, (int) limit)) judgeWindow();
+        notifyAll();
+    }
+
+    /**
+     * Cut the limit because the site is overloaded, unless it has already been cut since the request which told us so
+     * was sent.
+     * @param startNanos Value of {@link System#nanoTime()} when the request was sent.
+     */
+    public synchronized void overloaded(long startNanos) {
+        if (lastCutNanos != Long.MIN_VALUE && startNanos - lastCutNanos < 0L) return;
+        limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+        lastCutNanos = System.nanoTime();
+        resetWindow();
+        report();
+    }
+
+    /**
+     * Raise the limit if the current window was healthy and actually used the whole limit, then start a new window.
+     */
+    private void judgeWindow() {
+        long p95 = 0L;
+        if (windowSuccesses > 0) {
+            long[] sorted = Arrays.copyOf(windowLatencies, windowSuccesses);
+            Arrays.sort(sorted);
+            p95 = sorted[Math.min(windowSuccesses - 1, (int) Math.ceil(windowSuccesses * 0.95d) - 1)];
+        }
+        double errorRate = (double) windowFailures / (windowSuccesses + windowFailures);
+
+        boolean healthy = errorRate <= MAX_ERROR_RATE && (baselineMs == 0d || p95 <= baselineMs * LATENCY_TOLERANCE);
+        if (healthy && windowPeakInFlight >= (int) limit) limit = Math.min(maxLimit, limit + 1d);
+
+        // The baseline follows faster windows right away, and slower ones slowly.
+        if (windowSuccesses > 0)
+            baselineMs = baselineMs == 0d || p95 < baselineMs ? p95 : baselineMs + (p95 - baselineMs) * BASELINE_DRIFT;
+        resetWindow();
+        report();
+    }
+
+    /**
+     * Start a new window.
+     */
+    private void resetWindow() {
+        windowSuccesses = 0;
+        windowFailures = 0;
+        windowPeakInFlight = inFlight;
+    }
+
+    /**
+     * Report the current limit to {@link Metrics}.
+     */
+    private void report() {
+        reported = true;
+        Metrics.plottedGauge(gaugeName, (int) limit);
+    }
+}
@@ -0,0 +1,124 @@
+package bkromhout.fdl.net;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A local HTTP server which stands in for the real sites by serving responses from a {@link FixtureStore}.
+ * <p>
+ * Requests are expected to have been sent here by a {@link HostRewriteInterceptor}, which tells us the url that the
+ * request was originally for. Each response can be delayed by a fixed latency, and some fraction of requests can be
+ * failed with a 503 to simulate a flaky site.
+ */
+public class FixtureServer {
+    /**
+     * Number of threads used to serve requests. Large enough that latency doesn't serialize requests.
+     */
+    private static final int SERVER_THREADS = 32;
+    /**
+     * Fixtures to serve.
+     */
+    private final FixtureStore store;
+    /**
+     * How long to wait before sending each response.
+     */
+    private final long latencyMs;
+    /**
+     * Fraction of requests, in the range [0..1], which should fail with a 503.
+     */
+    private final double errorRate;
+    /**
+     * The underlying server, null until {@link #start()} is called.
+     */
+    private HttpServer server;
+    /**
+     * Executor which serves requests.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Create a new {@link FixtureServer}.
+     * @param store     Fixtures to serve.
+     * @param latencyMs How long to wait before sending each response, in milliseconds.
+     * @param errorRate Fraction of requests, in the range [0..1], which should fail with a 503.
+     */
+    public FixtureServer(FixtureStore store, long latencyMs, double errorRate) {
+        this.store = store;
+        this.latencyMs = Math.max(0L, latencyMs);
+        this.errorRate = Math.max(0d, Math.min(1d, errorRate));
+    }
+
+    /**
+     * Start serving on an ephemeral port on the loopback interface.
+     * @return Base url of the server, suitable for use with a {@link HostRewriteInterceptor}.
+     * @throws IOException if the server can't be started.
+     */
+    public String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(SERVER_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("fdl-fixture-server-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        return String.format("http://%s:%d", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    /**
+     * Stop serving.
+     */
+    public void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+    }
+
+    /**
+     * Serve a single request.
+     * @param exchange Exchange to respond to.
+     * @throws IOException if the response can't be sent.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (latencyMs > 0L) Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Figure out which url the request was originally for.
+        String url = exchange.getRequestHeaders().getFirst(HostRewriteInterceptor.ORIGINAL_URL_HEADER);
+        if (url == null)
+            url = "http://" + exchange.getRequestHeaders().getFirst("Host") + exchange.getRequestURI().toString();
+
+        FixtureStore.Fixture fixture = store.load(exchange.getRequestMethod(), url);
+        if (errorRate > 0d && ThreadLocalRandom.current().nextDouble() < errorRate) respond(exchange, 503, null, null);
+        else if (fixture == null) respond(exchange, 404, null, null);
+        else respond(exchange, fixture.getCode(), fixture.getContentType(), fixture.getBody());
+    }
+
+    /**
+     * Send a response.
+     * @param exchange    Exchange to respond to.
+     * @param code        Status code.
+     * @param contentType Content type, or null.
+     * @param body        Body bytes, or null for an empty body.
+     * @throws IOException if the response can't be sent.
+     */
+    private static void respond(HttpExchange exchange, int code, String contentType, byte[] body) throws IOException {
+        if (contentType != null) exchange.getResponseHeaders().set("Content-Type", contentType);
+        byte[] bytes = body != null ? body : new byte[0];
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
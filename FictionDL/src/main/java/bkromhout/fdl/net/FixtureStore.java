@@ -0,0 +1,133 @@
+package bkromhout.fdl.net;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Directory-backed store of recorded HTTP responses, used to replay downloads without touching the live sites.
+ * <p>
+ * Each fixture is made up of two files whose names are the SHA-1 hash of the request's method and url: a {@code .json}
+ * file which holds a {@link Fixture}, and a {@code .body} file which holds the raw response body bytes.
+ */
+public class FixtureStore {
+    /**
+     * Directory which fixtures are stored in.
+     */
+    private final Path dir;
+
+    /**
+     * Create a new {@link FixtureStore} backed by the given directory.
+     * @param dir Fixture directory. Will be created if it doesn't exist.
+     * @throws IOException if the directory can't be created.
+     */
+    public FixtureStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+    }
+
+    /**
+     * Save a response as a fixture for the given request.
+     * @param request  Request which the response should be replayed for.
+     * @param response Response to save. Its body is <i>not</i> read, pass the body bytes separately.
+     * @param body     Response body bytes.
+     * @throws IOException if the fixture files can't be written.
+     */
+    public synchronized void save(Request request, Response response, byte[] body) throws IOException {
+        String key = keyFor(request.method(), request.url().toString());
+        MediaType contentType = response.body().contentType();
+        Fixture fixture = new Fixture(request.method(), request.url().toString(), response.code(),
+                contentType != null ? contentType.toString() : null);
+
+        try (Writer writer = Files.newBufferedWriter(dir.resolve(key + ".json"), StandardCharsets.UTF_8)) {
+            new Gson().toJson(fixture, writer);
+        }
+        Files.write(dir.resolve(key + ".body"), body);
+    }
+
+    /**
+     * Load the fixture recorded for the given method and url.
+     * @param method HTTP method.
+     * @param url    Request url.
+     * @return Fixture with its body populated, or null if there isn't one (or it can't be read).
+     */
+    public Fixture load(String method, String url) {
+        String key = keyFor(method, url);
+        Path metaFile = dir.resolve(key + ".json");
+        Path bodyFile = dir.resolve(key + ".body");
+        if (!Files.isRegularFile(metaFile) || !Files.isRegularFile(bodyFile)) return null;
+
+        try (Reader reader = Files.newBufferedReader(metaFile, StandardCharsets.UTF_8)) {
+            Fixture fixture = new Gson().fromJson(reader, Fixture.class);
+            if (fixture == null) return null;
+            fixture.body = Files.readAllBytes(bodyFile);
+            return fixture;
+        } catch (IOException | JsonParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the fixture key for a method and url.
+     * @param method HTTP method.
+     * @param url    Request url.
+     * @return Key string, safe to use as a file name.
+     */
+    private static String keyFor(String method, String url) {
+        return Hashing.sha1().hashString(method + " " + url, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * A recorded response.
+     */
+    public static class Fixture {
+        private final String method;
+        private final String url;
+        private final int code;
+        private final String contentType;
+        /**
+         * Body bytes, stored in a separate file so they aren't mangled by the JSON round trip.
+         */
+        private transient byte[] body;
+
+        private Fixture(String method, String url, int code, String contentType) {
+            this.method = method;
+            this.url = url;
+            this.code = code;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Get the recorded status code.
+         * @return Status code.
+         */
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * Get the recorded content type.
+         * @return Content type, or null if the response didn't have one.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Get the recorded body bytes.
+         * @return Body bytes.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package bkromhout.fdl.net;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * OkHttp interceptor which sends requests for certain hosts somewhere else, such as a local {@link FixtureServer}.
+ * <p>
+ * Responses are handed back with the <i>original</i> request attached, so nothing downstream can tell that the request
+ * was rewritten. The original url is also sent along in the {@link #ORIGINAL_URL_HEADER} header.
+ */
+public class HostRewriteInterceptor implements Interceptor {
+    /**
+     * Header which holds the url that a rewritten request was originally for.
+     */
+    public static final String ORIGINAL_URL_HEADER = "X-Fdl-Original-Url";
+    /**
+     * Host key which matches any host.
+     */
+    public static final String ANY_HOST = "*";
+    /**
+     * Host mappings. Keys are host names, which also match any of their subdomains. Values are base urls.
+     */
+    private final LinkedHashMap<String, HttpUrl> hostMap = new LinkedHashMap<>();
+
+    /**
+     * Create a new {@link HostRewriteInterceptor}.
+     * @param hostMap Map of host names to the base urls (scheme, host, and port) that requests for them should be sent
+     *                to instead. Host names match their subdomains too, and {@link #ANY_HOST} matches any host which
+     *                isn't otherwise mapped.
+     * @throws IllegalArgumentException if any of the base urls are invalid.
+     */
+    public HostRewriteInterceptor(Map<String, String> hostMap) {
+        for (Map.Entry<String, String> mapping : hostMap.entrySet()) {
+            HttpUrl baseUrl = HttpUrl.parse(mapping.getValue());
+            if (baseUrl == null) throw new IllegalArgumentException(mapping.getValue());
+            this.hostMap.put(mapping.getKey().toLowerCase(), baseUrl);
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request original = chain.request();
+        HttpUrl baseUrl = findBaseUrl(original.url().host());
+        if (baseUrl == null) return chain.proceed(original);
+
+        HttpUrl rewritten = original.url().newBuilder()
+                                    .scheme(baseUrl.scheme())
+                                    .host(baseUrl.host())
+                                    .port(baseUrl.port())
+                                    .build();
+        Response response = chain.proceed(original.newBuilder()
+                                                  .url(rewritten)
+                                                  .header(ORIGINAL_URL_HEADER, original.url().toString())
+                                                  .build());
+        return response.newBuilder().request(original).build();
+    }
+
+    /**
+     * Find the base url which requests for the given host should be sent to.
+     * @param host Host name.
+     * @return Base url, or null if the host isn't mapped.
+     */
+    private HttpUrl findBaseUrl(String host) {
+        for (Map.Entry<String, HttpUrl> mapping : hostMap.entrySet())
+            if (host.equals(mapping.getKey()) || host.endsWith("." + mapping.getKey())) return mapping.getValue();
+        return hostMap.get(ANY_HOST);
+    }
+}
@@ -0,0 +1,190 @@
+package bkromhout.fdl.net;
+
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import okhttp3.ConnectionPool;
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network settings for the shared OkHttpClient: connection pool size and keep-alive, timeouts, whether to prefer
+ * HTTP/2, and how long to cache DNS lookups. Also whether the {@link ChapterScheduler} hedges slow chapter requests.
+ * <p>
+ * The defaults are sized for running {@link bkromhout.fdl.site.Site#getMaxConnections() 10 connections} to each of the
+ * supported sites at once, and can be overridden from the config file using the {@code net.*} options in {@link
+ * #OPTIONS}.
+ */
+public class NetworkProfile {
+    /*
+    Config file option names.
+     */
+    public static final String OPT_POOL_SIZE = "net.pool_size";
+    public static final String OPT_KEEP_ALIVE = "net.keep_alive";
+    public static final String OPT_CONNECT_TIMEOUT = "net.connect_timeout";
+    public static final String OPT_READ_TIMEOUT = "net.read_timeout";
+    public static final String OPT_CALL_TIMEOUT = "net.call_timeout";
+    public static final String OPT_HTTP2 = "net.http2";
+    public static final String OPT_DNS_CACHE = "net.dns_cache";
+    public static final String OPT_HEDGE = "net.hedge";
+    public static final String OPT_MAX_HEDGES = "net.max_hedges";
+    /**
+     * All of the config file option names.
+     */
+    public static final List<String> OPTIONS = Collections.unmodifiableList(Arrays.asList(OPT_POOL_SIZE,
+            OPT_KEEP_ALIVE, OPT_CONNECT_TIMEOUT, OPT_READ_TIMEOUT, OPT_CALL_TIMEOUT, OPT_HTTP2, OPT_DNS_CACHE,
+            OPT_HEDGE, OPT_MAX_HEDGES));
+
+    /**
+     * Maximum number of idle connections to keep in the pool.
+     */
+    private int poolSize = 80;
+    /**
+     * How long to keep idle connections around, in seconds.
+     */
+    private long keepAliveSecs = 120L;
+    /**
+     * Connect timeout, in seconds. 0 means no timeout.
+     */
+    private long connectTimeoutSecs = 30L;
+    /**
+     * Read timeout, in seconds. 0 means no timeout.
+     */
+    private long readTimeoutSecs = 60L;
+    /**
+     * How long a call can take to get a response, in seconds, before it's cancelled. 0 means no deadline.
+     */
+    private long callTimeoutSecs = 120L;
+    /**
+     * Whether to negotiate HTTP/2 with sites which support it.
+     */
+    private boolean http2 = true;
+    /**
+     * How long to cache DNS lookups, in seconds. 0 disables caching.
+     */
+    private long dnsCacheSecs = 300L;
+    /**
+     * Whether to send a duplicate of a chapter request which is taking longer than usual for its host.
+     */
+    private boolean hedge = false;
+    /**
+     * Maximum number of duplicate chapter requests to have in flight at once, across all hosts.
+     */
+    private int maxHedges = 4;
+
+    /**
+     * Create a {@link NetworkProfile} with the default settings.
+     */
+    public NetworkProfile() {
+    }
+
+    /**
+     * Create a {@link NetworkProfile}, overriding the defaults with any of the {@link #OPTIONS} in the given map.
+     * Invalid values are logged and ignored.
+     * @param options Options, keyed by option name.
+     */
+    public NetworkProfile(Map<String, String> options) {
+        poolSize = (int) parse(options, OPT_POOL_SIZE, poolSize);
+        keepAliveSecs = parse(options, OPT_KEEP_ALIVE, keepAliveSecs);
+        connectTimeoutSecs = parse(options, OPT_CONNECT_TIMEOUT, connectTimeoutSecs);
+        readTimeoutSecs = parse(options, OPT_READ_TIMEOUT, readTimeoutSecs);
+        callTimeoutSecs = parse(options, OPT_CALL_TIMEOUT, callTimeoutSecs);
+        dnsCacheSecs = parse(options, OPT_DNS_CACHE, dnsCacheSecs);
+        maxHedges = (int) parse(options, OPT_MAX_HEDGES, maxHedges);
+        if (options.containsKey(OPT_HTTP2)) http2 = Boolean.parseBoolean(options.get(OPT_HTTP2).trim());
+        if (options.containsKey(OPT_HEDGE)) hedge = Boolean.parseBoolean(options.get(OPT_HEDGE).trim());
+    }
+
+    /**
+     * Parse a non-negative number option.
+     * @param options      Options.
+     * @param name         Option name.
+     * @param defaultValue Value to use if the option isn't present or is invalid.
+     * @return Option value.
+     */
+    private static long parse(Map<String, String> options, String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) return defaultValue;
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= 0L && parsed <= Integer.MAX_VALUE) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        Util.logf(C.INVALID_NET_OPTION, name, value, defaultValue);
+        return defaultValue;
+    }
+
+    /**
+     * Apply this profile to an OkHttpClient builder. This replaces the builder's connection pool and DNS resolver.
+     * @param builder OkHttpClient builder.
+     * @return The same builder.
+     */
+    public OkHttpClient.Builder apply(OkHttpClient.Builder builder) {
+        return apply(builder, newConnectionPool());
+    }
+
+    /**
+     * Apply this profile to an OkHttpClient builder, but use the given connection pool instead of making a new one.
+     * This replaces the builder's DNS resolver.
+     * @param builder OkHttpClient builder.
+     * @param pool    Connection pool to use.
+     * @return The same builder.
+     */
+    public OkHttpClient.Builder apply(OkHttpClient.Builder builder, ConnectionPool pool) {
+        builder.connectionPool(pool)
+               .connectTimeout(connectTimeoutSecs, TimeUnit.SECONDS)
+               .readTimeout(readTimeoutSecs, TimeUnit.SECONDS)
+               .dns(dnsCacheSecs > 0L ? new CachingDns(dnsCacheSecs, TimeUnit.SECONDS) : Dns.SYSTEM);
+        if (http2) builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        else builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        return builder;
+    }
+
+    /**
+     * Make a connection pool with this profile's size and keep-alive.
+     * @return New connection pool.
+     */
+    public ConnectionPool newConnectionPool() {
+        return new ConnectionPool(poolSize, keepAliveSecs, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Check whether this profile's connection pool settings are the same as another profile's, in which case the
+     * two can share a connection pool.
+     * @param other Other profile.
+     * @return True if both profiles have the same pool size and keep-alive.
+     */
+    public boolean hasSamePoolAs(NetworkProfile other) {
+        return other != null && poolSize == other.poolSize && keepAliveSecs == other.keepAliveSecs;
+    }
+
+    /**
+     * Get how long a call can take to get a response before it's cancelled.
+     * @return Call timeout, in milliseconds. 0 means no deadline.
+     */
+    public long getCallTimeoutMs() {
+        return TimeUnit.SECONDS.toMillis(callTimeoutSecs);
+    }
+
+    /**
+     * Check whether slow chapter requests should be hedged.
+     * @return True if a duplicate should be sent for chapter requests which are slower than usual.
+     */
+    public boolean isHedging() {
+        return hedge && maxHedges > 0;
+    }
+
+    /**
+     * Get the maximum number of duplicate chapter requests to have in flight at once.
+     * @return Hedge cap.
+     */
+    public int getMaxHedges() {
+        return maxHedges;
+    }
+}
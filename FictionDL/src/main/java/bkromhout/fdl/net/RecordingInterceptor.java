@@ -0,0 +1,47 @@
+package bkromhout.fdl.net;
+
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+
+/**
+ * OkHttp interceptor which saves every successful response it sees to a {@link FixtureStore} so that the run can be
+ * replayed later by a {@link FixtureServer}.
+ */
+public class RecordingInterceptor implements Interceptor {
+    /**
+     * Where to save responses.
+     */
+    private final FixtureStore store;
+
+    /**
+     * Create a new {@link RecordingInterceptor}.
+     * @param store Fixture store to record responses to.
+     */
+    public RecordingInterceptor(FixtureStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+        if (!response.isSuccessful()) return response;
+
+        // Read the body so we can save it, then hand back a response with a fresh copy of the body.
+        ResponseBody body = response.body();
+        byte[] bytes = body.bytes();
+        try {
+            store.save(request, response, bytes);
+        } catch (IOException e) {
+            // Failing to record shouldn't fail the download.
+            Util.loudf(C.RECORD_FIXTURE_FAILED, request.url());
+        }
+        return response.newBuilder().body(ResponseBody.create(body.contentType(), bytes)).build();
+    }
+}
@@ -1,5 +1,6 @@
 package bkromhout.fdl.parsing;
 
+import bkromhout.fdl.net.NetworkProfile;
 import bkromhout.fdl.site.Site;
 import bkromhout.fdl.site.Sites;
 import bkromhout.fdl.util.C;
@@ -26,7 +27,7 @@ public class ConfigFileParser extends FileParser {
     // Config instance.
     private Config config;
     // Site name regex.
-    private String siteNameRegex;
+    private Pattern siteNameRegex;
     // Site which will be given any site-specific preferences.
     private String currSite;
 
@@ -41,7 +42,7 @@ public class ConfigFileParser extends FileParser {
     @Override
     protected void init() {
         config = new Config();
-        siteNameRegex = buildSitesOrRegex(Sites.all());
+        siteNameRegex = Pattern.compile(buildSitesOrRegex(Sites.all()));
     }
 
     /**
@@ -60,7 +61,7 @@ public class ConfigFileParser extends FileParser {
         String prefix = line.substring(0, line.indexOf('='));
         switch (prefix) {
             case CFG_LS_SITE: {
-                Matcher siteMatcher = Pattern.compile(siteNameRegex).matcher(line); // Ensure valid site.
+                Matcher siteMatcher = siteNameRegex.matcher(line); // Ensure valid site.
                 // Let's be nice, if a site is misspelled or something, don't potentially overwrite a previous site's
                 // info later. If it is a valid site name, then update the current site.
                 currSite = siteMatcher.find() ? siteMatcher.group() : null;
@@ -73,7 +74,10 @@ public class ConfigFileParser extends FileParser {
                 break;
             }
             default: {
-                Util.loudf(C.PROCESS_LINE_FAILED, type, line);
+                // Network options apply to all sites.
+                if (NetworkProfile.OPTIONS.contains(prefix)) config.options.put(prefix, line.substring(
+                        line.indexOf('=') + 1));
+                else Util.loudf(C.PROCESS_LINE_FAILED, type, line);
             }
         }
     }
@@ -106,7 +110,8 @@ public class ConfigFileParser extends FileParser {
      */
     public class Config {
         /**
-         * Config options storage. Keys for options are of the format "[Human-readable Site Name][Option prefix]".
+         * Config options storage. Keys for site options are of the format "[Human-readable Site Name][Option prefix]",
+         * and keys for network options are the option names from {@link NetworkProfile#OPTIONS}.
          */
         private final HashMap<String, String> options = new HashMap<>();
 
@@ -131,5 +136,21 @@ public class ConfigFileParser extends FileParser {
         public boolean hasCreds(Site site) {
             return getCreds(site) != null;
         }
+
+        /**
+         * Check if any network options were given.
+         * @return True if the config file had at least one of the {@link NetworkProfile#OPTIONS}.
+         */
+        public boolean hasNetworkOptions() {
+            return NetworkProfile.OPTIONS.stream().anyMatch(options::containsKey);
+        }
+
+        /**
+         * Get a {@link NetworkProfile} which uses the network options that were given, and defaults for the rest.
+         * @return Network profile.
+         */
+        public NetworkProfile getNetworkProfile() {
+            return new NetworkProfile(options);
+        }
     }
 }
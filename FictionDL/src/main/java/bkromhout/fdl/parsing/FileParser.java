@@ -16,7 +16,7 @@ abstract class FileParser {
      * Valid file types for parsing.
      */
     enum FileType {
-        INPUT("input"), CONFIG("config");
+        INPUT("input"), CONFIG("config"), HOST_MAP("host map");
 
         private final String ufName;
 
@@ -52,10 +52,14 @@ abstract class FileParser {
     protected abstract void init();
 
     /**
-     * Parse the file and process it.
+     * Parse the file and process it. By default, this reads the file line-by-line and calls {@link
+     * #processLine(String)} for each trimmed line.
+     * <p>
+     * Note that this is called from the constructor, so subclasses which override it can't rely on their own fields
+     * having been initialized yet.
      * @param file File to parse.
      */
-    private void parse(File file) {
+    void parse(File file) {
         Util.logf(C.PARSING_FILE, type);
         // Try to read lines from file into the url list
         try (BufferedReader br = new BufferedReader(new FileReader(file))) {
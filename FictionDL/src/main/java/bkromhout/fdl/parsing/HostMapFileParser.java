@@ -0,0 +1,52 @@
+package bkromhout.fdl.parsing;
+
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+
+/**
+ * Parses a host map file, which is used to send requests for certain hosts somewhere else (such as a local fixture
+ * server).
+ * <p>
+ * Each line should look like "[Host]=[Base URL]", for example "fanfiction.net=http://localhost:8080". A host also
+ * matches its subdomains, and a host of "*" matches any host which isn't otherwise mapped. Lines starting with "#" are
+ * ignored.
+ */
+public class HostMapFileParser extends FileParser {
+    // Host map, in file order.
+    private LinkedHashMap<String, String> hostMap;
+
+    /**
+     * Parses the host map file.
+     * @param hostMapFile Host map file.
+     */
+    public HostMapFileParser(File hostMapFile) {
+        super(FileType.HOST_MAP, hostMapFile);
+    }
+
+    @Override
+    protected void init() {
+        hostMap = new LinkedHashMap<>();
+    }
+
+    @Override
+    protected void processLine(String line) {
+        if (line.isEmpty() || line.startsWith("#")) return;
+        int eqIdx = line.indexOf('=');
+        if (eqIdx <= 0 || eqIdx == line.length() - 1) {
+            Util.loudf(C.PROCESS_LINE_FAILED, type, line);
+            return;
+        }
+        hostMap.put(line.substring(0, eqIdx).trim(), line.substring(eqIdx + 1).trim());
+    }
+
+    /**
+     * Get the host mappings parsed from the file.
+     * @return Host map, in file order. Never null.
+     */
+    public LinkedHashMap<String, String> getHostMap() {
+        return hostMap;
+    }
+}
@@ -7,59 +7,60 @@ import bkromhout.fdl.util.C;
 import bkromhout.fdl.util.Util;
 
 import java.io.File;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Parses the input file.
+ * <p>
+ * Input files can be very large, so rather than reading them line-by-line, the file is split into chunks at line
+ * boundaries which are decoded and classified in parallel. The classified lines are then applied strictly in file
+ * order, which is what keeps detail tags associated with the story link they follow.
  */
 public class InputFileParser extends FileParser {
     /**
-     * Regex for extracting host name from a url.
+     * Approximate size of the chunks that the file is split into, in bytes.
      */
-    private static final Pattern HOST_REGEX = Pattern.compile("^(http[s]?://)?([^:/\\s]+)(/.*)?$");
+    private static final int CHUNK_SIZE = 1 << 20;
     /**
-     * Regex for matching lines which point to local story directories.
-     * <p>
-     * Will match a line if, ignoring leading whitespace, it starts with "@fdl:ls=". (There can be whitespace before the
-     * "=", but anything after it will be part of group 1).
-     * <p>
-     * If a line matches, group 1 will contain the rest of the line following "=". This text is intended to be used as
-     * the name of a directory that is relative to the folder that the input file in in.
+     * Prefix which all local story and detail tag lines start with.
      */
-    private static final Pattern LOCAL_STORY_REGEX = Pattern.compile("^\\s*\\Q@fdl:ls\\E\\s*=(.*)$");
+    private static final String TAG_PREFIX = "@fdl:";
     /**
-     * Regex for matching lines which point to a directory that only contains local story directories.
-     * <p>
-     * Will match a line if, ignoring leading whitespace, it starts with "@fdl:ls_folder=". (There can be whitespace
-     * before the "=", but anything after it will be part of group 1).
-     * <p>
-     * If a line matches, group 1 will contain the rest of the line following "=". This text is intended to be used as
-     * the name of a directory that is relative to the folder that the input file in in.
+     * Name of the tag for lines which point to local story directories. Anything after the "=" is the name of a
+     * directory that is relative to the folder that the input file in in.
      */
-    private static final Pattern LOCAL_STORIES_FOLDER_REGEX = Pattern.compile("^\\s*\\Q@fdl:ls_folder\\E\\s*=(.*)$");
+    private static final String LOCAL_STORY_TAG = "ls";
     /**
-     * The names of the allowed detail tags.
+     * Name of the tag for lines which point to a directory that only contains local story directories. Anything after
+     * the "=" is the name of a directory that is relative to the folder that the input file in in.
      */
-    private static final String[] ALLOWED_DETAIL_TAGS = {C.J_TITLE, C.J_AUTHOR, C.J_SUMMARY, C.J_SERIES, C.J_FIC_TYPE,
-                                                         C.J_WARNINGS, C.J_RATING, C.J_GENRES, C.J_CHARACTERS};
+    private static final String LOCAL_STORIES_FOLDER_TAG = "ls_folder";
     /**
-     * Regex for matching detail tag lines. Only the detail tags in {@link #ALLOWED_DETAIL_TAGS} will be matched.
-     * <p>
-     * Will match a line if, ignoring leading whitespace, it starts with "@fdl:{Allowed Detail Tag}=", where {Allowed
-     * Detail Tag} is one of {@link #ALLOWED_DETAIL_TAGS}. (There can be whitespace before the "=", but anything after
-     * it will be part of group 1).
-     * <p>
-     * If a line matches, group 1 will contain the detail tag name, and group 2 will contain the rest of the line
-     * following "=".
+     * The names of the allowed detail tags.
      */
-    private static final Pattern DETAIL_TAG_REGEX =
-            Pattern.compile("^\\s*\\Q@fdl:\\E(" + Util.buildOrRegex(ALLOWED_DETAIL_TAGS) + ")\\s*=(.*)$");
+    private static final HashSet<String> ALLOWED_DETAIL_TAGS = new HashSet<>(Arrays.asList(C.J_TITLE, C.J_AUTHOR,
+            C.J_SUMMARY, C.J_SERIES, C.J_FIC_TYPE, C.J_WARNINGS, C.J_RATING, C.J_GENRES, C.J_CHARACTERS));
 
     /**
      * The last story entry created. Will be {@code null} if we haven't seen any story links yet.
+     * <p>
+     * Deliberately not initialized here, since the file is parsed before this class' field initializers would run.
      */
-    private StoryEntry lastStoryEntry = null;
+    private StoryEntry lastStoryEntry;
 
     /**
      * Create a new {@link InputFileParser} to parse the given file.
@@ -78,83 +79,241 @@ public class InputFileParser extends FileParser {
     }
 
     @Override
-    protected void processLine(String line) throws IllegalStateException {
-        // Ignore a line if it starts with a #.
-        if (line.startsWith("#")) return;
-
-        // Check if this line specifies a single local story folder.
-        Matcher matcher = LOCAL_STORY_REGEX.matcher(line);
-        if (matcher.matches()) {
-            // Get the directory name from the line, stripping any leading/trailing whitespace.
-            String dirName = matcher.group(1).trim();
-            // Add the directory name to the list of local story directories in the local story processor if non-empty.
-            if (!dirName.isEmpty()) C.getEventBus().post(new AddLSDirNameEvent(dirName));
-            return;
+    void parse(File file) {
+        Util.logf(C.PARSING_FILE, type);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Start classifying all of the chunks in parallel.
+            List<CompletableFuture<List<InputLine>>> chunks = new ArrayList<>();
+            for (long[] bounds : findChunks(channel))
+                chunks.add(CompletableFuture.supplyAsync(() -> classifyChunk(channel, bounds[0], bounds[1])));
+            // Apply the lines from each chunk in order, as soon as each chunk is ready.
+            for (CompletableFuture<List<InputLine>> chunk : chunks)
+                chunk.join().forEach(this::apply);
+        } catch (IOException | CompletionException e) {
+            e.printStackTrace();
         }
+        Util.log(C.DONE);
+    }
 
-        // Check if this line specifies a folder whose subfolders should all be treated as local story folders.
-        matcher = LOCAL_STORIES_FOLDER_REGEX.matcher(line);
-        if (matcher.matches()) {
-            // Get the directory name from the line, stripping any leading/trailing whitespace.
-            String dirName = matcher.group(1).trim();
-            // Add the directory name to the list of local story directories in the local story processor if
-            // non-empty, but be sure to tell it that it needs to check for subfolders!
-            if (!dirName.isEmpty()) C.getEventBus().post(new AddLSDirNameEvent(dirName, true));
-            return;
+    @Override
+    protected void processLine(String line) {
+        InputLine inputLine = classify(line);
+        if (inputLine != null) apply(inputLine);
+    }
+
+    /**
+     * Split the file into chunks of roughly {@link #CHUNK_SIZE} bytes, making sure that each chunk ends at the end of a
+     * line. This is safe to do on the raw bytes, since a newline byte can't be part of a multi-byte UTF-8 character.
+     * @param channel File channel.
+     * @return List of chunk bounds, each of which is a {start, end} pair of file positions.
+     * @throws IOException if the file can't be read.
+     */
+    private static List<long[]> findChunks(FileChannel channel) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long size = channel.size();
+        long start = 0L;
+        while (start < size) {
+            long end = Math.min(start + CHUNK_SIZE, size);
+            if (end < size) end = nextLineStart(channel, end);
+            chunks.add(new long[] {start, end});
+            start = end;
         }
+        return chunks;
+    }
 
-        // Try to match this line as an http(s) url so that we can extract the host.
-        matcher = HOST_REGEX.matcher(line);
-        if (matcher.matches()) {
-            String hostString = matcher.group(2).toLowerCase();
-            // Try to add the line (which we now know is a url) to a Site's list, and return immediately if there is
-            // a site which can handle it.
-            if (tryAddUrlToSomeSite(hostString, line))
-                return;
+    /**
+     * Find the start of the next line at or after the given position.
+     * @param channel  File channel.
+     * @param position Position to start looking from.
+     * @return Position just after the next newline, or the file size if there are no more newlines.
+     * @throws IOException if the file can't be read.
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) return channel.size();
+            for (int i = 0; i < read; i++)
+                if (buffer.get(i) == '\n') return position + i + 1;
+            position += read;
         }
+    }
 
-        // Try to match this line as a detail tag.
-        matcher = DETAIL_TAG_REGEX.matcher(line);
-        if (matcher.matches()) {
-            // If we haven't seen a story link yet, then we can't use this detail tag, so we log and ignore it.
-            if (lastStoryEntry == null) {
-                Util.logf(C.DETAIL_TAG_IGNORED, line.trim());
-                return;
-            }
-            // Get the detail tag name to use as the tag name.
-            String tagName = matcher.group(1).trim();
-            String detail = matcher.group(2).trim();
-            // Add this detail to the last story entry we made.
-            lastStoryEntry.addDetailTag(tagName, detail);
-            return;
+    /**
+     * Decode a chunk of the file and classify each of its lines.
+     * @param channel File channel.
+     * @param start   Position of the start of the chunk.
+     * @param end     Position of the end of the chunk.
+     * @return Classified lines, in order. Blank and comment lines are left out.
+     */
+    private static List<InputLine> classifyChunk(FileChannel channel, long start, long end) {
+        CharBuffer chars;
+        try {
+            chars = StandardCharsets.UTF_8.newDecoder()
+                                          .onMalformedInput(CodingErrorAction.REPLACE)
+                                          .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                                          .decode(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+        } catch (CharacterCodingException e) {
+            // Can't happen since we replace bad input, but the decoder still declares it.
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        // Skip a byte order mark at the very start of the file.
+        if (start == 0L && chars.length() > 0 && chars.charAt(0) == '\uFEFF') chars.position(1);
 
-        // Verbose log this line if we got here and it's non-empty, we couldn't process it.
-        if (!line.trim().isEmpty()) Util.loudf(C.PROCESS_LINE_FAILED, type, line);
+        List<InputLine> lines = new ArrayList<>();
+        String text = chars.toString();
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) lineEnd = text.length();
+            InputLine line = classify(text.substring(lineStart, lineEnd));
+            if (line != null) lines.add(line);
+            lineStart = lineEnd + 1;
+        }
+        return lines;
     }
 
     /**
-     * Using the given host string, figure out which site the given {@code url} belongs to, then create a new {@link
-     * StoryEntry} and assigns it to that site.
-     * @param hostString String parsed from the line that should contain a substring which is equal to some {@link
-     *                   Site#host} value.
-     * @param url        The url to use to create a new {@link StoryEntry} to add to some {@link Site Site}'s {@link
-     *                   Site#storyEntries story entry list}.
-     * @return True if a {@link Site} was found to add the url to, otherwise false. Returns false immediately if either
-     * parameter is null or empty.
-     */
-    private boolean tryAddUrlToSomeSite(String hostString, String url) {
-        if (hostString == null || hostString.isEmpty() || url == null || url.isEmpty()) return false;
-        // Iterate through the list of sites to find one to add the url to.
-        for (Site site : Sites.all()) {
-            if (hostString.contains(site.getHost())) {
-                // Found a site which we can add this URL to.
-                lastStoryEntry = new StoryEntry(url);
-                site.getStoryEntries().add(lastStoryEntry);
-                return true;
-            }
+     * Figure out what a line from the input file is. This only looks at the line and the set of supported sites, so it
+     * is safe to call from any thread.
+     * @param rawLine Line.
+     * @return Classified line, or null if the line is blank or a comment.
+     */
+    static InputLine classify(String rawLine) {
+        String line = rawLine.trim();
+        // Ignore a line if it's empty or starts with a #.
+        if (line.isEmpty() || line.startsWith("#")) return null;
+
+        // Check if the line is a local story or detail tag line, which look like "@fdl:{tag}={value}". (There can be
+        // whitespace before the "=", but anything after it is part of the value.)
+        if (line.startsWith(TAG_PREFIX)) {
+            int eq = line.indexOf('=');
+            if (eq < 0) return new InputLine(Kind.UNKNOWN, line);
+            String tag = trimEnd(line.substring(TAG_PREFIX.length(), eq));
+            String value = line.substring(eq + 1).trim();
+            if (LOCAL_STORY_TAG.equals(tag)) return new InputLine(Kind.LOCAL_STORY, line, null, value);
+            if (LOCAL_STORIES_FOLDER_TAG.equals(tag))
+                return new InputLine(Kind.LOCAL_STORIES_FOLDER, line, null, value);
+            if (ALLOWED_DETAIL_TAGS.contains(tag)) return new InputLine(Kind.DETAIL_TAG, line, tag, value);
+            return new InputLine(Kind.UNKNOWN, line);
+        }
+
+        // Check if the line is a url for a supported site.
+        Site site = Sites.forHost(extractHost(line));
+        if (site != null) return new InputLine(Kind.STORY_URL, line, site, null, site.canonicalize(line));
+        return new InputLine(Kind.UNKNOWN, line);
+    }
+
+    /**
+     * Do whatever a classified line says to do. Lines must be applied in the order they appear in the file.
+     * @param line Classified line.
+     */
+    private void apply(InputLine line) {
+        switch (line.kind) {
+            case LOCAL_STORY:
+                // Add the directory name to the list of local story directories in the local story processor if
+                // non-empty.
+                if (!line.value.isEmpty()) C.getEventBus().post(new AddLSDirNameEvent(line.value));
+                break;
+            case LOCAL_STORIES_FOLDER:
+                // Add the directory name to the list of local story directories in the local story processor if
+                // non-empty, but be sure to tell it that it needs to check for subfolders!
+                if (!line.value.isEmpty()) C.getEventBus().post(new AddLSDirNameEvent(line.value, true));
+                break;
+            case STORY_URL:
+                // If this is a duplicate of a story we've already seen, then any detail tags which follow it will be
+                // merged into the existing entry.
+                lastStoryEntry = line.site.addStoryEntry(line.line, line.value);
+                break;
+            case DETAIL_TAG:
+                // If we haven't seen a story link yet, then we can't use this detail tag, so we log and ignore it.
+                if (lastStoryEntry == null) Util.logf(C.DETAIL_TAG_IGNORED, line.line);
+                else lastStoryEntry.addDetailTag(line.tag, line.value);
+                break;
+            default:
+                // We couldn't process this line.
+                Util.loudf(C.PROCESS_LINE_FAILED, type, line.line);
+        }
+    }
+
+    /**
+     * Extract the host from a line which might be a url, with or without an http(s) scheme.
+     * @param line Line.
+     * @return Lower-case host, or null if the line can't be a url.
+     */
+    private static String extractHost(String line) {
+        int hostStart = line.startsWith("http://") ? 7 : line.startsWith("https://") ? 8 : 0;
+        int hostEnd = line.indexOf('/', hostStart);
+        if (hostEnd < 0) hostEnd = line.length();
+        if (hostEnd == hostStart) return null;
+        for (int i = hostStart; i < hostEnd; i++) {
+            char c = line.charAt(i);
+            if (c == ':' || Character.isWhitespace(c)) return null;
+        }
+        return line.substring(hostStart, hostEnd).toLowerCase();
+    }
+
+    /**
+     * Remove trailing whitespace from a string.
+     * @param str String.
+     * @return String without trailing whitespace.
+     */
+    private static String trimEnd(String str) {
+        int end = str.length();
+        while (end > 0 && Character.isWhitespace(str.charAt(end - 1))) end--;
+        return str.substring(0, end);
+    }
+
+    /**
+     * Kinds of lines which can appear in an input file.
+     */
+    enum Kind {
+        STORY_URL, DETAIL_TAG, LOCAL_STORY, LOCAL_STORIES_FOLDER, UNKNOWN
+    }
+
+    /**
+     * A line from the input file, classified and split into its parts.
+     */
+    static final class InputLine {
+        /**
+         * What kind of line this is.
+         */
+        final Kind kind;
+        /**
+         * The trimmed line.
+         */
+        final String line;
+        /**
+         * Site which the line's url belongs to, for {@link Kind#STORY_URL} lines.
+         */
+        final Site site;
+        /**
+         * Detail tag name, for {@link Kind#DETAIL_TAG} lines.
+         */
+        final String tag;
+        /**
+         * Trimmed text following the "=" for detail tag and local story lines, or the canonical story key for {@link
+         * Kind#STORY_URL} lines.
+         */
+        final String value;
+
+        private InputLine(Kind kind, String line) {
+            this(kind, line, null, null, null);
+        }
+
+        private InputLine(Kind kind, String line, String tag, String value) {
+            this(kind, line, null, tag, value);
+        }
+
+        private InputLine(Kind kind, String line, Site site, String tag, String value) {
+            this.kind = kind;
+            this.line = line;
+            this.site = site;
+            this.tag = tag;
+            this.value = value;
         }
-        // No site found to add the url to.
-        return false;
     }
 }
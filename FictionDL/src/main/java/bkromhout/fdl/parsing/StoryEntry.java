@@ -11,6 +11,10 @@ public class StoryEntry {
      * URL of the story.
      */
     private final String url;
+    /**
+     * Canonical key for the story, which is the same for every URL which points to the same story.
+     */
+    private final String key;
     /**
      * Details about the story which were provided in the input file. These will override any equivalent details when
      * creating stories from sites which use parsing downloaders, but will be ignored for stories on sites where we
@@ -19,12 +23,22 @@ public class StoryEntry {
     private final HashMap<String, String> detailTags;
 
     /**
-     * Create a new {@link StoryEntry}.
+     * Create a new {@link StoryEntry} whose key is its URL.
      * @param url Story URL.
      */
     public StoryEntry(String url) {
+        this(url, url);
+    }
+
+    /**
+     * Create a new {@link StoryEntry}.
+     * @param url Story URL.
+     * @param key Canonical key for the story, usually from {@link bkromhout.fdl.site.Site#canonicalize(String)}.
+     */
+    public StoryEntry(String url, String key) {
         if (url == null || url.isEmpty()) throw new IllegalArgumentException("URL must not be null or empty.");
         this.url = url;
+        this.key = key != null ? key : url;
         this.detailTags = new HashMap<>();
     }
 
@@ -36,6 +50,14 @@ public class StoryEntry {
         return url;
     }
 
+    /**
+     * Get the canonical key for the story.
+     * @return Story key.
+     */
+    public String getKey() {
+        return key;
+    }
+
     /**
      * Add a detail for the story which will override the equivalent detail parsed from the site.
      * @param tagName Detail tag name.
@@ -46,7 +68,8 @@ public class StoryEntry {
     }
 
     /**
-     * Copies the detailTags from anther {@link StoryEntry} to this one. Doesn't replace the URL.
+     * Copies the detailTags from anther {@link StoryEntry} to this one, replacing any details which this entry already
+     * has (so, like with duplicate entries, whichever entry is added later wins). Doesn't replace the URL.
      * @param detailTags A HashMap of story detail tags.
      */
     public void addDetailTags(HashMap<String, String> detailTags) {
@@ -66,12 +89,12 @@ public class StoryEntry {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         StoryEntry that = (StoryEntry) o;
-        return url.equals(that.url);
+        return key.equals(that.key);
 
     }
 
     @Override
     public int hashCode() {
-        return url.hashCode();
+        return key.hashCode();
     }
 }
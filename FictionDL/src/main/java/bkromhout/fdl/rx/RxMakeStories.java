@@ -2,6 +2,8 @@ package bkromhout.fdl.rx;
 
 import bkromhout.fdl.Main;
 import bkromhout.fdl.ex.InitStoryException;
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.metrics.Stage;
 import bkromhout.fdl.parsing.StoryEntry;
 import bkromhout.fdl.stories.Story;
 import bkromhout.fdl.util.C;
@@ -46,6 +48,7 @@ public class RxMakeStories implements Observable.Transformer<StoryEntry, Story>
 
         @Override
         public void call(Subscriber<? super Story> sub) {
+            long start = System.nanoTime();
             try {
                 // Doing a bit of reflection magic here to construct story classes ;)
                 sub.onNext(storyClass.getConstructor(StoryEntry.class).newInstance(entry));
@@ -68,6 +71,8 @@ public class RxMakeStories implements Observable.Transformer<StoryEntry, Story>
                 // Shouldn't hit this at all. Fail hard if it happens.
                 e.printStackTrace();
                 Main.exit(1);
+            } finally {
+                Metrics.stageTime(Stage.MODEL_BUILD, start);
             }
         }
     }
@@ -2,6 +2,8 @@ package bkromhout.fdl.rx;
 
 import bkromhout.fdl.ex.RequestException;
 import bkromhout.fdl.ex.ResponseException;
+import bkromhout.fdl.net.CallDeadline;
+import bkromhout.fdl.net.ConcurrencyLimiter;
 import bkromhout.fdl.util.C;
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -9,19 +11,26 @@ import okhttp3.Request;
 import okhttp3.Response;
 import rx.Observable;
 import rx.Subscriber;
+import rx.schedulers.Schedulers;
 import rx.subscriptions.Subscriptions;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.concurrent.Executor;
 
 /**
- * Transforms OkHttp Requests to Responses asynchronously.
+ * Transforms OkHttp Requests to Responses asynchronously. Each Response's request keeps the original Request's tag
+ * (such as a chapter number from {@link bkromhout.fdl.chapter.ChapterSource#requestFor(String, int)}), even if it was
+ * redirected.
  */
 public class RxOkHttpCall implements Observable.Transformer<Request, Response> {
 
     @Override
     public Observable<Response> call(Observable<Request> requests) {
-        return requests.flatMap(request -> Observable.create(new ExecuteRequest(request)));
+        // Subscribed to on the IO scheduler, since each request might have to wait for room under its site's
+        // concurrency limit.
+        return requests.flatMap(request -> Observable.create(new ExecuteRequest(request))
+                                                     .subscribeOn(Schedulers.io()));
     }
 
     /**
@@ -51,30 +60,44 @@ public class RxOkHttpCall implements Observable.Transformer<Request, Response> {
 
         @Override
         public void call(final Subscriber<? super Response> sub) {
+            try {
+                ConcurrencyLimiter.awaitRoomFor(request);
+            } catch (InterruptedIOException e) {
+                sub.onError(new RequestException(request, e));
+                return;
+            }
             // Create OkHttp Call.
             final Call call = C.getHttpClient().newCall(request);
             // Make sure that the request is cancelled when unsubscribing.
             sub.add(Subscriptions.create(() -> cancellationExecutor.execute(call::cancel)));
 
-            // Enqueue the call.
+            // Enqueue the call, making sure it's cancelled if it doesn't get a response in time.
+            final CallDeadline deadline = CallDeadline.start(call);
             call.enqueue(new Callback() {
                 @Override
                 public void onFailure(Call innerCall, IOException e) {
+                    deadline.done();
                     if (sub.isUnsubscribed()) return;
                     sub.onError(new RequestException(innerCall.request(), e));
                 }
 
                 @Override
                 public void onResponse(Call innerCall, Response response) throws IOException {
-                    if (sub.isUnsubscribed()) return;
+                    if (sub.isUnsubscribed() || !response.isSuccessful()) deadline.done();
+                    if (sub.isUnsubscribed()) {
+                        response.body().close();
+                        return;
+                    }
                     // Make sure the response is actually valid.
                     if (!response.isSuccessful()) {
                         response.body().close(); // Make sure the response body is closed so that it doesn't leak.
                         sub.onError(new ResponseException(
                                 String.format(C.UNEXP_HTML_RESP, response.request().url()), response));
+                        return;
                     }
-                    // If we were successful, notify the subscriber and then indicate we're complete.
-                    sub.onNext(response);
+                    // If we were successful, notify the subscriber and then indicate we're complete. The deadline keeps
+                    // running until the subscriber has read the body.
+                    sub.onNext(deadline.doneWhenClosed(response));
                     sub.onCompleted();
                 }
             });
@@ -0,0 +1,88 @@
+package bkromhout.fdl.rx;
+
+import bkromhout.fdl.chapter.Chapter;
+import bkromhout.fdl.chapter.ChapterSource;
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.stories.Story;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import rx.Observable;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts {@link ChapterSource}s to {@link Chapter}s on a dedicated pool of parse threads, one per CPU, so that
+ * parsing never happens on the threads which emitted the sources (which, for downloaded chapters, are OkHttp's network
+ * threads). Sources should already have had their bodies {@link ChapterSource#buffer() buffered}.
+ * <p>
+ * The number of sources waiting for a parse thread and the number being parsed are reported as {@link Metrics}
+ * gauges, so it's easy to see whether the network or the parse stage is the one holding things up.
+ */
+public class RxParseChapters implements Observable.Transformer<ChapterSource, Chapter> {
+    /**
+     * Number of parse threads.
+     */
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /**
+     * Scheduler backed by the parse threads, shared by all stories.
+     */
+    private static final Scheduler parseScheduler = Schedulers.from(Executors.newFixedThreadPool(THREADS,
+            new ThreadFactoryBuilder().setNameFormat("fdl-parse-%d").setDaemon(true).build()));
+    /**
+     * Number of sources waiting for a parse thread.
+     */
+    private static final AtomicInteger queued = new AtomicInteger(0);
+    /**
+     * Number of sources being parsed.
+     */
+    private static final AtomicInteger parsing = new AtomicInteger(0);
+    /**
+     * {@link Story} to make {@link Chapter}s for.
+     */
+    private final Story story;
+
+    /**
+     * Make {@link Chapter}s for the given {@link Story}.
+     * @param story Story.
+     */
+    public RxParseChapters(Story story) {
+        this.story = story;
+    }
+
+    @Override
+    public Observable<Chapter> call(Observable<ChapterSource> sources) {
+        return sources.flatMap(this::parse);
+    }
+
+    /**
+     * Queue a source to be made into a {@link Chapter} on a parse thread.
+     * @param source Chapter source.
+     * @return Observable which emits the chapter (which may be null if we had issues).
+     */
+    private Observable<Chapter> parse(ChapterSource source) {
+        // Whether a parse thread has picked up the source, or it was dropped because we were unsubscribed first.
+        AtomicBoolean taken = new AtomicBoolean(false);
+        Metrics.gauge("parse_queue_depth", queued.incrementAndGet());
+        return Observable
+                .fromCallable(() -> {
+                    if (!taken.compareAndSet(false, true)) return null;
+                    Metrics.gauge("parse_queue_depth", queued.decrementAndGet());
+                    Metrics.gauge("parse_in_progress", parsing.incrementAndGet());
+                    try {
+                        return source.toChapter(story);
+                    } finally {
+                        Metrics.gauge("parse_in_progress", parsing.decrementAndGet());
+                    }
+                })
+                .subscribeOn(parseScheduler)
+                .doOnUnsubscribe(() -> {
+                    if (!taken.compareAndSet(false, true)) return;
+                    Metrics.gauge("parse_queue_depth", queued.decrementAndGet());
+                    // The source will never be parsed, so give its buffer back to the pool now.
+                    source.release();
+                });
+    }
+}
@@ -0,0 +1,288 @@
+package bkromhout.fdl.server;
+
+import bkromhout.fdl.FictionDL;
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches a folder for new input files and local story folders, and runs each one as a job on a {@link JobRunner} as
+ * soon as it has finished being written.
+ * <p>
+ * Anything in the folder which isn't hidden is picked up: files are treated as input files, and folders are treated as
+ * local story folders (or as folders of local story folders, if they don't have a storyinfo.json file). Once a job is
+ * done, its file or folder is moved to the "done" or "failed" folder.
+ * <p>
+ * The queue is saved to a file in the watched folder whenever it changes, so anything which was queued but hadn't
+ * finished when we stopped is run again when we start watching the folder again.
+ */
+public class FolderWatcher {
+    /**
+     * Name of the queue file in the watched folder.
+     */
+    private static final String QUEUE_FILE_NAME = ".fdl-queue.json";
+    /**
+     * Prefix for the input files we write for local story folders. They're hidden, so they aren't picked up.
+     */
+    private static final String LOCAL_INPUT_PREFIX = ".fdl-ls-";
+    /**
+     * Name of the folder which successful jobs' files are moved to.
+     */
+    private static final String DONE_DIR = "done";
+    /**
+     * Name of the folder which failed jobs' files are moved to.
+     */
+    private static final String FAILED_DIR = "failed";
+    /**
+     * How long a file or folder must go without being modified before we assume it has been completely written.
+     */
+    private static final long SETTLE_MS = 2_000L;
+    /**
+     * How long to wait for changes to the folder before checking it again anyway, so that files which are still
+     * settling are noticed once they've settled.
+     */
+    private static final long POLL_MS = 1_000L;
+    /**
+     * Runner to submit jobs to.
+     */
+    private final JobRunner runner;
+    /**
+     * Folder to watch.
+     */
+    private final Path dir;
+    /**
+     * Output directory for jobs.
+     */
+    private final Path outDir;
+    /**
+     * Config file for jobs, or null.
+     */
+    private final Path configFile;
+    /**
+     * Queue file.
+     */
+    private final Path queueFile;
+    /**
+     * Names of queued files and folders, in the order they were queued.
+     */
+    private final LinkedHashSet<String> queue = new LinkedHashSet<>();
+    /**
+     * Names of queued files and folders which have been submitted to the runner.
+     */
+    private final Set<String> submitted = new HashSet<>();
+
+    /**
+     * Create a new {@link FolderWatcher}.
+     * @param runner     Runner to submit jobs to.
+     * @param dir        Folder to watch.
+     * @param outDir     Output directory for jobs. If null, an "out" folder in the watched folder is used.
+     * @param configFile Config file for jobs, or null. It's read again for each job, so it can be changed while we're
+     *                   watching.
+     */
+    public FolderWatcher(JobRunner runner, Path dir, Path outDir, Path configFile) {
+        this.runner = runner;
+        this.dir = dir.toAbsolutePath();
+        this.outDir = outDir != null ? outDir.toAbsolutePath() : this.dir.resolve("out");
+        this.configFile = configFile;
+        this.queueFile = this.dir.resolve(QUEUE_FILE_NAME);
+    }
+
+    /**
+     * Watch the folder until the runner is shut down.
+     * @throws IOException          if the folder can't be watched.
+     * @throws InterruptedException if interrupted while waiting for changes.
+     */
+    public void run() throws IOException, InterruptedException {
+        Files.createDirectories(dir.resolve(DONE_DIR));
+        Files.createDirectories(dir.resolve(FAILED_DIR));
+        Files.createDirectories(outDir);
+        loadQueue();
+        Util.logf(C.WATCHING_FOLDER, dir);
+
+        try (WatchService watchService = dir.getFileSystem().newWatchService()) {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (!runner.isShutdown()) {
+                scan();
+                submitQueued();
+                // Wake up as soon as something changes, or every so often so that we notice things settling.
+                WatchKey key = watchService.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Look for new files and folders which have settled, and queue them. Also forget about queued ones which have
+     * disappeared before being run.
+     */
+    private synchronized void scan() {
+        boolean changed = queue.removeIf(name -> !submitted.contains(name) && !Files.exists(dir.resolve(name)));
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (queue.contains(name) || isIgnored(entry) || !hasSettled(entry)) continue;
+                queue.add(name);
+                changed = true;
+                Util.logf(C.WATCH_QUEUED, name);
+            }
+        } catch (IOException e) {
+            Util.logf(C.WATCH_SCAN_FAILED, dir, e.getMessage());
+        }
+        if (changed) saveQueue();
+    }
+
+    /**
+     * Submit queued files and folders which haven't been submitted yet.
+     */
+    private synchronized void submitQueued() {
+        for (String name : queue) {
+            if (!submitted.add(name)) continue;
+            try {
+                runner.submit(makeRequest(name)).whenDone().thenAccept(job -> finish(name, job));
+            } catch (IOException e) {
+                submitted.remove(name);
+                Util.logf(C.WATCH_SUBMIT_FAILED, name, e.getMessage());
+            } catch (RejectedExecutionException e) {
+                // We're shutting down, so this will be run next time.
+                submitted.remove(name);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Make a job request for a queued file or folder.
+     * @param name Name of the file or folder.
+     * @return Job request.
+     * @throws IOException if an input file can't be written for a local story folder.
+     */
+    private JobRequest makeRequest(String name) throws IOException {
+        Path entry = dir.resolve(name);
+        JobRequest request = new JobRequest();
+        if (Files.isDirectory(entry)) {
+            // Local story folders are given to FictionDL using an input file which points at them.
+            String tag = Files.isRegularFile(entry.resolve("storyinfo.json")) ? "@fdl:ls=" : "@fdl:ls_folder=";
+            request.inputPath = Files.write(dir.resolve(LOCAL_INPUT_PREFIX + name + ".txt"),
+                    (tag + name + "\n").getBytes(StandardCharsets.UTF_8)).toString();
+        } else {
+            request.inputPath = entry.toString();
+        }
+        request.outputDir = outDir.toString();
+        if (configFile != null && Files.isRegularFile(configFile))
+            request.config = new String(Files.readAllBytes(configFile), StandardCharsets.UTF_8);
+        return request;
+    }
+
+    /**
+     * Move a file or folder out of the way once its job is done, and remove it from the queue.
+     * @param name Name of the file or folder.
+     * @param job  Its job.
+     */
+    private synchronized void finish(String name, Job job) {
+        Path target = dir.resolve(job.isSuccessful() ? DONE_DIR : FAILED_DIR).resolve(name);
+        try {
+            Files.deleteIfExists(dir.resolve(LOCAL_INPUT_PREFIX + name + ".txt"));
+            // Don't replace anything from an earlier job with the same name.
+            if (Files.exists(target)) target = target.resolveSibling(name + "." + System.currentTimeMillis());
+            Files.move(dir.resolve(name), target);
+            Util.logf(C.WATCH_FINISHED, name, target);
+        } catch (IOException e) {
+            Util.logf(C.WATCH_MOVE_FAILED, name, e.getMessage());
+        }
+        queue.remove(name);
+        submitted.remove(name);
+        saveQueue();
+    }
+
+    /**
+     * Check whether a file or folder in the watched folder should be ignored.
+     * @param entry File or folder.
+     * @return True if it's hidden, one of our own folders, or something we write ourselves.
+     */
+    private boolean isIgnored(Path entry) {
+        String name = entry.getFileName().toString();
+        if (name.startsWith(".") || entry.equals(outDir)) return true;
+        if (Files.isDirectory(entry)) return name.equals(DONE_DIR) || name.equals(FAILED_DIR);
+        // In case the output directory is the watched folder.
+        return name.endsWith(".epub") || name.endsWith(".tmp") || name.equals(FictionDL.SKIPPED_FILE_NAME);
+    }
+
+    /**
+     * Check whether a file or folder has gone long enough without being modified that it's probably done being
+     * written. For folders, everything in the folder is checked.
+     * @param entry File or folder.
+     * @return True if it has settled.
+     */
+    private static boolean hasSettled(Path entry) {
+        long settledBefore = System.currentTimeMillis() - SETTLE_MS;
+        try (Stream<Path> paths = Files.walk(entry)) {
+            return paths.allMatch(path -> {
+                try {
+                    return Files.getLastModifiedTime(path).toMillis() < settledBefore;
+                } catch (IOException e) {
+                    return false;
+                }
+            });
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Load the queue file, if there is one.
+     */
+    private synchronized void loadQueue() {
+        if (!Files.isRegularFile(queueFile)) return;
+        try (Reader reader = Files.newBufferedReader(queueFile, StandardCharsets.UTF_8)) {
+            List<String> loaded = new Gson().fromJson(reader, new TypeToken<List<String>>() {}.getType());
+            if (loaded != null) queue.addAll(loaded);
+            if (!queue.isEmpty()) Util.logf(C.WATCH_RESUMING, queue.size());
+        } catch (IOException | JsonParseException e) {
+            Util.logf(C.WATCH_QUEUE_READ_FAILED, queueFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Save the queue file.
+     */
+    private synchronized void saveQueue() {
+        try {
+            Path temp = Files.createTempFile(dir, ".fdl-", ".tmp");
+            try {
+                try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    new GsonBuilder().setPrettyPrinting().create().toJson(new ArrayList<>(queue), writer);
+                }
+                Util.replaceFile(temp, queueFile);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            Util.logf(C.WATCH_QUEUE_WRITE_FAILED, queueFile, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package bkromhout.fdl.server;
+
+import bkromhout.fdl.events.UpdateTaskProgressEvent;
+import com.google.common.eventbus.Subscribe;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A download job which was submitted to a {@link JobRunner}. Serialized with Gson to report the job's status, so every
+ * non-transient field is part of the status.
+ */
+public class Job {
+    /**
+     * Job states.
+     */
+    public enum State {
+        QUEUED, RUNNING, FINISHED, FAILED
+    }
+
+    /**
+     * Job ID.
+     */
+    private final String id;
+    /**
+     * Current state.
+     */
+    private volatile State state = State.QUEUED;
+    /**
+     * Number of work units completed, as of the last progress update.
+     */
+    private volatile double workDone = 0d;
+    /**
+     * Total number of work units, as of the last progress update.
+     */
+    private volatile double totalWork = 0d;
+    /**
+     * Number of stories which were downloaded, once the job has finished.
+     */
+    private volatile long storiesDownloaded = 0L;
+    /**
+     * Number of stories in the job, once the job has finished.
+     */
+    private volatile int totalStories = 0;
+    /**
+     * Why the job failed, if it did.
+     */
+    private volatile String error = null;
+    /**
+     * When the job was submitted, in milliseconds since the epoch.
+     */
+    private final long submittedAt = System.currentTimeMillis();
+    /**
+     * When the job started running, in milliseconds since the epoch. 0 if it hasn't started yet.
+     */
+    private volatile long startedAt = 0L;
+    /**
+     * When the job finished, in milliseconds since the epoch. 0 if it hasn't finished yet.
+     */
+    private volatile long finishedAt = 0L;
+    /**
+     * Arguments to run FictionDL with.
+     */
+    private final transient JobRequest request;
+    /**
+     * Completed once the job is done.
+     */
+    private final transient CompletableFuture<Job> done = new CompletableFuture<>();
+
+    /**
+     * Create a new {@link Job}.
+     * @param id      Job ID.
+     * @param request What the job should do.
+     */
+    Job(String id, JobRequest request) {
+        this.id = id;
+        this.request = request;
+    }
+
+    /**
+     * Get the job ID.
+     * @return Job ID.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Get the job's current state.
+     * @return Job state.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Check whether the job has finished running, whether it succeeded or not.
+     * @return True if the job is done.
+     */
+    public boolean isDone() {
+        return state == State.FINISHED || state == State.FAILED;
+    }
+
+    /**
+     * Get a future which is completed with this job once it's done, whether it succeeded or not.
+     * @return Future.
+     */
+    public CompletableFuture<Job> whenDone() {
+        return done;
+    }
+
+    /**
+     * Check whether the job finished and downloaded every story it had.
+     * @return True if the job was completely successful.
+     */
+    public boolean isSuccessful() {
+        return state == State.FINISHED && storiesDownloaded >= totalStories;
+    }
+
+    /**
+     * Get what the job should do.
+     * @return Job request.
+     */
+    JobRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Mark the job as running.
+     */
+    void started() {
+        startedAt = System.currentTimeMillis();
+        state = State.RUNNING;
+    }
+
+    /**
+     * Mark the job as finished.
+     * @param storiesDownloaded Number of stories which were downloaded.
+     * @param totalStories      Number of stories in the job.
+     */
+    void finished(long storiesDownloaded, int totalStories) {
+        this.storiesDownloaded = storiesDownloaded;
+        this.totalStories = totalStories;
+        finishedAt = System.currentTimeMillis();
+        state = State.FINISHED;
+        done.complete(this);
+    }
+
+    /**
+     * Mark the job as failed.
+     * @param error Why the job failed.
+     */
+    void failed(String error) {
+        this.error = error;
+        finishedAt = System.currentTimeMillis();
+        state = State.FAILED;
+        done.complete(this);
+    }
+
+    /**
+     * Update the job's progress when an {@link UpdateTaskProgressEvent} is received. Only registered with the event bus
+     * while the job is running.
+     * @param event Event instance.
+     */
+    @Subscribe
+    public void onUpdateTaskProgressEvent(UpdateTaskProgressEvent event) {
+        workDone = event.getWorkDone();
+        totalWork = event.getTotalWork();
+    }
+}
@@ -0,0 +1,46 @@
+package bkromhout.fdl.server;
+
+/**
+ * The body of a request to submit a job to a {@link JobServer}, deserialized with Gson. For example:
+ * <pre>
+ * {"input": "https://www.fanfiction.net/s/123/1\n", "outputDir": "/srv/books", "config": "site=MuggleNet\n...",
+ *  "force": false, "order": "sjf"}
+ * </pre>
+ * Either {@link #input} or {@link #inputPath} must be given. Local stories are looked for relative to the input file,
+ * so jobs which include local stories should use {@link #inputPath}.
+ */
+class JobRequest {
+    /**
+     * Contents of the input file.
+     */
+    String input;
+    /**
+     * Path of an input file, which is used instead of {@link #input} if given.
+     */
+    String inputPath;
+    /**
+     * Output directory path. Required if {@link #input} is used, otherwise defaults to the input file's directory.
+     */
+    String outputDir;
+    /**
+     * Contents of the config file, or null.
+     */
+    String config;
+    /**
+     * Whether to save every story, even ones which haven't changed since they were last saved.
+     */
+    boolean force;
+    /**
+     * Order to download each site's stories in ("input", "sjf", or "ljf"), or null for input file order.
+     */
+    String order;
+
+    /**
+     * Check whether this request has everything a job needs.
+     * @return True if the request is valid.
+     */
+    boolean isValid() {
+        if (inputPath != null && !inputPath.isEmpty()) return true;
+        return input != null && !input.isEmpty() && outputDir != null && !outputDir.isEmpty();
+    }
+}
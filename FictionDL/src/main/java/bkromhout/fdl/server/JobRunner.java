@@ -0,0 +1,177 @@
+package bkromhout.fdl.server;
+
+import bkromhout.fdl.FictionDL;
+import bkromhout.fdl.Main;
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * The long-lived download engine behind {@link JobServer} and {@link FolderWatcher}. Jobs from either are queued here
+ * and run one at a time, since a {@link FictionDL} run uses global state; everything else (the shared OkHttpClient,
+ * the cookie jar, compiled patterns, thread pools) is reused from job to job.
+ */
+public class JobRunner {
+    /**
+     * Maximum number of finished jobs to keep statuses for. Older ones are forgotten.
+     */
+    private static final int MAX_FINISHED_JOBS = 500;
+    /**
+     * Jobs, keyed by ID.
+     */
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    /**
+     * Used to create job IDs.
+     */
+    private final AtomicLong nextId = new AtomicLong(1L);
+    /**
+     * Executor which runs jobs, one at a time.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("fdl-job-runner-%d").setDaemon(true).build());
+
+    /**
+     * Queue a job.
+     * @param request What the job should do.
+     * @return The queued job.
+     * @throws RejectedExecutionException if the runner has been shut down.
+     */
+    public Job submit(JobRequest request) {
+        Job job = new Job(String.valueOf(nextId.getAndIncrement()), request);
+        executor.execute(() -> run(job));
+        jobs.put(job.getId(), job);
+        forgetOldJobs();
+        return job;
+    }
+
+    /**
+     * Get a job.
+     * @param id Job ID.
+     * @return Job, or null if there isn't one with that ID (or it has been forgotten).
+     */
+    public Job get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Get every job that we know about.
+     * @return Jobs, in the order they were submitted.
+     */
+    public List<Job> all() {
+        return jobs.values().stream()
+                   .sorted(Comparator.comparingLong(job -> Long.parseLong(job.getId())))
+                   .collect(Collectors.toList());
+    }
+
+    /**
+     * Stop accepting jobs. Jobs which are already queued will still be run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Check whether the runner has been shut down.
+     * @return True if it isn't accepting jobs anymore.
+     */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Wait until the runner has been shut down and every queued job has finished.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Run a job. Jobs which are given input and config file contents have them written to a temporary directory,
+     * which is deleted afterwards.
+     * @param job Job to run.
+     */
+    private void run(Job job) {
+        JobRequest request = job.getRequest();
+        Path tempDir = null;
+        job.started();
+        Util.logf(C.JOB_STARTED, job.getId());
+        C.getEventBus().register(job);
+        try {
+            HashMap<String, String> args = new HashMap<>();
+            if (request.inputPath != null && !request.inputPath.isEmpty()) {
+                args.put(C.ARG_IN_PATH, request.inputPath);
+            } else {
+                tempDir = Files.createTempDirectory("fdl-job-");
+                args.put(C.ARG_IN_PATH, Files.write(tempDir.resolve("input.txt"),
+                        request.input.getBytes(StandardCharsets.UTF_8)).toString());
+            }
+            if (request.config != null && !request.config.isEmpty()) {
+                if (tempDir == null) tempDir = Files.createTempDirectory("fdl-job-");
+                args.put(C.ARG_CFG_PATH, Files.write(tempDir.resolve("config.txt"),
+                        request.config.getBytes(StandardCharsets.UTF_8)).toString());
+            }
+            args.put(C.ARG_OUT_PATH, request.outputDir);
+            if (request.force) args.put(C.ARG_FORCE, String.valueOf(true));
+            args.put(C.ARG_STORY_ORDER, request.order);
+
+            FictionDL fictionDL = new FictionDL(args);
+            fictionDL.run();
+            job.finished(fictionDL.getStoriesDownloaded(), fictionDL.getTotalStories());
+            Util.logf(C.JOB_FINISHED, job.getId());
+        } catch (IOException | RuntimeException e) {
+            // One bad job shouldn't take the whole engine down.
+            job.failed(e.getMessage() != null ? e.getMessage() : e.toString());
+            Util.logf(C.JOB_FAILED, job.getId(), e.getMessage());
+        } finally {
+            // If something worse than an exception stopped the job, it mustn't look like it's still running.
+            if (!job.isDone()) job.failed(C.JOB_ABORTED);
+            C.getEventBus().unregister(job);
+            // Make sure a failed job's network profile isn't left in use for the next one.
+            Main.useDefaultNetworkProfile();
+            if (tempDir != null) deleteTempDir(tempDir);
+        }
+    }
+
+    /**
+     * Forget the oldest finished jobs if there are too many of them.
+     */
+    private void forgetOldJobs() {
+        List<Job> finished = new ArrayList<>();
+        for (Job job : jobs.values()) if (job.isDone()) finished.add(job);
+        if (finished.size() <= MAX_FINISHED_JOBS) return;
+        finished.sort(Comparator.comparingLong(job -> Long.parseLong(job.getId())));
+        for (int i = 0; i < finished.size() - MAX_FINISHED_JOBS; i++) jobs.remove(finished.get(i).getId());
+    }
+
+    /**
+     * Delete a job's temporary directory.
+     * @param tempDir Temporary directory.
+     */
+    private static void deleteTempDir(Path tempDir) {
+        try {
+            Files.deleteIfExists(tempDir.resolve("input.txt"));
+            Files.deleteIfExists(tempDir.resolve("config.txt"));
+            Files.deleteIfExists(tempDir);
+        } catch (IOException e) {
+            // Nothing else we can do.
+        }
+    }
+}
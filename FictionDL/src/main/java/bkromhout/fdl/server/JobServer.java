@@ -0,0 +1,234 @@
+package bkromhout.fdl.server;
+
+import bkromhout.fdl.util.C;
+import bkromhout.fdl.util.Util;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A local HTTP server which accepts download jobs and runs them in this JVM using a {@link JobRunner}, so that callers
+ * which run FictionDL many times don't pay for JVM startup, JIT warm-up, and a fresh OkHttpClient every time.
+ * <p>
+ * The endpoints are:
+ * <ul>
+ * <li>{@code POST /jobs} with a {@link JobRequest} body: queue a job, responding with its status.</li>
+ * <li>{@code GET /jobs}: get the status of every job.</li>
+ * <li>{@code GET /jobs/<id>}: get the status of a job, including its progress while it runs.</li>
+ * <li>{@code POST /shutdown}: stop accepting jobs, and stop the server once the queued jobs are done.</li>
+ * </ul>
+ * The server only listens on the loopback interface. That doesn't stop web pages open in a local browser from sending
+ * requests to it, so {@code POST} requests must have a {@code Content-Type} of {@code application/json} (which a web
+ * page can't send cross-origin without a preflight request, which we don't answer), and requests with an {@code
+ * Origin} header are rejected outright.
+ */
+public class JobServer {
+    /**
+     * Number of threads used to handle HTTP requests. They never do much work.
+     */
+    private static final int SERVER_THREADS = 4;
+    /**
+     * Port to listen on.
+     */
+    private final int port;
+    /**
+     * Runs the jobs which are submitted.
+     */
+    private final JobRunner runner;
+    /**
+     * Counted down once the server has stopped.
+     */
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    /**
+     * The underlying server, null until {@link #start()} is called.
+     */
+    private HttpServer server;
+    /**
+     * Executor which handles HTTP requests.
+     */
+    private ExecutorService serverExecutor;
+
+    /**
+     * Create a new {@link JobServer}.
+     * @param port   Port to listen on. If 0, an ephemeral port is used.
+     * @param runner Runner to submit jobs to.
+     */
+    public JobServer(int port, JobRunner runner) {
+        this.port = port;
+        this.runner = runner;
+    }
+
+    /**
+     * Start accepting jobs.
+     * @return Base url of the server.
+     * @throws IOException if the server can't be started.
+     */
+    public String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        serverExecutor = Executors.newFixedThreadPool(SERVER_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("fdl-job-server-%d").setDaemon(true).build());
+        server.setExecutor(serverExecutor);
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/shutdown", this::handleShutdown);
+        server.start();
+        return String.format("http://%s:%d", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    /**
+     * Wait until the server has been shut down and every queued job has finished.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Handle a request to {@code /jobs} or {@code /jobs/<id>}.
+     * @param exchange Exchange to respond to.
+     * @throws IOException if the response can't be sent.
+     */
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String id = path.startsWith("/jobs/") ? path.substring("/jobs/".length()) : "";
+        String method = exchange.getRequestMethod();
+        if (!checkCaller(exchange)) return;
+
+        if (!id.isEmpty()) {
+            Job job = runner.get(id);
+            if (!"GET".equals(method)) respondError(exchange, 405, method);
+            else if (job == null) respondError(exchange, 404, String.format(C.NO_SUCH_JOB, id));
+            else respond(exchange, 200, job);
+        } else if ("GET".equals(method)) {
+            respond(exchange, 200, runner.all());
+        } else if ("POST".equals(method)) {
+            submit(exchange);
+        } else {
+            respondError(exchange, 405, method);
+        }
+    }
+
+    /**
+     * Queue a job using the request body.
+     * @param exchange Exchange to respond to.
+     * @throws IOException if the response can't be sent.
+     */
+    private void submit(HttpExchange exchange) throws IOException {
+        if (runner.isShutdown()) {
+            respondError(exchange, 503, C.SERVER_STOPPING);
+            return;
+        }
+        JobRequest request;
+        try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            request = new Gson().fromJson(reader, JobRequest.class);
+        } catch (JsonParseException e) {
+            request = null;
+        }
+        if (request == null || !request.isValid()) {
+            respondError(exchange, 400, C.BAD_JOB_REQUEST);
+            return;
+        }
+
+        Job job;
+        try {
+            job = runner.submit(request);
+        } catch (RejectedExecutionException e) {
+            // We started shutting down after checking.
+            respondError(exchange, 503, C.SERVER_STOPPING);
+            return;
+        }
+        respond(exchange, 202, job);
+    }
+
+    /**
+     * Handle a request to {@code /shutdown}.
+     * @param exchange Exchange to respond to.
+     * @throws IOException if the response can't be sent.
+     */
+    private void handleShutdown(HttpExchange exchange) throws IOException {
+        if (!checkCaller(exchange)) return;
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respondError(exchange, 405, exchange.getRequestMethod());
+            return;
+        }
+        runner.shutdown();
+        respond(exchange, 202, new JsonObject());
+        Util.log(C.SERVER_STOPPING);
+        // Let the queued jobs finish on another thread, then stop the server.
+        new Thread(() -> {
+            try {
+                runner.awaitTermination();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            server.stop(0);
+            serverExecutor.shutdownNow();
+            stopped.countDown();
+        }, "fdl-job-server-stop").start();
+    }
+
+    /**
+     * Make sure a request didn't come from a web page, responding with an error if it might have. Requests which have
+     * an {@code Origin} header are rejected, as are {@code POST} requests whose body isn't JSON.
+     * @param exchange Exchange to check.
+     * @return True if the request can be handled, false if an error response was sent.
+     * @throws IOException if the error response can't be sent.
+     */
+    private static boolean checkCaller(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            respondError(exchange, 403, C.CROSS_ORIGIN_REQUEST);
+            return false;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if ("POST".equals(exchange.getRequestMethod()) && (contentType == null ||
+                !contentType.trim().toLowerCase(Locale.ROOT).startsWith("application/json"))) {
+            respondError(exchange, 415, C.JSON_REQUIRED);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send an error response.
+     * @param exchange Exchange to respond to.
+     * @param code     Status code.
+     * @param message  Error message.
+     * @throws IOException if the response can't be sent.
+     */
+    private static void respondError(HttpExchange exchange, int code, String message) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("error", message);
+        respond(exchange, code, body);
+    }
+
+    /**
+     * Send a JSON response.
+     * @param exchange Exchange to respond to.
+     * @param code     Status code.
+     * @param body     Object to serialize as the body.
+     * @throws IOException if the response can't be sent.
+     */
+    private static void respond(HttpExchange exchange, int code, Object body) throws IOException {
+        byte[] bytes = new Gson().toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package bkromhout.fdl.site;
+
+import okhttp3.HttpUrl;
+import okio.Okio;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * How a {@link Site}'s pages are encoded, which decides how we decode them and whether their text needs to have
+ * mis-decoded characters (mojibake) repaired afterwards.
+ */
+public enum PageEncoding {
+    /**
+     * We don't know, so we go by whatever the page says its charset is (which means buffering and sniffing the start
+     * of it), and repair any mojibake afterwards in case the page was wrong.
+     */
+    DECLARED(true),
+    /**
+     * The site always sends UTF-8, and says so.
+     */
+    UTF_8(false),
+    /**
+     * The site sends a mix of UTF-8 and Windows-1252, and doesn't reliably say which (older eFiction sites do this,
+     * since they store whatever was pasted into them). Each byte sequence which is valid UTF-8 is decoded as UTF-8,
+     * and any other byte is decoded as Windows-1252, so everything comes out right the first time.
+     */
+    UTF_8_OR_WINDOWS_1252(false);
+
+    /**
+     * What each of the bytes 0x80 to 0xFF decode to in Windows-1252. The few bytes which Windows-1252 doesn't define
+     * are decoded as the Latin-1 control characters with the same values, which get stripped out later.
+     */
+    private static final char[] WINDOWS_1252_HIGH = new char[0x80];
+
+    static {
+        byte[] high = new byte[0x80];
+        for (int i = 0; i < high.length; i++) high[i] = (byte) (0x80 + i);
+        char[] decoded = Charset.forName("windows-1252").decode(ByteBuffer.wrap(high)).array();
+        for (int i = 0; i < WINDOWS_1252_HIGH.length; i++)
+            WINDOWS_1252_HIGH[i] = decoded[i] != '\uFFFD' ? decoded[i] : (char) (0x80 + i);
+    }
+
+    /**
+     * Whether text from pages with this encoding needs to have mojibake repaired.
+     */
+    private final boolean needsRepair;
+
+    PageEncoding(boolean needsRepair) {
+        this.needsRepair = needsRepair;
+    }
+
+    /**
+     * Check whether text from pages with this encoding might contain mis-decoded characters which need to be repaired
+     * by {@link bkromhout.fdl.util.Util#cleanHtmlString(String, boolean)}.
+     * @return True if repairs are needed.
+     */
+    public boolean needsRepair() {
+        return needsRepair;
+    }
+
+    /**
+     * Get the encoding of the pages at the given url.
+     * @param url Url.
+     * @return Encoding of the url's site, or {@link #DECLARED} if the url isn't for a supported site.
+     */
+    public static PageEncoding forUrl(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        Site site = httpUrl != null ? Sites.forHost(httpUrl.host()) : null;
+        return site != null ? site.getEncoding() : DECLARED;
+    }
+
+    /**
+     * Decode and parse an HTML page. The stream isn't closed.
+     * @param in      Page's bytes.
+     * @param baseUri Page url, used to resolve relative urls.
+     * @return Parsed page.
+     * @throws IOException if the page can't be read.
+     */
+    public Document parse(InputStream in, String baseUri) throws IOException {
+        switch (this) {
+            case UTF_8:
+                return Jsoup.parse(in, StandardCharsets.UTF_8.name(), baseUri);
+            case UTF_8_OR_WINDOWS_1252:
+                return Jsoup.parse(decodeUtf8OrWindows1252(Okio.buffer(Okio.source(in)).readByteArray()), baseUri);
+            default:
+                return Jsoup.parse(in, null, baseUri);
+        }
+    }
+
+    /**
+     * Replace any C1 control characters (U+0080 to U+009F) with the Windows-1252 characters which have the same values.
+     * Older sites are full of numeric character references like {@code &#146;} which mean Windows-1252 characters, and
+     * those parse to C1 controls no matter how the page's bytes were decoded.
+     * @param text Text.
+     * @return Text without C1 controls, other than the few which Windows-1252 doesn't define.
+     */
+    public static String mapC1ToWindows1252(String text) {
+        int i = 0;
+        while (i < text.length() && (text.charAt(i) < '\u0080' || text.charAt(i) > '\u009F')) i++;
+        if (i == text.length()) return text;
+        char[] chars = text.toCharArray();
+        for (; i < chars.length; i++)
+            if (chars[i] >= '\u0080' && chars[i] <= '\u009F') chars[i] = WINDOWS_1252_HIGH[chars[i] - 0x80];
+        return new String(chars);
+    }
+
+    /**
+     * Decode bytes which are a mix of UTF-8 and Windows-1252 in a single pass. Byte sequences which are valid (and
+     * shortest-form) UTF-8 are decoded as UTF-8, and any other bytes are decoded as Windows-1252. A leading UTF-8 byte
+     * order mark is dropped.
+     * @param bytes Bytes to decode.
+     * @return Decoded string.
+     */
+    public static String decodeUtf8OrWindows1252(byte[] bytes) {
+        char[] out = new char[bytes.length];
+        int n = 0;
+        int i = bytes.length >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB &&
+                (bytes[2] & 0xFF) == 0xBF ? 3 : 0;
+        while (i < bytes.length) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                out[n++] = (char) b;
+                i++;
+                continue;
+            }
+            // Work out how many continuation bytes a UTF-8 sequence starting with this byte would have.
+            int extra = b >= 0xC2 && b <= 0xDF ? 1 : b >= 0xE0 && b <= 0xEF ? 2 : b >= 0xF0 && b <= 0xF4 ? 3 : 0;
+            int cp = extra > 0 ? decodeSequence(bytes, i, extra) : -1;
+            if (cp < 0) {
+                out[n++] = WINDOWS_1252_HIGH[b - 0x80];
+                i++;
+            } else {
+                // A UTF-8 sequence is always at least as many bytes as the chars it decodes to, so this always fits.
+                n += Character.toChars(cp, out, n);
+                i += extra + 1;
+            }
+        }
+        return new String(out, 0, n);
+    }
+
+    /**
+     * Decode a single UTF-8 byte sequence.
+     * @param bytes Bytes.
+     * @param start Index of the sequence's first byte.
+     * @param extra Number of continuation bytes the sequence should have.
+     * @return Code point, or -1 if the bytes aren't a valid, shortest-form UTF-8 sequence for a non-surrogate code
+     * point.
+     */
+    private static int decodeSequence(byte[] bytes, int start, int extra) {
+        if (start + extra >= bytes.length) return -1;
+        int cp = bytes[start] & (0x3F >> extra);
+        for (int j = 1; j <= extra; j++) {
+            int c = bytes[start + j] & 0xFF;
+            if ((c & 0xC0) != 0x80) return -1;
+            cp = (cp << 6) | (c & 0x3F);
+        }
+        if (extra == 2 && (cp < 0x800 || (cp >= 0xD800 && cp <= 0xDFFF))) return -1;
+        if (extra == 3 && (cp < 0x10000 || cp > 0x10FFFF)) return -1;
+        return cp;
+    }
+}
@@ -2,13 +2,23 @@ package bkromhout.fdl.site;
 
 import bkromhout.fdl.Main;
 import bkromhout.fdl.downloaders.Downloader;
+import bkromhout.fdl.net.CircuitBreaker;
+import bkromhout.fdl.net.ConcurrencyLimiter;
 import bkromhout.fdl.parsing.ConfigFileParser;
 import bkromhout.fdl.parsing.StoryEntry;
 import bkromhout.fdl.stories.Story;
 import bkromhout.fdl.util.C;
 import bkromhout.fdl.util.IWorkProducer;
+import bkromhout.fdl.util.Patterns;
+import bkromhout.fdl.util.Util;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Represents a supported site, and is in charge of knowing what to call to initiate a site's download process.
@@ -26,6 +36,10 @@ public final class Site implements IWorkProducer {
      * Base host domain for this site.
      */
     private final String host;
+    /**
+     * Regex whose first group is the story ID in any of this site's story URLs.
+     */
+    private final Pattern storyIdRegex;
     /**
      * {@link Downloader} class for this site.
      */
@@ -39,66 +53,141 @@ public final class Site implements IWorkProducer {
      */
     private final boolean supportsAuth;
     /**
-     * List of story entries to download for this site.
+     * Story entries to download for this site, keyed by {@link StoryEntry#getKey()}.
+     */
+    private final LinkedHashMap<String, StoryEntry> storyEntries;
+    /**
+     * Compiled regexes and CSS selectors used when parsing this site's pages.
+     */
+    private final Patterns patterns;
+    /**
+     * Downloader for this site. Created when it's first needed.
+     */
+    private Downloader downloader = null;
+    /**
+     * Number of story entries which weren't added because they were duplicates of existing ones.
+     */
+    private int duplicateCount = 0;
+    /**
+     * Urls of stories which were skipped because this site was down.
+     */
+    private final List<String> skippedUrls = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * Stops us from making requests to this site while it seems to be down.
      */
-    private final HashSet<StoryEntry> storyEntries;
+    private final CircuitBreaker breaker;
     /**
-     * Maximum number of connections for this site.
+     * Maximum number of connections for this site. The {@link ConcurrencyLimiter} keeps us below it while the site is
+     * struggling.
      */
     private int maxConnections = 10;
+    /**
+     * Limits how many requests can be made to this site at once.
+     */
+    private ConcurrencyLimiter limiter;
+    /**
+     * How this site's pages are encoded.
+     */
+    private PageEncoding encoding = PageEncoding.DECLARED;
 
     /**
      * Create a new {@link Site}.
-     * @param name       Human-readable site name.
-     * @param host       Base host domain.
-     * @param dlClass    Specific {@link Downloader} class for this site.
-     * @param storyClass Specific {@link Story} class for this site.
+     * @param name         Human-readable site name.
+     * @param host         Base host domain.
+     * @param storyIdRegex Regex whose first group is the story ID in any of this site's story URLs.
+     * @param dlClass      Specific {@link Downloader} class for this site.
+     * @param storyClass   Specific {@link Story} class for this site.
      */
-    public Site(String name, String host, Class<? extends Downloader> dlClass, Class<? extends Story> storyClass) {
-        this(name, host, dlClass, storyClass, false);
+    public Site(String name, String host, String storyIdRegex, Class<? extends Downloader> dlClass,
+                Class<? extends Story> storyClass) {
+        this(name, host, storyIdRegex, dlClass, storyClass, false);
     }
 
     /**
      * Create a new {@link Site}.
      * @param name         Human-readable site name.
      * @param host         Base host domain.
+     * @param storyIdRegex Regex whose first group is the story ID in any of this site's story URLs.
      * @param dlClass      Specific {@link Downloader} class for this site.
      * @param storyClass   Specific {@link Story} class for this site.
      * @param supportsAuth Whether or not this site support authentication.
      */
-    public Site(String name, String host, Class<? extends Downloader> dlClass, Class<? extends Story> storyClass,
-                boolean supportsAuth) {
+    public Site(String name, String host, String storyIdRegex, Class<? extends Downloader> dlClass,
+                Class<? extends Story> storyClass, boolean supportsAuth) {
         this.name = name;
         this.host = host;
+        this.storyIdRegex = Pattern.compile(storyIdRegex);
         this.dlClass = dlClass;
         this.storyClass = storyClass;
         this.supportsAuth = supportsAuth;
-        this.storyEntries = new HashSet<>();
+        this.storyEntries = new LinkedHashMap<>();
+        this.patterns = Patterns.forSite(host);
+        this.limiter = makeLimiter();
+        this.breaker = new CircuitBreaker(name);
     }
 
     void setMaxConnections(int maxConnections) {
         this.maxConnections = maxConnections;
+        this.limiter = makeLimiter();
+    }
+
+    /**
+     * Set how this site's pages are encoded.
+     * @param encoding Page encoding.
+     */
+    void setEncoding(PageEncoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Create a concurrency limiter which starts at, and can't go above, {@link #maxConnections}. That's also the
+     * dispatcher's per-host cap, so requests never have to wait in the dispatcher after the limiter has let them go.
+     * @return New limiter.
+     */
+    private ConcurrencyLimiter makeLimiter() {
+        return new ConcurrencyLimiter(name, maxConnections, maxConnections);
+    }
+
+    /**
+     * Log in to this site, if it supports auth and we have credentials for it. If it supports auth but we don't have
+     * credentials, this makes sure we don't use anyone else's login for it. This is a no-op if there are no urls in
+     * this site's url list.
+     * <p>
+     * This is called for all sites at once before any of them are processed, so it must be safe to call in parallel.
+     * @param config Options parsed from the config file. May be null.
+     */
+    public void authenticate(ConfigFileParser.Config config) {
+        if (storyEntries.isEmpty() || !supportsAuth) return;
+        getDownloader().authenticate(config != null && config.hasCreds(this) ? config.getCreds(this) : null);
     }
 
     /**
      * Starts the download process for this site. This is a no-op if there are no urls in this site's url list.
-     * @param config Options parsed from the config file, in case this site needs them.
      */
-    public void process(ConfigFileParser.Config config) {
+    public void process() {
         if (storyEntries.isEmpty()) return;
         C.getHttpClient().dispatcher().setMaxRequestsPerHost(maxConnections);
-        try {
-            // Create the downloader class.
-            Downloader downloader = dlClass.getConstructor().newInstance();
-            // Do site auth if it supports it and we have credentials for it.
-            if (supportsAuth && config.hasCreds(this)) downloader.doFormAuth(config.getCreds(this));
-            // Download stories from site.
-            downloader.download();
-        } catch (ReflectiveOperationException e) {
-            // What a terrible failure.
-            e.printStackTrace();
-            Main.exit(1);
+        // Download stories from site.
+        getDownloader().download();
+    }
+
+    /**
+     * Get this site's downloader, creating it the first time. The same downloader is used to log in and to download
+     * stories, so that it can log in again if it needs to.
+     * @return Downloader.
+     */
+    private synchronized Downloader getDownloader() {
+        if (downloader == null) {
+            try {
+                // Create the downloader class.
+                downloader = dlClass.getConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                // What a terrible failure.
+                e.printStackTrace();
+                Main.exit(1);
+            }
         }
+        return downloader;
     }
 
     /**
@@ -109,6 +198,47 @@ public final class Site implements IWorkProducer {
         return name;
     }
 
+    /**
+     * Check whether this site supports authentication.
+     * @return True if we can log in to this site.
+     */
+    public boolean supportsAuth() {
+        return supportsAuth;
+    }
+
+    /**
+     * Get the number of connections to make to this site at once, before the {@link ConcurrencyLimiter} has adjusted
+     * it.
+     * @return Max connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Get the limiter which decides how many requests can be made to this site at once.
+     * @return Concurrency limiter.
+     */
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Get how this site's pages are encoded.
+     * @return Page encoding.
+     */
+    public PageEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Get the circuit breaker which stops us from making requests to this site while it seems to be down.
+     * @return Circuit breaker.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
     /**
      * Get the site's base domain.
      * @return Site domain.
@@ -117,6 +247,14 @@ public final class Site implements IWorkProducer {
         return host;
     }
 
+    /**
+     * Get the registry of compiled regexes and CSS selectors used when parsing this site's pages.
+     * @return Site's patterns.
+     */
+    public Patterns getPatterns() {
+        return patterns;
+    }
+
     /**
      * Get the {@link Story} class for this site.
      * @return Site-specific {@link Story} class.
@@ -126,11 +264,76 @@ public final class Site implements IWorkProducer {
     }
 
     /**
-     * Get this site's list of story entries.
-     * @return Story entry list.
+     * Get the canonical key for a story URL, which is the same for all of the different URLs that point to one story.
+     * @param url Story URL.
+     * @return Key made from the site's host and the story ID, or the URL itself if it doesn't contain a story ID.
      */
-    public HashSet<StoryEntry> getStoryEntries() {
-        return storyEntries;
+    public String canonicalize(String url) {
+        Matcher matcher = storyIdRegex.matcher(url);
+        return matcher.find() ? host + "/" + matcher.group(1) : url;
+    }
+
+    /**
+     * Add a story URL to this site's story entries, unless there's already an entry for the same story.
+     * @param url Story URL.
+     * @return The new story entry, or the existing one if the URL was a duplicate. Either way, detail tags for the
+     * story should be added to the returned entry.
+     */
+    public StoryEntry addStoryEntry(String url) {
+        return addStoryEntry(url, canonicalize(url));
+    }
+
+    /**
+     * Add a story URL to this site's story entries, unless there's already an entry for the same story.
+     * @param url Story URL.
+     * @param key Canonical key for the URL, from {@link #canonicalize(String)}.
+     * @return The new story entry, or the existing one if the URL was a duplicate. Either way, detail tags for the
+     * story should be added to the returned entry.
+     */
+    public synchronized StoryEntry addStoryEntry(String url, String key) {
+        StoryEntry existing = storyEntries.get(key);
+        if (existing != null) {
+            duplicateCount++;
+            Util.loudf(C.DUPLICATE_STORY_ENTRY, url, existing.getUrl());
+            return existing;
+        }
+        StoryEntry entry = new StoryEntry(url, key);
+        storyEntries.put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Get this site's story entries.
+     * @return Unmodifiable collection of story entries.
+     */
+    public Collection<StoryEntry> getStoryEntries() {
+        return Collections.unmodifiableCollection(storyEntries.values());
+    }
+
+    /**
+     * Get the number of story entries which weren't added because they were duplicates of existing ones.
+     * @return Duplicate count.
+     */
+    public synchronized int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /**
+     * Record that a story was skipped because this site was down, so that it can be tried again later.
+     * @param url Story url.
+     */
+    public void storySkipped(String url) {
+        skippedUrls.add(url);
+    }
+
+    /**
+     * Get the urls of stories which were skipped because this site was down.
+     * @return Skipped story urls.
+     */
+    public List<String> getSkippedUrls() {
+        synchronized (skippedUrls) {
+            return new ArrayList<>(skippedUrls);
+        }
     }
 
     @Override
@@ -1,10 +1,14 @@
 package bkromhout.fdl.site;
 
 import bkromhout.fdl.downloaders.*;
+import bkromhout.fdl.parsing.ConfigFileParser;
 import bkromhout.fdl.stories.*;
+import rx.Observable;
+import rx.schedulers.Schedulers;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -20,6 +24,10 @@ public class Sites {
      * List which holds all {@link Site}s.
      */
     private static ArrayList<Site> all;
+    /**
+     * Map of host domains to {@link Site}s, used to quickly find the site that a host belongs to.
+     */
+    private static HashMap<String, Site> byHost;
     /**
      * Supported {@link Site}s.
      */
@@ -32,14 +40,25 @@ public class Sites {
     public static void init() {
         all = new ArrayList<>();
         // Create sites and add them to the list of sites.
-        all.add(FH = new Site("FictionHunt", "fictionhunt.com", FictionHuntDL.class, FictionHuntStory.class));
-        all.add(FFN = new Site("FanFiction.net", "fanfiction.net", FanFictionDL.class, FanFictionStory.class));
-        all.add(SIYE = new Site("SIYE", "siye.co.uk", SiyeDL.class, SiyeStory.class));
-        all.add(MN = new Site("MuggleNet", "fanfiction.mugglenet.com", MuggleNetDL.class, MuggleNetStory.class, true));
-        all.add(AO3 = new Site("Ao3", "archiveofourown.org", Ao3DL.class, Ao3Story.class));
-        all.add(TBC = new Site("The Broom Cupboard", "thebroomcupboard.net", TbcDL.class, TbcStory.class, true));
-        all.add(WP = new Site("Wattpad", "wattpad.com", WattpadDL.class, WattpadStory.class));
-        all.add(HPFF = new Site("Harry Potter FanFiction", "harrypotterfanfiction.com", HpffDL.class, HpffStory.class));
+        all.add(FH = new Site("FictionHunt", "fictionhunt.com", "/read/(\\d+)", FictionHuntDL.class,
+                FictionHuntStory.class));
+        all.add(FFN = new Site("FanFiction.net", "fanfiction.net", "/s/(\\d+)", FanFictionDL.class,
+                FanFictionStory.class));
+        all.add(SIYE = new Site("SIYE", "siye.co.uk", "[?&]sid=(\\d+)", SiyeDL.class, SiyeStory.class));
+        all.add(MN = new Site("MuggleNet", "fanfiction.mugglenet.com", "[?&]sid=(\\d+)", MuggleNetDL.class,
+                MuggleNetStory.class, true));
+        all.add(AO3 = new Site("Ao3", "archiveofourown.org", "/works/(\\d+)", Ao3DL.class, Ao3Story.class));
+        all.add(TBC = new Site("The Broom Cupboard", "thebroomcupboard.net", "/story/(\\d+)", TbcDL.class,
+                TbcStory.class, true));
+        all.add(WP = new Site("Wattpad", "wattpad.com", "/story/(\\d+)", WattpadDL.class, WattpadStory.class));
+        all.add(HPFF = new Site("Harry Potter FanFiction", "harrypotterfanfiction.com", "[?&]psid=(\\d+)", HpffDL.class,
+                HpffStory.class));
+        // Tell sites how their pages are encoded. The eFiction-based sites (and HPFF) mix in Windows-1252.
+        for (Site site : new Site[] {FH, FFN, AO3, WP}) site.setEncoding(PageEncoding.UTF_8);
+        for (Site site : new Site[] {SIYE, MN, TBC, HPFF}) site.setEncoding(PageEncoding.UTF_8_OR_WINDOWS_1252);
+        // Index sites by host.
+        byHost = new HashMap<>();
+        for (Site site : all) byHost.put(site.getHost(), site);
     }
 
     /**
@@ -50,6 +69,39 @@ public class Sites {
         return Collections.unmodifiableList(all);
     }
 
+    /**
+     * Find the {@link Site} which the given host belongs to.
+     * <p>
+     * Rather than checking every site, this looks up the host and then each of its parent domains in turn, so it only
+     * does as many lookups as the host has labels.
+     * @param host Lower-case host name.
+     * @return Site whose host is the given host or one of its parent domains, or null if there isn't one (or if {@link
+     * #init()} hasn't been called yet).
+     */
+    public static Site forHost(String host) {
+        if (byHost == null || host == null) return null;
+        for (String suffix = host; ; suffix = suffix.substring(suffix.indexOf('.') + 1)) {
+            Site site = byHost.get(suffix);
+            if (site != null) return site;
+            if (suffix.indexOf('.') < 0) return null;
+        }
+    }
+
+    /**
+     * Log in to every site which supports auth and has credentials in the config file, all at once, and wait until
+     * they're all done. Logging in is mostly waiting on the network, so there's no reason for one site to wait for
+     * another.
+     * @param config Options parsed from the config file. May be null.
+     */
+    public static void authenticate(ConfigFileParser.Config config) {
+        Observable.from(all)
+                  .flatMap(site -> Observable.just(site)
+                                             .doOnNext(s -> s.authenticate(config))
+                                             .subscribeOn(Schedulers.io()))
+                  .toBlocking()
+                  .lastOrDefault(null);
+    }
+
     public static Site FFN() {
         return FFN;
     }
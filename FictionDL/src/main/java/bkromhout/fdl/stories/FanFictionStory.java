@@ -27,13 +27,22 @@ public class FanFictionStory extends Story {
      * FFN story chapter link template, just needs the story ID string and chapter number substituted into it.
      */
     private static final String FFN_C_URL = "https://www.fanfiction.net/s/%s/%d";
+    /**
+     * FFN user page link template, just needs the user ID string substituted into it.
+     */
+    private static final String FFN_U_URL = "https://www.fanfiction.net/u/%s";
+    /**
+     * Regex to get the user ID from an FFN user page link.
+     */
+    private static final Pattern FFN_USER_ID_REGEX = Pattern.compile("/u/(\\d+)");
     /**
      * Regex to determine if a string contains a valid FFN genre. If .find() returns true, it does.
      */
-    private static final String FFN_GENRE_REGEX = "\\QAdventure\\E|\\QAngst\\E|\\QCrime\\E|\\QDrama\\E|\\QFamily\\E" +
+    private static final Pattern FFN_GENRE_REGEX = Pattern.compile(
+            "\\QAdventure\\E|\\QAngst\\E|\\QCrime\\E|\\QDrama\\E|\\QFamily\\E" +
             "|\\QFantasy\\E|\\QFriendship\\E|\\QGeneral\\E|\\QHorror\\E|\\QHumor\\E|\\QHurt/Comfort\\E|\\QMystery\\E" +
             "|\\QParody\\E|\\QPoetry\\E|\\QRomance\\E|\\QSci-Fi\\E|\\QSpiritual\\E|\\QSupernatural\\E|\\QSuspense\\E" +
-            "|\\QTragedy\\E|\\QWestern\\E";
+            "|\\QTragedy\\E|\\QWestern\\E");
 
     /**
      * Create a new {@link FanFictionStory}.
@@ -57,8 +66,11 @@ public class FanFictionStory extends Story {
         title = hasDetailTag(C.J_TITLE) ? detailTags.get(C.J_TITLE)
                 : infoDoc.select("div#profile_top b").first().html().trim();
 
-        author = hasDetailTag(C.J_AUTHOR) ? detailTags.get(C.J_AUTHOR)
-                : infoDoc.select("div#profile_top a[href~=" + "/u/.*" + "]").first().html().trim();
+        Element authorLink = infoDoc.select("div#profile_top a[href~=" + "/u/.*" + "]").first();
+        author = hasDetailTag(C.J_AUTHOR) ? detailTags.get(C.J_AUTHOR) : authorLink.html().trim();
+        // The author's page lists all of their stories, so we can use it to check several of them for updates at once.
+        Matcher userIdMatcher = FFN_USER_ID_REGEX.matcher(authorLink.attr("href"));
+        if (userIdMatcher.find()) listingUrl = String.format(FFN_U_URL, userIdMatcher.group(1));
 
         summary = hasDetailTag(C.J_SUMMARY) ? detailTags.get(C.J_SUMMARY)
                 : infoDoc.select("div#profile_top > div").first().html().trim();
@@ -90,7 +102,7 @@ public class FanFictionStory extends Story {
         } else if (chapCntIdx == 3 || (chapCntIdx == -1 && wordCntIdx == 3)) {
             // We have something at index 2, but we need to figure out if it's a genre or characters. This also means
             // that we only have one of either genres or characters, not both.
-            Matcher genreMatcher = Pattern.compile(FFN_GENRE_REGEX).matcher(details[2]);
+            Matcher genreMatcher = FFN_GENRE_REGEX.matcher(details[2]);
             if (genreMatcher.find()) {
                 // This is the genres string, we don't have characters.
                 genres = details[2].trim();
@@ -160,10 +172,10 @@ public class FanFictionStory extends Story {
     /**
      * Takes a long time value that was parsed from FanFiction.net, multiplies it by 1000 to make it match the Java long
      * time format, then returns a string with it printed in the format MMM dd, yyyy.
-     * @param ffnTime String long value from an FFN data-xutime attribute.
+     * @param ffnTime String long value from an FFN data-xutime attribute, or one of the date attributes on a user page.
      * @return Date string.
      */
-    private String dateFromFfnTime(String ffnTime) {
+    public static String dateFromFfnTime(String ffnTime) {
         // Add some zeros to make it like a Java long.
         long longFfnTime = Long.parseLong(ffnTime);
         longFfnTime *= 1000;
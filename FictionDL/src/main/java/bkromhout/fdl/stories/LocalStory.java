@@ -191,8 +191,7 @@ public class LocalStory extends Story {
                     String t = chapTitles.get(String.valueOf(chapter.number));
                     chapter.title = (t != null && !t.isEmpty()) ? t : String.format("Chapter %d", chapter.number);
                 }))
-                .compose(new RxChapAction(Chapter::wrapContentInTemplate)) // Wrap chapter content in chapter template.
-                .compose(new RxChapAction(Chapter::sanitizeContent)) // Sanitize chapter content.
+                .compose(new RxChapAction(Chapter::finish)) // Sanitize chapter content and put it in the template.
                 .compose(new RxChapAction(chapter -> ProgressHelper.finishedWorkUnit()))
                 .doOnCompleted(() -> Util.log(C.SANITIZING_CHAPS))
                 .observeOn(Schedulers.immediate())
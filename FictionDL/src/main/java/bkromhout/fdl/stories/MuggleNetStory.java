@@ -21,6 +21,11 @@ public class MuggleNetStory extends Story {
      * MuggleNet story info link template, just needs story ID and warning bypass part substituted into it.
      */
     private static final String MN_S_URL = "http://fanfiction.mugglenet.com/viewstory.php?sid=%s%s";
+    /**
+     * MuggleNet printable whole story link template, needs story ID and warning bypass part substituted into it.
+     */
+    private static final String MN_P_URL =
+            "http://fanfiction.mugglenet.com/viewstory.php?action=printable&sid=%s&textsize=0&chapter=all%s";
     /**
      * MuggleNet url fragment, adds a warning bypass for "Professors"-rated stories/chapters.
      */
@@ -152,6 +157,7 @@ public class MuggleNetStory extends Story {
 
         // Generate chapter urls.
         for (int i = 0; i < chapCount; i++) chapterUrls.add(String.format(MN_C_URL, storyId, i + 1, warnBypass));
+        if (chapCount > 1) wholeStoryUrl = String.format(MN_P_URL, storyId, warnBypass);
     }
 
     /**
@@ -17,6 +17,10 @@ public class SiyeStory extends Story {
      * SIYE story chapter link template, just needs the story ID string and chapter number substituted into it.
      */
     private static final String SIYE_C_URL = "http://siye.co.uk/viewstory.php?sid=%s&chapter=%d";
+    /**
+     * SIYE printable whole story link template, just needs the story ID string substituted into it.
+     */
+    private static final String SIYE_P_URL = "http://siye.co.uk/viewstory.php?action=printable&sid=%s&chapter=all";
     /**
      * SIYE author page link template, just needs relative author link string substituted into it.
      */
@@ -110,6 +114,7 @@ public class SiyeStory extends Story {
 
         // Generate chapter urls.
         for (int i = 0; i < chapCount; i++) chapterUrls.add(String.format(SIYE_C_URL, storyId, i + 1));
+        if (chapCount > 1) wholeStoryUrl = String.format(SIYE_P_URL, storyId);
     }
 
     /**
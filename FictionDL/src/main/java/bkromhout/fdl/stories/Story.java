@@ -3,15 +3,16 @@ package bkromhout.fdl.stories;
 import bkromhout.fdl.chapter.Chapter;
 import bkromhout.fdl.ex.InitStoryException;
 import bkromhout.fdl.parsing.StoryEntry;
+import bkromhout.fdl.site.PageEncoding;
 import bkromhout.fdl.site.Site;
 import bkromhout.fdl.util.C;
 import bkromhout.fdl.util.ImageHelper;
+import bkromhout.fdl.util.Patterns;
 import nl.siegmann.epublib.domain.Resource;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Base Story class from which site-specific story classes should be extended.
@@ -61,6 +62,10 @@ public abstract class Story {
     final ArrayList<Resource> imageResources = new ArrayList<>();
     // List of chapter urls.
     final ArrayList<String> chapterUrls = new ArrayList<>();
+    // Url of a page with every chapter on it, if the site has one.
+    String wholeStoryUrl;
+    // Url of a page which lists this story along with others (such as its author's page), if the site has one.
+    String listingUrl;
     // List of chapters.
     ArrayList<Chapter> chapters = new ArrayList<>();
 
@@ -94,7 +99,7 @@ public abstract class Story {
      * @throws InitStoryException if we can't parse the story ID from the url.
      */
     String parseStoryId(String url, String regex, int group) throws InitStoryException {
-        Matcher matcher = Pattern.compile(regex).matcher(url);
+        Matcher matcher = (site != null ? site.getPatterns() : Patterns.shared()).pattern(regex).matcher(url);
         if (!matcher.find()) throw new InitStoryException(C.INVALID_URL, url);
         return matcher.group(group);
     }
@@ -264,6 +269,22 @@ public abstract class Story {
         return status;
     }
 
+    /**
+     * Get how this story's pages are encoded.
+     * @return Encoding of this story's site, or {@link PageEncoding#DECLARED} if it doesn't have one.
+     */
+    public PageEncoding getPageEncoding() {
+        return site != null ? site.getEncoding() : PageEncoding.DECLARED;
+    }
+
+    /**
+     * Whether or not this story's text might contain mojibake which needs to be repaired.
+     * @return True if this story's {@link PageEncoding} needs repairs.
+     */
+    public boolean needsMojibakeRepair() {
+        return getPageEncoding().needsRepair();
+    }
+
     /**
      * Whether or not this story has a cover image set.
      * @return True if {@link #coverImage} isn't {@code null}.
@@ -304,6 +325,25 @@ public abstract class Story {
         return chapterUrls;
     }
 
+    /**
+     * Get the url of a page which has all of this story's chapters on it, so that they can be downloaded with a single
+     * request instead of one per chapter.
+     * @return Whole story url, or null if the site doesn't have one (or the story only has one chapter anyway).
+     */
+    public String getWholeStoryUrl() {
+        return wholeStoryUrl;
+    }
+
+    /**
+     * Get the url of a page which lists this story's updated date and chapter count along with those of other stories,
+     * such as its author's page. It's saved in the {@link bkromhout.fdl.epub.OutputManifest OutputManifest} so that on
+     * later runs we can check whether several stories have changed by getting just that page.
+     * @return Listing url, or null if the site doesn't have one.
+     */
+    public String getListingUrl() {
+        return listingUrl;
+    }
+
     /**
      * Get this story's chapters.
      * @return Story chapters.
@@ -0,0 +1,47 @@
+package bkromhout.fdl.util;
+
+import bkromhout.fdl.metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of throughput numbers for a run, so that we can report them at the end of a benchmark run.
+ */
+public abstract class Benchmark {
+    /**
+     * Time that the run started, in nanoseconds.
+     */
+    private static long startNanos;
+    /**
+     * Number of chapters which have been finished.
+     */
+    private static final AtomicLong chaptersDone = new AtomicLong();
+
+    /**
+     * Start timing a run. Resets the chapter count. The JVM's peak heap usage is reset by {@link Metrics#start()}.
+     */
+    public static void start() {
+        chaptersDone.set(0L);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Call to indicate that a chapter has been finished.
+     */
+    public static void chapterDone() {
+        chaptersDone.incrementAndGet();
+    }
+
+    /**
+     * Log the throughput numbers for the run.
+     * @param storiesDownloaded Number of stories which were successfully downloaded.
+     * @param storyOrder        Name of the order that stories were downloaded in.
+     */
+    public static void report(long storiesDownloaded, String storyOrder) {
+        double seconds = Math.max(System.nanoTime() - startNanos, 1L) / 1e9;
+        Util.logf(C.BENCH_RESULTS, seconds, storiesDownloaded * 60d / seconds, chaptersDone.get() / seconds,
+                Metrics.peakHeapBytes() / (1024d * 1024d));
+        if (Metrics.firstEpubMs() >= 0L)
+            Util.logf(C.BENCH_ORDER_RESULTS, storyOrder, Metrics.firstEpubMs() / 1e3, Metrics.lastEpubMs() / 1e3);
+    }
+}
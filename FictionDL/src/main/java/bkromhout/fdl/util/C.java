@@ -1,6 +1,7 @@
 package bkromhout.fdl.util;
 
 import bkromhout.fdl.Main;
+import bkromhout.fdl.net.NetworkProfile;
 import com.google.common.eventbus.EventBus;
 import okhttp3.OkHttpClient;
 
@@ -47,6 +48,14 @@ public abstract class C {
         return Main.eventBus;
     }
 
+    /**
+     * Get the network profile that the OkHttpClient was built with.
+     * @return Network profile.
+     */
+    public static NetworkProfile getNetworkProfile() {
+        return Main.networkProfile;
+    }
+
     /*
     Log style tags.
     Putting these anywhere within a log string will cause the string to be formatted accordingly if
@@ -66,6 +75,12 @@ public abstract class C {
     public static final String ARG_IN_PATH = "arg_in_path";
     public static final String ARG_OUT_PATH = "arg_out_path";
     public static final String ARG_CFG_PATH = "arg_cfg_path";
+    public static final String ARG_BENCH = "arg_bench";
+    public static final String ARG_METRICS_PATH = "arg_metrics_path";
+    public static final String ARG_PROM_PATH = "arg_prom_path";
+    public static final String ARG_FORCE = "arg_force";
+    public static final String ARG_COOKIE_PATH = "arg_cookie_path";
+    public static final String ARG_STORY_ORDER = "arg_story_order";
 
     /*
     Log strings.
@@ -79,14 +94,100 @@ public abstract class C {
 
     public static final String SAVING_STORY = "Saving Story...";
 
+    public static final String SAVED_STORY = "Saved \"%s\"." + N + LOG_GREEN;
+
     public static final String ALL_FINISHED = N + "All Finished! :)" + LOG_GREEN;
 
     public static final String RUN_RESULTS = "This run successfully downloaded %d of %d stories." + N + LOG_BLUE;
 
+    public static final String DUPLICATES_SKIPPED = "Skipped %d duplicate story entries." + N + LOG_BLUE;
+
+    public static final String SKIPPED_WRITTEN = "Skipped %d stories because their sites were down, use \"%s\" as an " +
+            "input file to try them again." + N + LOG_WARN;
+
+    public static final String SKIPPED_WRITE_FAILED = "Couldn't write skipped stories file \"%s\": %s" + N + LOG_ERR;
+
+    public static final String BENCH_RESULTS = "Benchmark: %.1fs elapsed, %.2f stories/minute, %.2f chapters/second, " +
+            "%.1f MiB peak heap." + N + LOG_BLUE;
+
+    public static final String BENCH_ORDER_RESULTS = "Benchmark: story order \"%s\", first ePUB saved after %.1fs, " +
+            "last after %.1fs." + N + LOG_BLUE;
+
+    public static final String METRICS_WRITTEN = "Wrote metrics to \"%s\"." + N + LOG_BLUE;
+
+    public static final String METRICS_WRITE_FAILED = "Couldn't write metrics to \"%s\": %s" + N + LOG_ERR;
+
+    public static final String MANIFEST_READ_FAILED = "Couldn't read output manifest \"%s\", all stories will be " +
+            "downloaded: %s" + N + LOG_WARN;
+
+    public static final String MANIFEST_WRITE_FAILED = "Couldn't write output manifest \"%s\": %s" + N + LOG_ERR;
+
+    public static final String COOKIES_READ_FAILED = "Couldn't read cookie file \"%s\", saved logins won't be used: " +
+            "%s" + N + LOG_WARN;
+
+    public static final String COOKIES_WRITE_FAILED = "Couldn't write cookie file \"%s\": %s" + N + LOG_ERR;
+
+    // Job server.
+    public static final String SERVING_JOBS = "Accepting jobs at %s." + N + LOG_BLUE;
+
+    public static final String JOB_STARTED = N + "Starting job %s." + N + LOG_BLUE;
+
+    public static final String JOB_FINISHED = "Finished job %s." + N + LOG_GREEN;
+
+    public static final String JOB_FAILED = "Job %s failed: %s" + N + LOG_ERR;
+
+    public static final String SERVER_STOPPING = "Not accepting any more jobs, stopping once queued jobs finish.";
+
+    public static final String BAD_JOB_REQUEST = "Job requests need either \"inputPath\", or \"input\" and " +
+            "\"outputDir\".";
+
+    public static final String NO_SUCH_JOB = "No job with ID \"%s\".";
+
+    public static final String JOB_ABORTED = "The job stopped unexpectedly.";
+
+    public static final String CROSS_ORIGIN_REQUEST = "Requests from web pages aren't allowed.";
+
+    public static final String JSON_REQUIRED = "POST requests must have a Content-Type of application/json.";
+
+    public static final String WATCHING_FOLDER = "Watching \"%s\" for input files and local story folders." + N +
+            LOG_BLUE;
+
+    public static final String WATCH_RESUMING = "Resuming %d queued jobs from the last time we watched this folder." +
+            N + LOG_BLUE;
+
+    public static final String WATCH_QUEUED = "Queued \"%s\"." + N + LOG_BLUE;
+
+    public static final String WATCH_FINISHED = "Done with \"%s\", moved it to \"%s\"." + N + LOG_GREEN;
+
+    public static final String WATCH_SCAN_FAILED = "Couldn't check \"%s\" for new files: %s" + N + LOG_ERR;
+
+    public static final String WATCH_SUBMIT_FAILED = "Couldn't queue \"%s\": %s" + N + LOG_ERR;
+
+    public static final String WATCH_MOVE_FAILED = "Couldn't move \"%s\" out of the watched folder: %s" + N + LOG_ERR;
+
+    public static final String WATCH_QUEUE_READ_FAILED = "Couldn't read queue file \"%s\": %s" + N + LOG_WARN;
+
+    public static final String WATCH_QUEUE_WRITE_FAILED = "Couldn't write queue file \"%s\": %s" + N + LOG_ERR;
+
+    // Network harness.
+    public static final String RECORDING_TO = "Recording responses to \"%s\"." + N + LOG_BLUE;
+
+    public static final String REPLAYING_FROM = "Replaying responses from \"%s\" via %s." + N + LOG_BLUE;
+
     // Site Story Process
     public static final String STARTING_SITE_DL_PROCESS = N + "Starting %s download process..." + N + LOG_BLUE;
 
-    public static final String STARTING_SITE_AUTH_PROCESS = N + "Attempting to log in to %s..." + LOG_BLUE;
+    public static final String STARTING_SITE_AUTH_PROCESS = "Logging in to %s..." + N + LOG_BLUE;
+
+    public static final String LOGGED_IN = "Logged in to %s." + N + LOG_GREEN;
+
+    public static final String USING_SAVED_LOGIN = "Using saved login for %s." + N + LOG_BLUE;
+
+    public static final String GOT_LOGIN_WALL = "Got a login page instead of chapter %d of \"%s\", logging in " +
+            "again..." + N + LOG_WARN;
+
+    public static final String CHECKING_LISTINGS = "Checking %d listing pages from %s for stories which haven't " +
+            "changed..." + N;
 
     public static final String FETCH_BUILD_MODELS =
             "Fetching all stories' details from %s to build story models..." + N;
@@ -95,7 +196,28 @@ public abstract class C {
 
     public static final String DL_CONTENT_FOR = "Downloading: \"%s\"" + N; // For downloaders which extend ParsingDL.
 
-    public static final String DL_EPUB_FOR = "Downloading ePUB for: \"%s\"..."; // For downloaders which extend EpubDL.
+    public static final String SITE_DOWN = "%s seems to be down (%d connection failures in a row), skipping its " +
+            "stories until it answers again." + N + LOG_ERR;
+
+    public static final String SITE_PROBING = "Checking if %s is back up..." + N + LOG_BLUE;
+
+    public static final String SITE_BACK_UP = "%s is back up." + N + LOG_GREEN;
+
+    public static final String SITE_IS_DOWN = "%s seems to be down.";
+
+    public static final String SITE_DOWN_SKIPPING = "Skipping \"%s\" because %s seems to be down." + N + LOG_WARN;
+
+    public static final String DL_WHOLE_STORY_FOR = "Downloading (all chapters at once): \"%s\"" + N;
+
+    public static final String WHOLE_STORY_FAILED = "Couldn't get all of \"%s\" at once, downloading each chapter " +
+            "instead..." + N + LOG_WARN;
+
+    public static final String DL_EPUB_FOR = "Downloading ePUB for: \"%s\"" + N; // For downloaders which extend EpubDL.
+
+    public static final String STORY_UNCHANGED = "\"%s\" hasn't changed since it was last saved, skipping it." + N +
+            LOG_BLUE;
+
+    public static final String EPUB_UNCHANGED = "\"%s\" is already up to date, not rewriting it." + N + LOG_LOUD;
 
     public static final String FINISHED_WITH_SITE = "Finished with %s." + NN + LOG_BLUE;
 
@@ -144,9 +266,14 @@ public abstract class C {
     // Parsing.
     public static final String PROCESS_LINE_FAILED = "Couldn't process this line from %s file: \"%s\"." + N + LOG_WARN;
 
+    public static final String INVALID_NET_OPTION = "Invalid value for %s: \"%s\". Using %d instead." + N + LOG_WARN;
+
     public static final String DETAIL_TAG_IGNORED = "Ignoring the detail tag \"%s\" because there's no story link to" +
             " associate it with." + N + LOG_WARN;
 
+    public static final String DUPLICATE_STORY_ENTRY = "Skipping \"%s\", it's the same story as \"%s\"." +
+            LOG_LOUD;
+
     public static final String PARSE_HTML_FAILED = "Couldn't parse HTML for \"%s\"." + LOG_WARN;
 
     // General Network.
@@ -156,8 +283,23 @@ public abstract class C {
 
     static final String FILE_DL_FAILED = "Failed to download FILE from: \"%s\"." + N + LOG_WARN;
 
+    public static final String EPUB_DL_FAILED = "Failed to download ePUB for \"%s\"." + N + LOG_ERR;
+
+    public static final String EPUB_LENGTH_MISMATCH = "Got %d bytes, but expected %d." + LOG_ERR;
+
+    public static final String EPUB_REWRITE_FAILED = "Couldn't apply detail tags to the ePUB for \"%s\", saving it " +
+            "as-is: %s" + N + LOG_WARN;
+
+    public static final String EPUB_NOT_A_ZIP = "Not a ZIP file that we can read.";
+
+    public static final String EPUB_NO_OPF = "Couldn't find the package document.";
+
     public static final String SAVE_FILE_FAILED = "Failed to save file: \"%s\"." + N + LOG_ERR;
 
+    public static final String RECORD_FIXTURE_FAILED = "Failed to record response for: \"%s\"." + N + LOG_WARN;
+
+    public static final String NET_HARNESS_FAILED = "Couldn't set up response recording/replaying: %s" + N + LOG_ERR;
+
     // Auth.
     public static final String LOGIN_FAILED = N + "Couldn't log in to %s. Check your login info." + N + LOG_ERR;
 
@@ -175,7 +317,11 @@ public abstract class C {
     public static final String UNEXP_STORY_ERR = "Unexpected exception while trying to make a story model for \"%s\":" +
             N + "%s" + LOG_ERR + N;
 
-    public static final String PARTIAL_DL_FAIL = "Skipping this story, some chapters failed to download!" + N + LOG_ERR;
+    public static final String PARTIAL_DL_FAIL = "Skipping \"%s\", some chapters failed to download!" + N + LOG_ERR;
+
+    public static final String CALL_DEADLINE_EXCEEDED = "Gave up on \"%s\" after %d seconds." + N + LOG_WARN;
+
+    public static final String CHAP_FETCH_FAILED = "Failed to download chapter from: \"%s\"." + N + LOG_WARN;
 
     // Local Story Process.
     private static final String LS_PRE_DIR = "The local story in folder \"%s\" "; // Common local story error prefix.
@@ -217,6 +363,8 @@ public abstract class C {
 
     public static final String NO_INPUT_PATH = "You must supply an input file path!";
 
+    public static final String INVALID_STORY_ORDER = "Invalid story order: \"%s\". Use input, sjf, or ljf.";
+
     public static final String UNEXP_HTML_RESP = "Unexpected result when trying to download HTML from \"%s\"." + N;
 
     public static final String CHAP_NUM_NOT_ASSIGNED = "Chapter number hasn't been assigned yet!";
@@ -294,8 +442,18 @@ public abstract class C {
             "body{\ttext-align: left;\tfont: 1em Calibri;\tline-height: 1.05em;}";
 
     /**
-     * Chapter page. Has a number of areas for replacement using String.format(): Chapter title, Chapter title, Chapter
-     * text (HTML!).
+     * ePUB container file, which points to the package document. The same as what epublib writes.
+     */
+    public static final String EPUB_CONTAINER_XML = "<?xml version=\"1.0\"?>\n" +
+            "<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n" +
+            "\t<rootfiles>\n" +
+            "\t\t<rootfile full-path=\"OEBPS/content.opf\" media-type=\"application/oebps-package+xml\"/>\n" +
+            "\t</rootfiles>\n" +
+            "</container>";
+
+    /**
+     * Chapter page. Has a number of %s areas which the chapter page writer fills in, in order: Chapter title, Chapter
+     * title, Chapter text (HTML!).
      */
     public static final String CHAPTER_PAGE = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" + N +
             "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1//EN\"" + N +
@@ -1,59 +1,340 @@
 package bkromhout.fdl.util;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import okhttp3.Cookie;
 import okhttp3.CookieJar;
 import okhttp3.HttpUrl;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
- * An implementation of OkHttp's {@code CookieJar}. Only keeps cookies per-run.
+ * An implementation of OkHttp's {@code CookieJar} which is safe to use from OkHttp's dispatcher threads.
+ * <p>
+ * Cookies are indexed by domain, so a request only looks at cookies for its host and that host's parent domains.
+ * Expired cookies are never sent, and are removed every so often on a background thread rather than while handling
+ * requests.
+ * <p>
+ * Normally cookies are only kept for the current run. If a cookie file is {@link #load(Path, Collection) loaded},
+ * persistent cookies for the given hosts (the sites we log in to) are restored from it, and are written back to it when
+ * {@link #save()} is called, so that we can stay logged in between runs.
+ * <p>
+ * The cookies for a host belong to the user who last logged in to it. If a different user (or nobody) uses the host
+ * later, its cookies are removed first, so that nobody is handed someone else's session.
  */
 public class CookieMonster implements CookieJar {
+    /**
+     * How often to remove expired cookies, in minutes.
+     */
+    private static final long SWEEP_INTERVAL_MINUTES = 1L;
     /**
      * Singleton instance.
      */
-    private static CookieMonster INSTANCE = null;
+    private static final CookieMonster INSTANCE = new CookieMonster();
     /**
-     * Cookies held by the cookie monster.
+     * Cookies held by the cookie monster, keyed by domain, then by name and path.
      */
-    private final HashSet<Cookie> cookies;
+    private final Map<String, Map<String, Cookie>> cookies = new ConcurrentHashMap<>();
+    /**
+     * Hosts whose persistent cookies are saved to the cookie file.
+     */
+    private final Set<String> persistentHosts = ConcurrentHashMap.newKeySet();
+    /**
+     * Username which each host's cookies belong to, keyed by host. Hosts which nobody has logged in to aren't present.
+     */
+    private final Map<String, String> users = new ConcurrentHashMap<>();
+    /**
+     * Cookie file, or null if cookies aren't being persisted.
+     */
+    private volatile Path file = null;
 
     /**
      * Get the {@link CookieMonster} instance.
      * @return Instance.
      */
     public static CookieMonster get() {
-        if (INSTANCE == null) INSTANCE = new CookieMonster();
         return INSTANCE;
     }
 
     // C is for Cookie.
     private CookieMonster() {
-        this.cookies = new HashSet<>();
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("fdl-cookie-sweeper-%d").setDaemon(true).build());
+        sweeper.scheduleWithFixedDelay(this::removeExpired, SWEEP_INTERVAL_MINUTES, SWEEP_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
     }
 
     @Override
     public void saveFromResponse(HttpUrl url, List<Cookie> cookies) {
-        this.cookies.addAll(cookies);
+        long now = System.currentTimeMillis();
+        for (Cookie cookie : cookies) {
+            // Done atomically for the domain, so that the sweeper can't drop the domain's map while we're using it.
+            this.cookies.compute(cookie.domain(), (domain, domainCookies) -> {
+                if (domainCookies == null) domainCookies = new ConcurrentHashMap<>();
+                // Servers delete cookies by sending them again with an expiry date in the past.
+                if (cookie.expiresAt() <= now) domainCookies.remove(key(cookie));
+                else domainCookies.put(key(cookie), cookie);
+                return domainCookies.isEmpty() ? null : domainCookies;
+            });
+        }
     }
 
     @Override
     public List<Cookie> loadForRequest(HttpUrl url) {
         List<Cookie> validCookies = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        // Check the cookies for the host, then for each of its parent domains.
+        for (String domain = url.host(); domain != null; domain = parentDomain(domain)) {
+            Map<String, Cookie> domainCookies = cookies.get(domain);
+            if (domainCookies == null) continue;
+            for (Cookie cookie : domainCookies.values())
+                if (cookie.expiresAt() > now && cookie.matches(url)) validCookies.add(cookie);
+        }
+        return validCookies;
+    }
+
+    /**
+     * Check whether we have any unexpired cookies which would be sent to the given host.
+     * @param host Host.
+     * @return True if we have cookies for the host.
+     */
+    public boolean hasCookiesFor(String host) {
+        long now = System.currentTimeMillis();
+        for (String domain = host; domain != null; domain = parentDomain(domain)) {
+            Map<String, Cookie> domainCookies = cookies.get(domain);
+            if (domainCookies == null) continue;
+            for (Cookie cookie : domainCookies.values())
+                if (cookie.expiresAt() > now && domainMatches(cookie, host)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Note which user is about to use a host. If the host's cookies belong to someone else, they're removed first.
+     * @param host Host.
+     * @param user Username, or null if nobody is logging in to the host.
+     */
+    public synchronized void switchUser(String host, String user) {
+        if (Objects.equals(users.get(host), user)) return;
+        for (String domain : cookies.keySet()) {
+            cookies.computeIfPresent(domain, (d, domainCookies) -> {
+                domainCookies.values().removeIf(cookie -> isFor(cookie, host));
+                return domainCookies.isEmpty() ? null : domainCookies;
+            });
+        }
+        if (user == null) users.remove(host);
+        else users.put(host, user);
+    }
+
+    /**
+     * Start persisting cookies for the given hosts, restoring any which were saved to the given cookie file before. If
+     * the file doesn't exist yet, it will be created when {@link #save()} is called. Saved cookies which belong to a
+     * different user than the one currently using their host are ignored.
+     * @param file  Cookie file.
+     * @param hosts Hosts whose cookies should be persisted.
+     */
+    public synchronized void load(Path file, Collection<String> hosts) {
+        this.file = file;
+        persistentHosts.clear();
+        persistentHosts.addAll(hosts);
+        if (!Files.isRegularFile(file)) return;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            List<SavedCookie> saved = new Gson().fromJson(reader, new TypeToken<List<SavedCookie>>() {}.getType());
+            if (saved == null) return;
+            long now = System.currentTimeMillis();
+            for (SavedCookie savedCookie : saved) {
+                Cookie cookie = savedCookie.toCookie();
+                if (cookie == null || cookie.expiresAt() <= now || !isPersistent(cookie)) continue;
+                String host = hostFor(cookie, hosts);
+                String user = host != null ? users.get(host) : null;
+                if (user != null && !user.equals(savedCookie.user)) continue;
+                if (host != null && savedCookie.user != null) users.put(host, savedCookie.user);
+                cookies.computeIfAbsent(cookie.domain(), domain -> new ConcurrentHashMap<>()).put(key(cookie), cookie);
+            }
+        } catch (IOException | JsonParseException e) {
+            Util.logf(C.COOKIES_READ_FAILED, file, e.getMessage());
+        }
+    }
 
-        for (Iterator<Cookie> it = cookies.iterator(); it.hasNext(); ) {
-            Cookie currentCookie = it.next();
+    /**
+     * Save persistent cookies for the hosts given to {@link #load(Path, Collection)} to the cookie file. Does nothing
+     * if no cookie file was loaded.
+     */
+    public synchronized void save() {
+        if (file == null) return;
+        List<SavedCookie> saved = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Map<String, Cookie> domainCookies : cookies.values())
+            for (Cookie cookie : domainCookies.values())
+                if (cookie.expiresAt() > now && isPersistent(cookie))
+                    saved.add(new SavedCookie(cookie, userFor(cookie)));
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, ".fdl-", ".tmp");
+            try {
+                try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    new GsonBuilder().setPrettyPrinting().create().toJson(saved, writer);
+                }
+                Util.replaceFile(temp, file);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            Util.logf(C.COOKIES_WRITE_FAILED, file, e.getMessage());
+        }
+    }
 
-            if (currentCookie.expiresAt() < System.currentTimeMillis())
-                it.remove();
-            else if (currentCookie.matches(url))
-                validCookies.add(currentCookie);
+    /**
+     * Remove all expired cookies, and any domains which no longer have cookies.
+     */
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (String domain : cookies.keySet()) {
+            cookies.computeIfPresent(domain, (d, domainCookies) -> {
+                domainCookies.values().removeIf(cookie -> cookie.expiresAt() <= now);
+                return domainCookies.isEmpty() ? null : domainCookies;
+            });
         }
+    }
 
-        return validCookies;
+    /**
+     * Check whether a cookie should be saved to the cookie file.
+     * @param cookie Cookie.
+     * @return True if the cookie outlives the session and is for one of the hosts whose cookies we persist.
+     */
+    private boolean isPersistent(Cookie cookie) {
+        if (!cookie.persistent()) return false;
+        for (String host : persistentHosts) if (domainMatches(cookie, host)) return true;
+        return false;
+    }
+
+    /**
+     * Get the user which a cookie belongs to.
+     * @param cookie Cookie.
+     * @return Username, or null if nobody has logged in to the cookie's host.
+     */
+    private String userFor(Cookie cookie) {
+        String host = hostFor(cookie, users.keySet());
+        return host != null ? users.get(host) : null;
+    }
+
+    /**
+     * Find the host which a cookie is for.
+     * @param cookie Cookie.
+     * @param hosts  Hosts to look for.
+     * @return First of the given hosts which the cookie is for, or null if it isn't for any of them.
+     */
+    private static String hostFor(Cookie cookie, Collection<String> hosts) {
+        for (String host : hosts) if (isFor(cookie, host)) return host;
+        return null;
+    }
+
+    /**
+     * Check whether a cookie is for a host, either because it would be sent to the host or because it's for one of the
+     * host's subdomains (since sites are often served from a "www." subdomain of their host).
+     * @param cookie Cookie.
+     * @param host   Host.
+     * @return True if the cookie is for the host.
+     */
+    private static boolean isFor(Cookie cookie, String host) {
+        return domainMatches(cookie, host) || cookie.domain().endsWith("." + host);
+    }
+
+    /**
+     * Get the key of a cookie within its domain. A new cookie replaces an old one with the same key.
+     * @param cookie Cookie.
+     * @return Cookie key.
+     */
+    private static String key(Cookie cookie) {
+        return cookie.name() + ";" + cookie.path();
+    }
+
+    /**
+     * Check whether a cookie's domain matches a host, ignoring the cookie's path and security requirements.
+     * @param cookie Cookie.
+     * @param host   Host.
+     * @return True if the cookie could be sent to the host.
+     */
+    private static boolean domainMatches(Cookie cookie, String host) {
+        return host.equals(cookie.domain()) || (!cookie.hostOnly() && host.endsWith("." + cookie.domain()));
+    }
+
+    /**
+     * Get the parent domain of a domain, such as "example.com" for "www.example.com".
+     * @param domain Domain.
+     * @return Parent domain, or null if the domain doesn't have one.
+     */
+    private static String parentDomain(String domain) {
+        int dot = domain.indexOf('.');
+        return dot < 0 ? null : domain.substring(dot + 1);
+    }
+
+    /**
+     * A cookie as it's saved to the cookie file.
+     */
+    private static final class SavedCookie {
+        private String name;
+        private String value;
+        private long expiresAt;
+        private String domain;
+        private String path;
+        private boolean secure;
+        private boolean httpOnly;
+        private boolean hostOnly;
+        // Null if nobody logged in to the cookie's host, or if the cookie was saved before users were tracked.
+        private String user;
+
+        // For Gson.
+        @SuppressWarnings("unused")
+        private SavedCookie() {
+        }
+
+        private SavedCookie(Cookie cookie, String user) {
+            this.name = cookie.name();
+            this.value = cookie.value();
+            this.expiresAt = cookie.expiresAt();
+            this.domain = cookie.domain();
+            this.path = cookie.path();
+            this.secure = cookie.secure();
+            this.httpOnly = cookie.httpOnly();
+            this.hostOnly = cookie.hostOnly();
+            this.user = user;
+        }
+
+        /**
+         * Turn this back into a cookie.
+         * @return Cookie, or null if this one isn't valid.
+         */
+        private Cookie toCookie() {
+            try {
+                Cookie.Builder builder = new Cookie.Builder().name(name).value(value).expiresAt(expiresAt).path(path);
+                if (hostOnly) builder.hostOnlyDomain(domain);
+                else builder.domain(domain);
+                if (secure) builder.secure();
+                if (httpOnly) builder.httpOnly();
+                return builder.build();
+            } catch (NullPointerException | IllegalArgumentException e) {
+                return null;
+            }
+        }
     }
 }
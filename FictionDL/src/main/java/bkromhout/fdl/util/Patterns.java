@@ -0,0 +1,122 @@
+package bkromhout.fdl.util;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.Selector;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A registry of compiled regexes and parsed jsoup CSS selectors, so that code which runs for every story or every
+ * chapter doesn't have to compile the same ones again and again.
+ * <p>
+ * Each {@link bkromhout.fdl.site.Site Site} has its own registry, which lasts for as long as the JVM does (so a
+ * long-running server reuses them between jobs), and there's a {@link #shared() shared} one for anything which isn't
+ * site-specific. Registries are safe to use from any thread.
+ */
+public final class Patterns {
+    /**
+     * Registry for anything which isn't site-specific.
+     */
+    private static final Patterns SHARED = new Patterns();
+    /**
+     * Site registries, keyed by site host.
+     */
+    private static final ConcurrentHashMap<String, Patterns> SITES = new ConcurrentHashMap<>();
+    /**
+     * jsoup's selector parsing method. jsoup doesn't expose its parsed selectors except through a package-private
+     * class, so we have to go through reflection to get at them. If that fails, this is null and selectors are simply
+     * parsed every time they're used, like they would be otherwise.
+     */
+    private static final Method PARSE_QUERY = findQueryParser();
+    /**
+     * Compiled regexes, keyed by regex.
+     */
+    private final ConcurrentHashMap<String, Pattern> patterns = new ConcurrentHashMap<>();
+    /**
+     * Parsed CSS selectors, keyed by CSS query.
+     */
+    private final ConcurrentHashMap<String, Evaluator> evaluators = new ConcurrentHashMap<>();
+
+    /**
+     * Get the shared registry.
+     * @return Shared registry.
+     */
+    public static Patterns shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get the registry for a site, creating it the first time.
+     * @param host Site host.
+     * @return Site's registry.
+     */
+    public static Patterns forSite(String host) {
+        return SITES.computeIfAbsent(host, key -> new Patterns());
+    }
+
+    /**
+     * Find jsoup's selector parsing method.
+     * @return Selector parsing method, or null if it couldn't be found.
+     */
+    private static Method findQueryParser() {
+        try {
+            Method parse = Class.forName("org.jsoup.select.QueryParser").getMethod("parse", String.class);
+            parse.setAccessible(true);
+            return parse;
+        } catch (ReflectiveOperationException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the compiled form of a regex, compiling it the first time it's asked for.
+     * @param regex Regex.
+     * @return Compiled regex.
+     */
+    public Pattern pattern(String regex) {
+        return patterns.computeIfAbsent(regex, Pattern::compile);
+    }
+
+    /**
+     * Get the parsed form of a CSS selector, parsing it the first time it's asked for.
+     * @param cssQuery CSS selector.
+     * @return Parsed selector, or null if selectors can't be parsed ahead of time.
+     */
+    public Evaluator evaluator(String cssQuery) {
+        return PARSE_QUERY == null ? null : evaluators.computeIfAbsent(cssQuery, Patterns::parseQuery);
+    }
+
+    /**
+     * Parse a CSS selector using jsoup's selector parser.
+     * @param cssQuery CSS selector.
+     * @return Parsed selector.
+     * @throws org.jsoup.select.Selector.SelectorParseException if the selector isn't valid.
+     */
+    private static Evaluator parseQuery(String cssQuery) {
+        try {
+            return (Evaluator) PARSE_QUERY.invoke(null, cssQuery);
+        } catch (InvocationTargetException e) {
+            // Rethrow whatever the parser threw, so that invalid selectors fail like they would have anyway.
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The same as {@link Element#select(String)}, except that the selector is only parsed once.
+     * @param root     Element to select from.
+     * @param cssQuery CSS selector.
+     * @return Matching elements.
+     */
+    public Elements select(Element root, String cssQuery) {
+        Evaluator evaluator = evaluator(cssQuery);
+        return evaluator != null ? Selector.select(evaluator, root) : root.select(cssQuery);
+    }
+}
@@ -105,7 +105,13 @@ public class ProgressHelper {
     public void onIncWorkDoneEvent(IncWorkDoneEvent event) {
         // If <= 0L, add one story's worth of work.
         if (event.getUnitsToAdd() <= 0L) workDone += oneStoryWorth;
-        else {
+        else if (event.getUnitsInStory() > 0L) {
+            // The event carries its own unit worth, so we don't need to worry about the current one.
+            workDone += oneStoryWorth / (double) event.getUnitsInStory() * (double) event.getUnitsToAdd();
+            if (event.didFail()) storiesFailed += oneStoryWorth;
+            updateTaskProgress();
+            return;
+        } else {
             if (needsRecalc) throw new IllegalStateException(C.STALE_UNIT_WORTH);
             workDone += currUnitWorth * (double) event.getUnitsToAdd();
         }
@@ -157,4 +163,43 @@ public class ProgressHelper {
     public static void finishedWorkUnit() {
         C.getEventBus().post(new IncWorkDoneEvent());
     }
+
+    /**
+     * Call if a {@link Story} with a known number of work units has failed to be successfully saved. Unlike {@link
+     * #storyFailed(long)}, this doesn't depend on the current unit worth, so it's safe to use while several stories
+     * are being downloaded at once.
+     * @param workUnitsLeft Number of work units that are still left at this point.
+     * @param unitsInStory  Total number of work units in the story.
+     */
+    public static void storyFailed(long workUnitsLeft, long unitsInStory) {
+        C.getEventBus().post(new IncWorkDoneEvent(workUnitsLeft, true, unitsInStory));
+    }
+
+    /**
+     * Call to indicate a single unit of work has been finished for a story with a known number of work units. Unlike
+     * {@link #finishedWorkUnit()}, this doesn't depend on the current unit worth, so it's safe to use while several
+     * stories are being downloaded at once.
+     * @param unitsInStory Total number of work units in the story.
+     */
+    public static void finishedWorkUnit(long unitsInStory) {
+        C.getEventBus().post(new IncWorkDoneEvent(1L, false, unitsInStory));
+    }
+
+    /**
+     * Call to indicate that several units of work have been finished for a story with a known number of work units,
+     * such as when the units are bytes of a download.
+     * @param units        Number of work units which have been finished.
+     * @param unitsInStory Total number of work units in the story.
+     */
+    public static void finishedWorkUnits(long units, long unitsInStory) {
+        C.getEventBus().post(new IncWorkDoneEvent(units, false, unitsInStory));
+    }
+
+    /**
+     * Call if a {@link Story} didn't need to be downloaded because it hasn't changed since it was last saved. Counts as
+     * one successfully downloaded story.
+     */
+    public static void storyUnchanged() {
+        C.getEventBus().post(new IncWorkDoneEvent(0L, false));
+    }
 }
@@ -1,16 +1,23 @@
 package bkromhout.fdl.util;
 
 import bkromhout.fdl.Main;
+import bkromhout.fdl.ex.SiteDownException;
 import bkromhout.fdl.ex.StoryinfoJsonException;
+import bkromhout.fdl.metrics.Metrics;
+import bkromhout.fdl.metrics.Stage;
+import bkromhout.fdl.net.BodyBuffer;
+import bkromhout.fdl.net.CallDeadline;
+import bkromhout.fdl.net.ConcurrencyLimiter;
+import bkromhout.fdl.site.PageEncoding;
 import bkromhout.fdl.ui.Controller;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Text;
+import okhttp3.Call;
 import okhttp3.Request;
 import okhttp3.Response;
-import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
@@ -18,14 +25,41 @@ import org.jsoup.parser.Tag;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Utility class with static methods.
  */
 public abstract class Util {
+    /**
+     * Matches unclosed {@code <br>} tags.
+     */
+    private static final Pattern UNCLOSED_BR = selfClosingPattern("br");
+    /**
+     * Matches unclosed {@code <hr>} tags.
+     */
+    private static final Pattern UNCLOSED_HR = selfClosingPattern("hr");
+    /**
+     * Matches unclosed {@code <img>} tags.
+     */
+    private static final Pattern UNCLOSED_IMG = Pattern.compile("(\\<img[^>]*?(?<!/))(\\>)(?!\\Q</img>\\E)");
+    /**
+     * Matches ampersands which aren't part of entities.
+     */
+    private static final Pattern BARE_AMP = Pattern.compile("&(?![A-Za-z]+[0-9]*;|#[0-9]+;|#x[0-9a-fA-F]+;)");
+    /**
+     * Matches control characters other than CR, LF, and tab.
+     */
+    private static final Pattern CONTROL_CHARS = Pattern.compile("[^\\P{Cc}\\t\\r\\n]");
+    /**
+     * Matches {@code <img>} tags, whether they're closed or not.
+     */
+    private static final Pattern IMG_TAG = Pattern.compile("(<img[^>]*?)/?>(\\Q</img>\\E)?");
 
     /**
      * Log a string. If running from the CLI, goes to System.out. If running from the GUI, goes to the log TextFlow.
@@ -165,6 +199,22 @@ public abstract class Util {
         return file;
     }
 
+    /**
+     * Move a finished temporary file into place, replacing anything already there. The move is atomic where the file
+     * system supports it, so readers see either the old file or the new one, never a partial one.
+     * @param temp   Temporary file, which should be in the same directory as the target.
+     * @param target Target path.
+     * @throws IOException if the file can't be moved.
+     */
+    public static void replaceFile(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            // Should only happen on odd file systems; this is the best we can do there.
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * Download an HTML document from the given url.
      * <p>
@@ -173,36 +223,28 @@ public abstract class Util {
      * @return A Document object, or null if the url was malformed.
      */
     public static Document getHtml(String url) {
-        // Use Jsoup to parse the HTML, being sure to close resources before returning. (Note that while this is
-        // typed as an InputStream, whose close method "does nothing", it is actually an Okio type whose close method
-        // does do something.
-        try (InputStream responseBodyStream = getRawHtmlStream(url)) {
-            if (responseBodyStream == null) return null;
-            return Jsoup.parse(responseBodyStream, null, url);
+        Response response = getRaw(url);
+        if (response == null) return null;
+        BodyBuffer body = null;
+        try {
+            // Read the whole body first, so that the parse timer doesn't include time spent waiting on the network.
+            body = BodyBuffer.read(response.body());
+            long start = System.nanoTime();
+            try {
+                return PageEncoding.forUrl(url).parse(body.inputStream(), url);
+            } finally {
+                Metrics.stageTime(Stage.PARSE, start);
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            printStackTraceUnlessSiteDown(e);
             // We're just ignoring the exception really.
             logf(C.PARSE_HTML_FAILED, url);
             return null;
+        } finally {
+            if (body != null) body.release();
         }
     }
 
-    /**
-     * Download a web page using the given OkHttpClient from the given url.
-     * <p>
-     * Note that while this returns an InputStream type, it is actually an Okio type which subclasses InputStream.
-     * Callers should always be sure to call its {@code close} method when finished using it to ensure that it cannot
-     * leak.
-     * @param url url of page to download.
-     * @return Raw HTML of the web page as an InputStream, or null if we failed to download the page or the status code
-     * wasn't in the range of [200..300).
-     */
-    private static InputStream getRawHtmlStream(String url) {
-        Response response = getRaw(url);
-        if (response == null) return null;
-        return response.body().byteStream();
-    }
-
     /**
      * Get a model object by using Gson to parse a JSON response.
      * @param url        url to download.
@@ -227,7 +269,7 @@ public abstract class Util {
             if (response == null) return null;
             return response.body().bytes();
         } catch (IOException e) {
-            e.printStackTrace();
+            printStackTraceUnlessSiteDown(e);
             // We're just ignoring the exception really.
             logf(C.FILE_DL_FAILED, url);
             return null;
@@ -246,14 +288,27 @@ public abstract class Util {
     private static Response getRaw(String url) {
         try {
             Request request = new Request.Builder().url(url).build();
-            Response response = C.getHttpClient().newCall(request).execute();
-            if (response.isSuccessful()) return response;
+            // Wait for room under the site's concurrency limit first, so that the wait doesn't count towards the
+            // deadline.
+            ConcurrencyLimiter.awaitRoomFor(request);
+            Call call = C.getHttpClient().newCall(request);
+            CallDeadline deadline = CallDeadline.start(call);
+            Response response;
+            try {
+                response = call.execute();
+            } catch (IOException e) {
+                deadline.done();
+                throw e;
+            }
+            // The deadline keeps running until the caller has read the body.
+            if (response.isSuccessful()) return deadline.doneWhenClosed(response);
 
             // If the request wasn't successful, close the ResponseBody before returning null so that it cannot leak.
+            deadline.done();
             response.body().close();
             return null;
         } catch (IOException e) {
-            e.printStackTrace();
+            printStackTraceUnlessSiteDown(e);
             // We're just ignoring the exception really.
             logf(C.HTML_DL_FAILED, url);
             return null;
@@ -261,31 +316,59 @@ public abstract class Util {
     }
 
     /**
-     * Do some common HTML cleaning tasks.
+     * Print the stack trace for an exception which a download failed with, unless it failed because the site is down,
+     * in which case there's no point since we didn't even try.
+     * @param e Exception.
+     */
+    private static void printStackTraceUnlessSiteDown(IOException e) {
+        if (!(e instanceof SiteDownException)) e.printStackTrace();
+    }
+
+    /**
+     * Do some common HTML cleaning tasks, including repairing mojibake.
      * @param htmlStr HTML string.
      * @return Cleaned HTML string.
      */
     public static String cleanHtmlString(String htmlStr) {
+        return cleanHtmlString(htmlStr, true);
+    }
+
+    /**
+     * Do some common HTML cleaning tasks.
+     * @param htmlStr        HTML string.
+     * @param repairMojibake Whether to repair UTF-8 sequences which were decoded using the wrong charset. This is only
+     *                       needed for text from pages whose {@link PageEncoding} we didn't know. C1 control
+     *                       characters, which numeric character references like {@code &#146;} parse to, are always
+     *                       mapped to their Windows-1252 characters.
+     * @return Cleaned HTML string.
+     */
+    public static String cleanHtmlString(String htmlStr, boolean repairMojibake) {
         if (htmlStr == null) return null;
         // Make sure <br> and <hr> tags are closed.
-        htmlStr = closeTagsSelf(htmlStr, "br");
-        htmlStr = closeTagsSelf(htmlStr, "hr");
+        htmlStr = UNCLOSED_BR.matcher(htmlStr).replaceAll("$1/>");
+        htmlStr = UNCLOSED_HR.matcher(htmlStr).replaceAll("$1/>");
         // Make sure <img> tags are closed.
-        htmlStr = closeTags(htmlStr, "img");
+        htmlStr = UNCLOSED_IMG.matcher(htmlStr).replaceAll("$0</img>");
         // Replace unicode replacement/null characters with non breaking spaces.
         htmlStr = htmlStr.replace('\uFFFD', '\u00A0');
         // Escape ampersands that aren't part of entities.
         //htmlStr = htmlStr.replaceAll("[&](?!(#|amp;|gt;|lt;|quot;|nbsp;))", "&#x26;");
-        htmlStr = htmlStr.replaceAll("&(?![A-Za-z]+[0-9]*;|#[0-9]+;|#x[0-9a-fA-F]+;)", "&#x26;");
-        // Convert pesky Win-1252 characters to their correct unicode equivalents.
-        htmlStr = htmlStr.replace('\u0096', '–') // En dash (U+2013)
-                         .replace('\u0097', '—') // Em dash (U+2014)
-                         .replace('\u0091', '‘') // Left single quotation mark (U+2018)
-                         .replace('\u0092', '’') // Right single quotation mark (U+2019)
-                         .replace('\u0093', '“') // Left double quotation mark (U+201C)
-                         .replace('\u0094', '”') // Right double quotation mark (U+201D)
-                         .replace('\u0095', '•') // Bullet (U+2022)
-                         .replace('\u0085', '…'); // Horizontal ellipses (U+2026)
+        htmlStr = BARE_AMP.matcher(htmlStr).replaceAll("&#x26;");
+        // The sequence repairs have to come first, since the sequences contain C1 control characters.
+        if (repairMojibake) htmlStr = repairMojibake(htmlStr);
+        htmlStr = PageEncoding.mapC1ToWindows1252(htmlStr);
+        // Remove any control characters which are still present, except CR, LF, and tab.
+        htmlStr = CONTROL_CHARS.matcher(htmlStr).replaceAll("");
+        // Squeaky clean!
+        return htmlStr;
+    }
+
+    /**
+     * Repair common characters whose UTF-8 bytes were decoded using the wrong charset.
+     * @param htmlStr HTML string.
+     * @return Repaired HTML string.
+     */
+    private static String repairMojibake(String htmlStr) {
         // Convert incorrect sequences of UTF-16 characters which were actually UTF-8 to a single, correct character.
         htmlStr = htmlStr.replace("\u00E2\u0080\u0093", "–") // En dash (U+2013)
                          .replace("\u00E2\u0080\u0094", "—") // Em dash (U+2014)
@@ -295,35 +378,18 @@ public abstract class Util {
                          .replace("\u00E2\u0080\u009D", "”") // Right double quotation mark (U+201D)
                          .replace("\u00E2\u0080\u00A2", "•") // Bullet (U+2022)
                          .replace("\u00E2\u0080\u00A6", "…"); // Horizontal ellipses (U+2026)
-        // Remove any control characters which are still present, except CR, LF, and tab.
-        htmlStr = htmlStr.replaceAll("[^\\P{Cc}\\t\\r\\n]", "");
-        // Squeaky clean!
         return htmlStr;
     }
 
     /**
-     * Closes any instances of the given tag in the given html string by adding a forward slash (/) before its trailing
-     * angle bracket (>).
-     * @param in  String with tags to close.
+     * Create a pattern which matches unclosed instances of the given tag, so that they can be closed by adding a
+     * forward slash (/) before the trailing angle bracket (>). The first group is everything before the trailing angle
+     * bracket.
      * @param tag The type of tag, such as hr, or br.
-     * @return A string with all instances of the given tag closed.
+     * @return Compiled pattern.
      */
-    private static String closeTagsSelf(String in, String tag) {
-        if (in == null) return null;
-        return in.replaceAll(String.format("(\\<%s[^>]*?(?<!/))(\\>)", tag), "$1/>");
-    }
-
-    /**
-     * Closes any instances of the given tag in the given html string by adding an explicit closing tag after it. For
-     * example, an unclosed {@code <img>} tag would have {@code </img>} appended.
-     * @param in  String with tags to close.
-     * @param tag The type of tag, such as img.
-     * @return A string with all instances of the given tag closed.
-     */
-    private static String closeTags(String in, String tag) {
-        if (in == null) return null;
-        return in.replaceAll(String.format("(\\<%s[^>]*?(?<!/))(\\>)(?!\\Q</%s>\\E)", tag, tag),
-                String.format("$0</%s>", tag));
+    private static Pattern selfClosingPattern(String tag) {
+        return Pattern.compile(String.format("(\\<%s[^>]*?(?<!/))(\\>)", tag));
     }
 
     /**
@@ -332,7 +398,7 @@ public abstract class Util {
      * @return A string with all {@code <img>} tags removed.
      */
     public static String removeImgTags(String in) {
-        return in.replaceAll("(<img[^>]*?)/?>(\\Q</img>\\E)?", "");
+        return IMG_TAG.matcher(in).replaceAll("");
     }
 
     /**